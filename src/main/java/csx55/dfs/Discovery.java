@@ -1,10 +1,10 @@
 
 package csx55.dfs;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.io.IOException;
 
@@ -13,14 +13,15 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 
 import csx55.transport.TCPSender;
-import csx55.transport.TCPServerThread;
+import csx55.transport.EventDispatcher;
+import csx55.transport.ServerThread;
+import csx55.transport.TransportFactory;
 import csx55.wireformats.*;
 
 public class Discovery implements Node{
     
-    // Hash table to store the <peerID, hostname:portnum> of the peer nodes
-    // using the wrapper class Collections to synchronize the map to prevent concurrent modification
-    private Map<Integer, String> peerNodes = Collections.synchronizedMap(new HashMap<Integer, String>());
+    // The registered ring positions <peerID, hostname:portnum>, sorted by ID and indexed for random sampling
+    private final Membership membership = new Membership();
 
     // Singleton instance to ensure only one discoveryNode is created
     private static Discovery instance = null;
@@ -29,14 +30,19 @@ public class Discovery implements Node{
     private int portNumber; // port number to listen on
     private String ipAddress; // ip address to listen on
     private String node; // hostname:port
-    private int peerID; // hashcode of the node
+    private long peerID; // KeyHasher hash of the node
 
-    private TCPServerThread serverThread; // server thread to listen for incoming connections
+    private ServerThread serverThread; // server thread to listen for incoming connections
+
+    // Leases on the registrations, renewed by heartbeats; a peer whose lease runs out is dropped from the membership
+    private final Leases leases = new Leases(this::leasesExpired);
+
+    // one sender per peer connection, so a push and a response on the same socket never interleave
+    private final ConcurrentHashMap<Socket, TCPSender> senders = new ConcurrentHashMap<>();
 
     // Constructor is private so that only one discoveryNode can be created
     private Discovery(int portNumber) {
         this.portNumber = portNumber;
-        this.peerNodes = Collections.synchronizedMap(new HashMap<Integer, String>());
 
         // get the local ip Address
         try {
@@ -59,7 +65,7 @@ public class Discovery implements Node{
     // start the server thread
     public void startServer() {
         try {
-            this.serverThread = new TCPServerThread(this.portNumber, this); // 0 means the OS will pick a port number
+            this.serverThread = TransportFactory.createServerThread(this.portNumber, new EventDispatcher(this)); // 0 means the OS will pick a port number
             new Thread(this.serverThread).start();
         } catch (IOException e) {
             System.out.println("Failed to start the server: " + e.getMessage());
@@ -68,9 +74,9 @@ public class Discovery implements Node{
     }
 
     @Override
-    public int generateNodeID(String node) {
-        // Return the hash code of the unique identifier <IP>:<port> (this.node)
-        return node.hashCode();
+    public long generateNodeID(String node) {
+        // Return the hash of the unique identifier <IP>:<port> (this.node)
+        return KeyHasher.getInstance().hash(node);
     }
 
     public int getPortNumber() {
@@ -81,73 +87,108 @@ public class Discovery implements Node{
         return ipAddress;
     }
 
-    public synchronized void registerNode(int peerId, String hostname, int port, Socket socket) throws IOException {
+    /*
+     * Registers one virtual node of a peer. A peer registers each of its ring positions separately, virtual
+     * node i with the hash of hostname:port#i (node 0 with the hash of hostname:port), so the table holds
+     * every position on the ring. requestID is echoed so the peer can tell which virtual node was answered.
+     */
+    public void registerNode(long peerId, String hostname, int port, int virtualIndex, long requestID, Socket socket) throws IOException {
         
-        int key = peerId;
+        long key = peerId;
         String value = hostname + ":" + port;
-        
-        // Check if the node had previously registered
-        if (peerNodes.containsKey(key)) {
+    
+        // Check if the peerID is equal to the hash of the value (with the virtual index)
+        if (virtualIndex < 0 || virtualIndex >= Peer.MAX_VIRTUAL_NODES || key != generateNodeID(KeyHasher.virtualNodeName(value, virtualIndex))) {
             // create a new TCPSender to send the response
-            TCPSender sender = new TCPSender(socket);
+            TCPSender sender = senderFor(socket);
             try {
-                sendRegisterResponse(sender, Protocol.FAILURE, "NULL", "Node had previously registered");
+                sendRegisterResponse(sender, requestID, Protocol.FAILURE, "NULL", "PeerID does not match the " + KeyHasher.getInstance().getName() + " hash of the IP address and port number");
             } catch (IOException e) {
                 System.out.println("Failed to send register response: " + e.getMessage());
             } 
             return;
         }
-    
-        // Check if the peerID is equal to the hashcode of the value
-        if (key != value.hashCode()) {
+
+        // Add the node to the list of peer nodes, unless it had previously registered
+        if (!membership.add(key, value)) {
             // create a new TCPSender to send the response
-            TCPSender sender = new TCPSender(socket);
+            TCPSender sender = senderFor(socket);
             try {
-                sendRegisterResponse(sender, Protocol.FAILURE, "NULL", "PeerID does not match the hashcode of the IP address and port number");
+                sendRegisterResponse(sender, requestID, Protocol.FAILURE, "NULL", "Node had previously registered");
             } catch (IOException e) {
                 System.out.println("Failed to send register response: " + e.getMessage());
             } 
             return;
         }
 
-        // Add the node to the list of peer nodes
         try {
-            peerNodes.put(key, value);
-            System.out.println("\nAdded node to the list of peer nodes: " + key + " " + value);
+            // registering any position starts (or renews) the lease on all of the peer's positions
+            leases.grant(value, senderFor(socket));
+            System.out.println("\nAdded node to the list of peer nodes: " + Long.toUnsignedString(key) + " " + value + " (virtual node " + virtualIndex + ")");
             // create a new TCPSender to send the response
-            TCPSender sender = new TCPSender(socket);
-            // select a random peer node to send to the new node
-            if (peerNodes.size() == 1) {
-                sendRegisterResponse(sender, Protocol.SUCCESS, value, "Registration request successful. The number of peer nodes currently registered: (" + peerNodes.size() + ")");
-                return;
-            }else{
-                String randomPeerNode = "";
-                // as long as the random peer node is not the same as the new node
-                do {
-                    randomPeerNode = peerNodes.get(peerNodes.keySet().toArray()[(int)(Math.random() * peerNodes.size())]);
-                } while(randomPeerNode.equals(value));
-                System.out.println("Random peer node: " + randomPeerNode);
-                sendRegisterResponse(sender, Protocol.SUCCESS, randomPeerNode, "Registration request successful. The number of peer nodes currently registered: (" + peerNodes.size() + ")");
+            TCPSender sender = senderFor(socket);
+            // select a random peer node to send to the new node, from the positions of the other peers
+            Membership.Member randomPeer = membership.sampleOther(value);
+            String info = "Registration request successful. The number of peer nodes currently registered: (" + membership.size() + ")";
+            if (randomPeer == null) {
+                // the first peer, it starts the ring with its own virtual nodes
+                sendRegisterResponse(sender, requestID, ringSnapshot(key, value, info));
+            } else {
+                System.out.println("Random peer node: " + randomPeer.getNode());
+                sendRegisterResponse(sender, requestID, ringSnapshot(key, randomPeer.getNode(), info));
             }
         } catch (IOException e) {
             System.out.println("Failed to add node to the list of peer nodes: " + e.getMessage());
         } 
     }
    
-    // Deregister a peer node
-    public void deregisterNode(int peerID, String hostname, int port, Socket socket) throws Exception {
+    /*
+     * A successful response for the new position id, with the registered positions around it: its predecessor,
+     * the csx55.successors positions after it and the successor of each of its finger starts. The joining
+     * virtual node takes its place from these right away instead of looking its successor up through randPeer.
+     * Positions that registered but haven't finished joining are included, stabilization sorts out the rest.
+     */
+    private RegisterResponse ringSnapshot(long id, String randPeer, String info) {
+        Membership.Member predecessor = membership.predecessorOf(id);
+        if (predecessor == null) {
+            return new RegisterResponse(Protocol.SUCCESS, randPeer, info);
+        }
+        List<PeerRef> successors = new ArrayList<>();
+        for (Membership.Member successor : membership.successorsAfter(id, Integer.getInteger(FingerTable.SUCCESSORS_PROPERTY, FingerTable.DEFAULT_SUCCESSORS))) {
+            successors.add(PeerRef.fromNode(successor.getId(), successor.getNode()));
+        }
+        // finger i is the first position at or after id + 2^i, unless that wraps past id itself
+        List<PeerRef> fingers = new ArrayList<>();
+        long lastFinger = id;
+        for (int i = 0; i < FingerTable.BITS; i++) {
+            long start = id + (1L << i);
+            Membership.Member finger = membership.successorOf(start);
+            if (finger == null || !FingerTable.isBetweenHalfOpen(finger.getId(), start - 1, id - 1) || finger.getId() == lastFinger) {
+                continue;
+            }
+            lastFinger = finger.getId();
+            fingers.add(PeerRef.fromNode(finger.getId(), finger.getNode()));
+        }
+        return new RegisterResponse(Protocol.SUCCESS, randPeer, info, PeerRef.fromNode(predecessor.getId(), predecessor.getNode()), successors, fingers);
+    }
+
+    // Deregister a peer node, along with all of its virtual nodes
+    public void deregisterNode(long peerID, String hostname, int port, Socket socket) throws Exception {
         String peerNode = hostname + ":" + port;
-        int peerNodeKey = peerID;
-        if (!peerNodes.containsKey(peerID)) {
+        String peerNodeKey = Long.toUnsignedString(peerID);
+        if (!membership.contains(peerID)) {
             throw new Exception("Node not found in network: " + peerNodeKey + " " + peerNode);
         }
         try {
-            TCPSender sender = new TCPSender(socket);
+            TCPSender sender = senderFor(socket);
             // remove node from the list of peer nodes
             sendDeregisterResponse(sender, Protocol.SUCCESS);
-            peerNodes.remove(peerID);
-            System.out.println("Removed node from the list of peer nodes: " + peerNodeKey + " " + peerNode);
+            int removed = membership.removeNode(peerNode);
+            leases.cancel(peerNode);
+            System.out.println("Removed node from the list of peer nodes: " + peerNodeKey + " " + peerNode + " (" + removed + " virtual nodes)");
+            senders.remove(socket);
             sender.closeSocket();
+            announceDepartures(List.of(peerNode));
         } catch (IOException e) {
             throw new Exception("Failed to deregister: " + peerNodeKey + " " + peerNode, e);
         } finally {
@@ -159,23 +200,94 @@ public class Discovery implements Node{
         }
     }
 
+    /*
+     * Renews the lease of the peer that sent the heartbeat. A peer without a lease, or with fewer positions
+     * registered than it has on the ring, was dropped while it couldn't reach us and is told to register again.
+     */
+    public void heartbeat(Heartbeat heartbeat, Socket socket) {
+        String peerNode = heartbeat.getIpAddress() + ":" + heartbeat.getPortNumber();
+        if (leases.renew(peerNode) && membership.positionCount(peerNode) >= heartbeat.getPositions()) {
+            return;
+        }
+        System.out.println("Heartbeat from " + peerNode + " which has no lease, asking it to register again.");
+        HeartbeatResponse response = new HeartbeatResponse(Protocol.FAILURE, "No lease for " + peerNode + ", register again");
+        try {
+            sendMessageToNode(senderFor(socket), response.getBytes());
+        } catch (IOException e) {
+            System.out.println("Failed to send heartbeat response: " + e.getMessage());
+        }
+    }
+
+    // runs on the lease wheel with every lease that ran out in one tick
+    private void leasesExpired(List<Leases.Lease> expired) {
+        List<String> departed = new ArrayList<>(expired.size());
+        for (Leases.Lease lease : expired) {
+            int removed = membership.removeNode(lease.getNode());
+            System.out.println("Lease of " + lease.getNode() + " expired, removed " + removed + " virtual nodes.");
+            senders.values().remove(lease.getSender());
+            departed.add(lease.getNode());
+        }
+        announceDepartures(departed);
+    }
+
+    // tells every peer that still holds a lease which peers are gone, in one message
+    private void announceDepartures(List<String> departed) {
+        byte[] update;
+        try {
+            update = new MembershipUpdate(departed).getBytes();
+        } catch (IOException e) {
+            System.out.println("Failed to encode membership update: " + e.getMessage());
+            return;
+        }
+        for (Leases.Lease lease : leases.live()) {
+            try {
+                lease.getSender().sendData(update);
+            } catch (IOException e) {
+                // its lease will run out too
+                System.out.println("Failed to send membership update to " + lease.getNode() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private TCPSender senderFor(Socket socket) throws IOException {
+        TCPSender sender = senders.get(socket);
+        if (sender == null) {
+            TCPSender created = new TCPSender(socket);
+            sender = senders.putIfAbsent(socket, created);
+            if (sender == null) {
+                sender = created;
+            }
+        }
+        return sender;
+    }
+
+    public void listLeases() {
+        System.out.println(leases.getInfo());
+    }
+
     // List all peer nodes in the overlay <peerID> <ipaddress>:<port>
     public void listPeerNodes() {
         System.out.println("Peer nodes in the overlay:");
-        peerNodes.entrySet().stream()
-            .sorted(Map.Entry.comparingByKey())
-            .forEach(entry -> System.out.println(entry.getKey() + " " + entry.getValue()));
+        // the membership is kept in ring order already
+        for (Membership.Member member : membership.inRingOrder()) {
+            System.out.println(Long.toUnsignedString(member.getId()) + " " + member.getNode());
+        }
     }
 
     // Exit the overlay
     public void exit() {
         // Close the server thread
         System.out.println("Discovery Node is leaving the topology. Goodbye!");
+        leases.shutdown();
         serverThread.shutdown();
     }
 
-    private void sendRegisterResponse(TCPSender senderSocket, byte status, String randPeer, String info) throws IOException {
-        RegisterResponse response = new RegisterResponse(status, randPeer, info);
+    private void sendRegisterResponse(TCPSender senderSocket, long requestID, byte status, String randPeer, String info) throws IOException {
+        sendRegisterResponse(senderSocket, requestID, new RegisterResponse(status, randPeer, info));
+    }
+
+    private void sendRegisterResponse(TCPSender senderSocket, long requestID, RegisterResponse response) throws IOException {
+        response.setRequestID(requestID);
 
         sendMessageToNode(senderSocket, response.getBytes());
         System.out.println("Printing Register Response Info: \n" + response.getInfo());
@@ -209,14 +321,18 @@ public class Discovery implements Node{
                 // cast the event to a RegisterRequest
                 RegisterRequest request = (RegisterRequest) event;
                 System.out.println("Printing Register Request Info: \n" + request.getInfo());
-                int peerID = request.getPeerID();
+                long peerID = request.getPeerID();
                 String hostname = request.getIpAddress();
                 int port = request.getPortNumber();
                 // Register the node and send a success response
-                registerNode(peerID, hostname, port, socket);
+                registerNode(peerID, hostname, port, request.getVirtualIndex(), request.getRequestID(), socket);
 
                 break;
     
+            case Protocol.HEARTBEAT:
+                heartbeat((Heartbeat) event, socket);
+                break;
+
             case Protocol.DEREGISTER_REQUEST:
                 // cast the event to a DeregisterRequest
                 DeregisterRequest deregisterRequest = (DeregisterRequest) event;
@@ -238,6 +354,14 @@ public class Discovery implements Node{
     // Main method to run the discoveryNode
     // gradle build
     // ~/CS555/hw3/build/classes/java/main$ java csx55.chord.DiscoveryNode 45555
+    // add -Dcsx55.transport=nio before the class name to use the selector based server instead of thread-per-connection
+    // add -Dcsx55.threads=virtual to run the receivers and event handlers on virtual threads (JDK 21+)
+    // add -Dcsx55.dispatch.controlThreads=<n> and -Dcsx55.dispatch.bulkThreads=<n> to size the event handler lanes
+    //     (default 4 and 2, virtual threads too), -Dcsx55.dispatch.controlQueue=<n> and -Dcsx55.dispatch.bulkQueue=<n>
+    //     for how many received events may wait before reading pauses (default 1024 and 64)
+    // add -Dcsx55.hash=murmur3|sha1|java to pick the hash for peer IDs (default murmur3, peers must use the same one)
+    // add -Dcsx55.lease=<ms> to change how long a registration lasts without a heartbeat (default 15000, keep it a few
+    //     times the peers' -Dcsx55.heartbeat) and -Dcsx55.lease.tick=<ms> for how often leases are checked (default 500)
     public static void main(String[] args) {
 
         if (args.length != 1) {
@@ -284,9 +408,13 @@ public class Discovery implements Node{
             if (command.equals("peer-nodes")) {
                 discoveryNode.listPeerNodes();
             }
+            else if (command.equals("leases")) {
+                discoveryNode.listLeases();
+            }
             else if ((command.toLowerCase().equals("h")) || (command.equals("help"))) {
                 System.out.println("Commands:");
                 System.out.println("peer-nodes: List all peer nodes in the overlay");
+                System.out.println("leases: List the peers' leases and when they expire");
                 System.out.println("exit: Exit the topology");
             } 
             else if (command.equals("exit")) {
@@ -0,0 +1,512 @@
+package csx55.dfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+
+import csx55.wireformats.PeerRef;
+
+/*
+Chord finger table for one peer.
+peerIDs and keys are 64 bit KeyHasher values, treated as points on a ring of size 2^64 (compared as unsigned longs).
+finger[i] is the first peer that succeeds (self + 2^i), so finger[0] is the successor and each further finger
+covers twice the distance of the one before it. findSuccessor() answers a lookup locally when the key falls
+between us and our successor, and otherwise names the closest finger that precedes the key as the next hop,
+which at least halves the remaining distance, so a lookup takes O(log N) hops instead of walking the ring.
+Entries are filled in lazily by fixFingers on the Peer, a missing entry just means that finger is skipped.
+Next to the fingers it keeps the predecessor and a successor list: the next few peers after self, one position per
+peer, refreshed by stabilization. When the successor dies without leaving, the first entry of another peer takes its
+place. Those three are held together in an immutable Neighbours and changed only by compare-and-set, finger[0]
+is read from it rather than stored twice.
+For proximity routing it also remembers a few candidates per finger interval [self + 2^i, self + 2^(i+1)): any of
+them gets a lookup the same number of bits closer to its key, so closestPrecedingFinger forwards to the one with
+the lowest measured round trip instead of always the one with the closest ID.
+ */
+public class FingerTable {
+
+    public static final int BITS = 64; // size of the identifier space (64 bit hashes)
+
+    // how many peers the successor list holds, the ring survives that many minus one neighbours failing at once
+    public static final String SUCCESSORS_PROPERTY = "csx55.successors";
+    public static final int DEFAULT_SUCCESSORS = 4;
+    private static final int SUCCESSOR_LIST_LENGTH = Math.max(1, Integer.getInteger(SUCCESSORS_PROPERTY, DEFAULT_SUCCESSORS));
+
+    private final PeerRef self;
+    private final AtomicReferenceArray<PeerRef> fingers = new AtomicReferenceArray<>(BITS);
+    private final AtomicReference<Neighbours> neighbours = new AtomicReference<>(Neighbours.NONE);
+    private int nextFingerToFix = 1; // finger[0] is kept up to date by stabilization
+
+    // peers kept per finger interval to choose the next hop from by latency, 1 routes on IDs alone like plain Chord
+    public static final String PROXIMITY_PROPERTY = "csx55.proximity";
+    public static final int DEFAULT_CANDIDATES = 4;
+    private static final int CANDIDATES_PER_INTERVAL = Math.max(1, Integer.getInteger(PROXIMITY_PROPERTY, DEFAULT_CANDIDATES));
+
+    // candidates[i] holds the first few known peers of interval i, in ring order
+    private final AtomicReferenceArray<List<PeerRef>> candidates = new AtomicReferenceArray<>(BITS);
+    private volatile LatencyTracker latencies; // null: no round trips known, route on IDs only
+
+    public FingerTable(PeerRef self) {
+        this.self = self;
+    }
+
+    public PeerRef getSelf() {
+        return self;
+    }
+
+    public void setLatencyTracker(LatencyTracker latencies) {
+        this.latencies = latencies;
+    }
+
+    // the key finger i is responsible for: self + 2^i on the ring (long overflow does the wrap around)
+    public long start(int i) {
+        return self.getPeerID() + (1L << i);
+    }
+
+    public PeerRef getFinger(int i) {
+        return i == 0 ? getSuccessor() : fingers.get(i);
+    }
+
+    public void setFinger(int i, PeerRef peer) {
+        if (i == 0) {
+            setSuccessor(peer);
+        } else {
+            fingers.set(i, peer);
+        }
+    }
+
+    public Neighbours getNeighbours() {
+        return neighbours.get();
+    }
+
+    public PeerRef getSuccessor() {
+        return neighbours.get().getSuccessor();
+    }
+
+    public PeerRef getPredecessor() {
+        return neighbours.get().getPredecessor();
+    }
+
+    public List<PeerRef> getSuccessorList() {
+        return neighbours.get().getSuccessors();
+    }
+
+    /*
+     * Applies change to the current neighbours and swaps the result in, again on the newer value if another thread
+     * swapped first. change must not have side effects, it can run more than once. Returns the neighbours replaced.
+     */
+    private Neighbours update(UnaryOperator<Neighbours> change) {
+        while (true) {
+            Neighbours current = neighbours.get();
+            Neighbours updated = change.apply(current);
+            if (updated == current || neighbours.compareAndSet(current, updated)) {
+                return current;
+            }
+        }
+    }
+
+    // a new successor goes in front of the list, or cuts off the entries before it if it was already on it
+    public Neighbours setSuccessor(PeerRef successor) {
+        return update(current -> {
+            if (successor == null) {
+                return current.withSuccessors(null, List.of());
+            }
+            List<PeerRef> list = current.getSuccessors();
+            int at = list.indexOf(successor);
+            return current.withSuccessors(successor, buildSuccessorList(successor, at >= 0 ? list.subList(at + 1, list.size()) : list));
+        });
+    }
+
+    // a new successor together with its own successor list, in one step
+    public Neighbours setSuccessor(PeerRef successor, List<PeerRef> successorsOfSuccessor) {
+        List<PeerRef> list = buildSuccessorList(successor, successorsOfSuccessor);
+        return update(current -> current.withSuccessors(successor, list));
+    }
+
+    // the successor becomes successor only if it is still expected, returns false if another thread changed it first
+    public boolean compareAndSetSuccessor(PeerRef expected, PeerRef successor) {
+        Neighbours previous = update(current -> Objects.equals(current.getSuccessor(), expected) && !Objects.equals(expected, successor)
+                ? current.withSuccessors(successor, buildSuccessorList(successor, current.getSuccessors()))
+                : current);
+        return Objects.equals(previous.getSuccessor(), expected) && !Objects.equals(expected, successor);
+    }
+
+    // stabilization: the list is our successor followed by the successor's own list, returns true if it changed
+    public boolean updateSuccessorList(PeerRef successor, List<PeerRef> successorsOfSuccessor) {
+        if (successor == null) {
+            return false;
+        }
+        List<PeerRef> list = buildSuccessorList(successor, successorsOfSuccessor);
+        Neighbours previous = update(current -> successor.equals(current.getSuccessor()) && !list.equals(current.getSuccessors())
+                ? current.withSuccessors(successor, list)
+                : current);
+        return successor.equals(previous.getSuccessor()) && !list.equals(previous.getSuccessors());
+    }
+
+    public void setPredecessor(PeerRef predecessor) {
+        update(current -> current.withPredecessor(predecessor));
+    }
+
+    // the predecessor becomes predecessor only if it is still expected, returns false if another thread changed it first
+    public boolean compareAndSetPredecessor(PeerRef expected, PeerRef predecessor) {
+        Neighbours previous = update(current -> Objects.equals(current.getPredecessor(), expected) ? current.withPredecessor(predecessor) : current);
+        return Objects.equals(previous.getPredecessor(), expected);
+    }
+
+    /*
+     * Chord's notify rule: candidate becomes the predecessor if there is none yet (or only ourselves) or it sits
+     * between the current one and us. Returns the neighbours it replaced, or null if candidate wasn't taken.
+     * Two peers joining in front of us at the same time both get a correct answer this way: the closer one wins
+     * whatever order they arrive in.
+     */
+    public Neighbours offerPredecessor(PeerRef candidate) {
+        Neighbours previous = update(current -> acceptsPredecessor(current, candidate) ? current.withPredecessor(candidate) : current);
+        return acceptsPredecessor(previous, candidate) ? previous : null;
+    }
+
+    private boolean acceptsPredecessor(Neighbours current, PeerRef candidate) {
+        PeerRef predecessor = current.getPredecessor();
+        return candidate != null && (predecessor == null || predecessor.equals(self)
+                || isBetweenOpen(candidate.getPeerID(), predecessor.getPeerID(), self.getPeerID()));
+    }
+
+    /*
+     * The successor stopped answering. Every entry of that peer is dropped (its other virtual positions went
+     * down with it) and the first remaining entry becomes the successor; self if the list ran out.
+     * Returns the new successor, or null if dead was no longer the successor (someone else failed over already).
+     */
+    public PeerRef failOver(PeerRef dead) {
+        Neighbours previous = update(current -> dead.equals(current.getSuccessor()) ? withoutPeer(current, dead.getHostPort()) : current);
+        if (!dead.equals(previous.getSuccessor())) {
+            return null;
+        }
+        removePeer(dead);
+        return withoutPeer(previous, dead.getHostPort()).getSuccessor();
+    }
+
+    private Neighbours withoutPeer(Neighbours current, String hostPort) {
+        List<PeerRef> remaining = new ArrayList<>();
+        for (PeerRef peer : current.getSuccessors()) {
+            if (!peer.getHostPort().equals(hostPort)) {
+                remaining.add(peer);
+            }
+        }
+        return remaining.isEmpty() ? current.withSuccessors(self, List.of()) : current.withSuccessors(remaining.get(0), List.copyOf(remaining));
+    }
+
+    // first, then the rest in ring order, one position per peer, stopping when the ring wraps back to self
+    private List<PeerRef> buildSuccessorList(PeerRef first, List<PeerRef> rest) {
+        List<PeerRef> list = new ArrayList<>(SUCCESSOR_LIST_LENGTH);
+        List<String> hosts = new ArrayList<>(SUCCESSOR_LIST_LENGTH);
+        list.add(first);
+        hosts.add(first.getHostPort());
+        for (PeerRef peer : rest) {
+            if (list.size() >= SUCCESSOR_LIST_LENGTH || peer == null || peer.equals(self)) {
+                break;
+            }
+            if (!hosts.contains(peer.getHostPort())) {
+                list.add(peer);
+                hosts.add(peer.getHostPort());
+            }
+        }
+        return List.copyOf(list);
+    }
+
+    // round robin over fingers 1..BITS-1, fixFingers refreshes a few of them each period
+    public synchronized int nextFingerToFix() {
+        int i = nextFingerToFix;
+        nextFingerToFix = nextFingerToFix + 1 < BITS ? nextFingerToFix + 1 : 1;
+        return i;
+    }
+
+    /*
+     * Records that finger i resolved to peer. Every following finger whose start also lies before that
+     * peer has the same successor, so those are filled in too without a lookup of their own.
+     * Returns the index of the last finger that was set.
+     */
+    public int resolveFinger(int i, PeerRef peer) {
+        fingers.set(i, peer);
+        while (i + 1 < BITS && isBetweenHalfOpen(start(i + 1), self.getPeerID(), peer.getPeerID())) {
+            i++;
+            fingers.set(i, peer);
+        }
+        return i;
+    }
+
+    /*
+     * Fills fingers 1..BITS-1 from a set of peers that holds the successor of every finger start, as the discovery
+     * sends with a registration: finger i is the first of them at or after start(i). A finger whose start has none
+     * of them before self is left as it is. The peers are offered as next hop candidates too.
+     */
+    public void seedFingers(List<PeerRef> peers) {
+        for (int i = 1; i < BITS; i++) {
+            long start = start(i);
+            PeerRef finger = null;
+            for (PeerRef peer : peers) {
+                if (isBetweenHalfOpen(peer.getPeerID(), start - 1, self.getPeerID() - 1)
+                        && (finger == null || Long.compareUnsigned(peer.getPeerID() - start, finger.getPeerID() - start) < 0)) {
+                    finger = peer;
+                }
+            }
+            if (finger != null) {
+                fingers.set(i, finger);
+            }
+        }
+        for (PeerRef peer : peers) {
+            offerCandidate(peer);
+        }
+    }
+
+    // the interval id falls in: i such that id - self is in [2^i, 2^(i+1)), -1 for self
+    public int interval(long id) {
+        long distance = id - self.getPeerID();
+        return distance == 0 ? -1 : BITS - 1 - Long.numberOfLeadingZeros(distance);
+    }
+
+    /*
+     * Remembers peer as a next hop candidate for its interval. Each interval keeps the peers closest to its start,
+     * the same ones a finger lookup of that interval would find first. Our own virtual nodes are left out, they are
+     * reached through the fingers anyway.
+     */
+    public void offerCandidate(PeerRef peer) {
+        if (CANDIDATES_PER_INTERVAL < 2 || peer == null || peer.getHostPort().equals(self.getHostPort())) {
+            return;
+        }
+        int i = interval(peer.getPeerID());
+        synchronized (candidates) {
+            List<PeerRef> current = getCandidates(i);
+            if (current.contains(peer)) {
+                return;
+            }
+            List<PeerRef> updated = new ArrayList<>(current);
+            updated.add(peer);
+            updated.sort((a, b) -> Long.compareUnsigned(a.getPeerID() - self.getPeerID(), b.getPeerID() - self.getPeerID()));
+            candidates.set(i, List.copyOf(updated.size() > CANDIDATES_PER_INTERVAL ? updated.subList(0, CANDIDATES_PER_INTERVAL) : updated));
+        }
+    }
+
+    public List<PeerRef> getCandidates(int i) {
+        List<PeerRef> list = candidates.get(i);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    // up to max candidates, one per peer, whose round trip hasn't been measured lately
+    public List<PeerRef> candidatesToProbe(int max) {
+        List<PeerRef> probe = new ArrayList<>();
+        LatencyTracker tracker = latencies;
+        if (tracker == null) {
+            return probe;
+        }
+        for (int i = BITS - 1; i >= 0 && probe.size() < max; i--) {
+            for (PeerRef candidate : getCandidates(i)) {
+                if (probe.size() < max && tracker.needsProbe(candidate)
+                        && probe.stream().noneMatch(other -> other.getHostPort().equals(candidate.getHostPort()))) {
+                    probe.add(candidate);
+                }
+            }
+        }
+        return probe;
+    }
+
+    // a peer left the ring, point its entries at the next finger out so lookups stop going to it
+    public void removePeer(PeerRef peer) {
+        if (peer == null) {
+            return;
+        }
+        // all of the peer's virtual positions are gone with it
+        String hostPort = peer.getHostPort();
+        synchronized (candidates) {
+            for (int i = 0; i < BITS; i++) {
+                List<PeerRef> current = getCandidates(i);
+                if (current.stream().anyMatch(candidate -> candidate.getHostPort().equals(hostPort))) {
+                    List<PeerRef> remaining = new ArrayList<>(current);
+                    remaining.removeIf(candidate -> candidate.getHostPort().equals(hostPort));
+                    candidates.set(i, List.copyOf(remaining));
+                }
+            }
+        }
+        // finger[0] is left alone, the successor is repaired by stabilization
+        for (int i = BITS - 1; i > 0; i--) {
+            PeerRef finger = fingers.get(i);
+            if (finger != null && finger.getHostPort().equals(hostPort)) {
+                PeerRef next = i + 1 < BITS ? fingers.get(i + 1) : null;
+                fingers.set(i, next != null && next.getHostPort().equals(hostPort) ? null : next);
+            }
+        }
+        // the successor itself stays too, failOver replaces it
+        update(current -> {
+            List<PeerRef> remaining = new ArrayList<>(current.getSuccessors());
+            if (remaining.size() > 1 && remaining.subList(1, remaining.size()).removeIf(entry -> entry.getHostPort().equals(hostPort))) {
+                return current.withSuccessors(current.getSuccessor(), List.copyOf(remaining));
+            }
+            return current;
+        });
+    }
+
+    // the finger or successor list entry closest to the key that still comes before it, or self if there is none
+    public PeerRef closestPrecedingFinger(long key) {
+        return closestPrecedingFinger(key, getSuccessorList());
+    }
+
+    private PeerRef closestPrecedingFinger(long key, List<PeerRef> successorList) {
+        PeerRef closest = self;
+        for (int i = BITS - 1; i > 0; i--) {
+            PeerRef finger = fingers.get(i);
+            if (finger != null && isBetweenOpen(finger.getPeerID(), self.getPeerID(), key)) {
+                closest = finger;
+                break;
+            }
+        }
+        // the successor list can hold a closer peer while the fingers are being fixed
+        for (PeerRef successor : successorList) {
+            if (isBetweenOpen(successor.getPeerID(), closest.getPeerID(), key)) {
+                closest = successor;
+            }
+        }
+        return nearestEquivalent(closest, key);
+    }
+
+    /*
+     * Proximity route selection: the candidates in the same interval as next that also come before the key take the
+     * lookup just as far in ID space, so the one with the lowest round trip is used. A candidate that was never
+     * measured doesn't count as closer, so without measurements this is plain Chord routing.
+     */
+    private PeerRef nearestEquivalent(PeerRef next, long key) {
+        LatencyTracker tracker = latencies;
+        if (tracker == null || next.equals(self)) {
+            return next;
+        }
+        PeerRef best = next;
+        long bestRtt = rank(tracker, next);
+        for (PeerRef candidate : getCandidates(interval(next.getPeerID()))) {
+            long rtt = rank(tracker, candidate);
+            if (rtt < bestRtt && isBetweenOpen(candidate.getPeerID(), self.getPeerID(), key)) {
+                best = candidate;
+                bestRtt = rtt;
+            }
+        }
+        return best;
+    }
+
+    private static long rank(LatencyTracker tracker, PeerRef peer) {
+        long rtt = tracker.getRttMicros(peer);
+        return rtt < 0 ? Long.MAX_VALUE : rtt;
+    }
+
+    // up to count distinct peers from the fingers and the successor list that come before the key, closest to it first
+    public List<PeerRef> closestPrecedingFingers(long key, int count) {
+        List<PeerRef> found = new ArrayList<>();
+        for (int i = BITS - 1; i > 0; i--) {
+            PeerRef finger = fingers.get(i);
+            if (finger != null && !found.contains(finger) && isBetweenOpen(finger.getPeerID(), self.getPeerID(), key)) {
+                found.add(finger);
+            }
+        }
+        for (PeerRef successor : getSuccessorList()) {
+            if (!found.contains(successor) && isBetweenOpen(successor.getPeerID(), self.getPeerID(), key)) {
+                found.add(successor);
+            }
+        }
+        found.sort((a, b) -> Long.compareUnsigned(key - a.getPeerID(), key - b.getPeerID()));
+        return found.size() > count ? new ArrayList<>(found.subList(0, count)) : found;
+    }
+
+    /*
+     * One step of a lookup. The result is final when this peer knows the key's successor (itself if the key
+     * falls between the predecessor and us, our successor if it falls between us and the successor).
+     * Otherwise it names the closest preceding finger, which the lookup should be forwarded to.
+     * Predecessor, successor and successor list all come from the same Neighbours snapshot.
+     */
+    public Route findSuccessor(long key) {
+        Neighbours current = neighbours.get();
+        PeerRef successor = current.getSuccessor();
+        PeerRef predecessor = current.getPredecessor();
+        if (successor == null || successor.equals(self) || key == self.getPeerID()) {
+            return new Route(self, true);
+        }
+        if (predecessor != null && !predecessor.equals(self) && isBetweenHalfOpen(key, predecessor.getPeerID(), self.getPeerID())) {
+            return new Route(self, true);
+        }
+        if (isBetweenHalfOpen(key, self.getPeerID(), successor.getPeerID())) {
+            return new Route(successor, true);
+        }
+        PeerRef next = closestPrecedingFinger(key, current.getSuccessors());
+        if (next.equals(self)) {
+            // none of our fingers gets closer, the successor is as far as we know
+            return new Route(successor, true);
+        }
+        return new Route(next, false);
+    }
+
+    // is id in the ring interval (from, to]? from == to means the whole ring
+    public static boolean isBetweenHalfOpen(long id, long from, long to) {
+        long distance = id - from;
+        long span = to - from;
+        return distance != 0 && (span == 0 || Long.compareUnsigned(distance, span) <= 0);
+    }
+
+    // is id in the ring interval (from, to)? from == to means the whole ring except from
+    public static boolean isBetweenOpen(long id, long from, long to) {
+        long distance = id - from;
+        long span = to - from;
+        return distance != 0 && (span == 0 || Long.compareUnsigned(distance, span) < 0);
+    }
+
+    public String getInfo() {
+        StringBuilder info = new StringBuilder("Finger Table of " + self + "\n");
+        PeerRef previous = null;
+        for (int i = 0; i < BITS; i++) {
+            PeerRef finger = getFinger(i);
+            // consecutive fingers usually point at the same peer, only print where it changes
+            if (i == 0 || finger == null || !finger.equals(previous)) {
+                info.append(String.format("%2d  start %-20s %s%n", i, Long.toUnsignedString(start(i)), finger == null ? "-" : finger));
+            }
+            previous = finger;
+        }
+        info.append("Successor list: ").append(getSuccessorList()).append("\n");
+        LatencyTracker tracker = latencies;
+        for (int i = BITS - 1; i >= 0; i--) {
+            List<PeerRef> list = getCandidates(i);
+            if (!list.isEmpty()) {
+                info.append(String.format("%2d  candidates", i));
+                for (PeerRef candidate : list) {
+                    long rtt = tracker == null ? -1 : tracker.getRttMicros(candidate);
+                    info.append("  ").append(candidate.getHostPort()).append(rtt < 0 ? " (?)" : " (" + rtt + " us)");
+                }
+                info.append("\n");
+            }
+        }
+        return info.toString();
+    }
+
+    // the outcome of findSuccessor: either the key's successor or the next peer to ask
+    public static class Route {
+        private final PeerRef successor;
+        private final boolean isFinal;
+
+        Route(PeerRef successor, boolean isFinal) {
+            this.successor = successor;
+            this.isFinal = isFinal;
+        }
+
+        public PeerRef getSuccessor() {
+            return successor;
+        }
+
+        public long getSuccessorID() {
+            return successor.getPeerID();
+        }
+
+        public String getSuccessorHostPort() {
+            return successor.getHostPort();
+        }
+
+        // true if getSuccessor() is the key's successor, false if it is only the next hop
+        public boolean isFinal() {
+            return isFinal;
+        }
+    }
+}
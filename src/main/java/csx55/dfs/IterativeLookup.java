@@ -0,0 +1,139 @@
+package csx55.dfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import csx55.wireformats.FindSuccessorRequest;
+import csx55.wireformats.FindSuccessorResponse;
+import csx55.wireformats.PeerRef;
+import csx55.wireformats.Protocol;
+
+/*
+A lookup driven by the peer that wants the answer, Kademlia style.
+Instead of handing the request to the next peer and waiting for the answer to come back from the end of the chain,
+the requester asks every hop itself (FindSuccessorRequest in ITERATIVE mode). A hop either knows the key's
+successor (SUCCESS) or names its closest preceding fingers (FAILURE plus candidates); the requester collects those
+and always asks the ones closest to the key next. Up to alpha queries are in flight at once, each with its own
+timeout, so a dead or slow hop costs at most one hop timeout while the other queries carry on around it.
+ */
+class IterativeLookup {
+
+    private final Peer peer;
+    private final long key;
+    private final int alpha;
+    private final long hopTimeoutMillis;
+    private final CompletableFuture<FindSuccessorResponse> result = new CompletableFuture<>();
+
+    // peers not asked yet, by distance to the key (closest first), with the hop count they were found at
+    private final TreeMap<Long, Candidate> candidates = new TreeMap<>((a, b) -> Long.compareUnsigned(a, b));
+    private final Set<PeerRef> asked = new HashSet<>();
+    private int inFlight = 0;
+    private int failures = 0;
+
+    IterativeLookup(Peer peer, long key, int alpha, long hopTimeoutMillis) {
+        this.peer = peer;
+        this.key = key;
+        this.alpha = Math.max(1, alpha);
+        this.hopTimeoutMillis = hopTimeoutMillis;
+    }
+
+    CompletableFuture<FindSuccessorResponse> start(List<PeerRef> firstHops) {
+        synchronized (this) {
+            for (PeerRef hop : firstHops) {
+                addCandidate(hop, 1);
+            }
+        }
+        askMore();
+        return result;
+    }
+
+    private void addCandidate(PeerRef candidate, int hopCount) {
+        if (candidate != null && !asked.contains(candidate)) {
+            candidates.putIfAbsent(key - candidate.getPeerID(), new Candidate(candidate, hopCount));
+        }
+    }
+
+    // keep alpha queries going, or give up once nobody is left to ask
+    private void askMore() {
+        List<Candidate> toAsk = new ArrayList<>();
+        synchronized (this) {
+            if (result.isDone()) {
+                return;
+            }
+            while (inFlight + toAsk.size() < alpha && !candidates.isEmpty()) {
+                Candidate next = candidates.pollFirstEntry().getValue();
+                if (asked.add(next.peer)) {
+                    toAsk.add(next);
+                }
+            }
+            inFlight += toAsk.size();
+            if (inFlight == 0) {
+                result.completeExceptionally(new IOException("Lookup of " + Long.toUnsignedString(key) + " ran out of peers to ask after "
+                        + asked.size() + " queries (" + failures + " failed)"));
+                return;
+            }
+        }
+        for (Candidate candidate : toAsk) {
+            ask(candidate);
+        }
+    }
+
+    private void ask(Candidate candidate) {
+        FindSuccessorRequest request = new FindSuccessorRequest(peer.getSelf(), key, FindSuccessorRequest.ITERATIVE);
+        request.setHopCount(candidate.hopCount); // echoed back, so the answer says how deep it was found
+        peer.timedRequest(candidate.peer, request, hopTimeoutMillis)
+            .whenComplete((response, error) -> {
+                if (error != null) {
+                    failed(candidate, error);
+                } else {
+                    answered(candidate, (FindSuccessorResponse) response);
+                }
+                askMore();
+            });
+    }
+
+    private void answered(Candidate candidate, FindSuccessorResponse response) {
+        if (response.getSuccessStatus() == Protocol.SUCCESS) {
+            // the first answer wins, queries still in flight are ignored when they come back
+            result.complete(response);
+        }
+        synchronized (this) {
+            inFlight--;
+            if (response.getSuccessor() == null) {
+                // that peer isn't on the ring yet
+                failures++;
+                return;
+            }
+            addCandidate(response.getSuccessor(), candidate.hopCount + 1);
+            for (PeerRef next : response.getCandidates()) {
+                addCandidate(next, candidate.hopCount + 1);
+            }
+        }
+    }
+
+    private void failed(Candidate candidate, Throwable error) {
+        synchronized (this) {
+            inFlight--;
+            failures++;
+        }
+        if (error instanceof IOException || error.getCause() instanceof IOException) {
+            // couldn't even be reached, stop routing through it (a timeout may just be a slow peer)
+            peer.removeFromFingerTables(candidate.peer);
+        }
+    }
+
+    private static class Candidate {
+        final PeerRef peer;
+        final int hopCount;
+
+        Candidate(PeerRef peer, int hopCount) {
+            this.peer = peer;
+            this.hopCount = hopCount;
+        }
+    }
+}
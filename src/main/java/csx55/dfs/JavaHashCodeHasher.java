@@ -0,0 +1,16 @@
+package csx55.dfs;
+
+/*
+The String.hashCode() placement nodes used before, scaled onto the 64 bit ring (the 32 bit hash becomes the top
+half of the ID, so keys keep the order they had on the old 32 bit ring). Kept to compare against in LoadReport.
+ */
+public class JavaHashCodeHasher implements KeyHasher {
+
+    public long hash(String key) {
+        return Integer.toUnsignedLong(key.hashCode()) << 32;
+    }
+
+    public String getName() {
+        return "java";
+    }
+}
@@ -0,0 +1,45 @@
+package csx55.dfs;
+
+/*
+Places peers and files on the ring. Peer IDs (hash of "<ip-address>:<port>") and file keys (hash of the file name)
+are both 64 bit values on a ring of size 2^64, ordered as unsigned longs. Every node has to use the same hasher,
+which is picked with -Dcsx55.hash=murmur3|sha1|java (default murmur3). The Discovery rejects a peer whose peerID
+doesn't match its own hash of the peer's address, so a peer started with a different hasher can't join.
+ */
+public interface KeyHasher {
+
+    String HASH_PROPERTY = "csx55.hash";
+    String DEFAULT_HASH = "murmur3";
+
+    long hash(String key);
+
+    String getName();
+
+    // the name a peer's virtual node is hashed from: hostname:port for the first one, hostname:port#i for the others
+    static String virtualNodeName(String node, int virtualIndex) {
+        return virtualIndex == 0 ? node : node + "#" + virtualIndex;
+    }
+
+    // the hasher selected with -Dcsx55.hash
+    static KeyHasher getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    static KeyHasher forName(String name) {
+        switch (name.toLowerCase()) {
+            case "murmur3":
+                return new Murmur3Hasher();
+            case "sha1":
+                return new Sha1Hasher();
+            case "java":
+                return new JavaHashCodeHasher();
+            default:
+                throw new IllegalArgumentException("Unknown hash function: " + name + " (use murmur3, sha1 or java)");
+        }
+    }
+
+    // resolved on first use
+    class Holder {
+        private static final KeyHasher INSTANCE = forName(System.getProperty(HASH_PROPERTY, DEFAULT_HASH));
+    }
+}
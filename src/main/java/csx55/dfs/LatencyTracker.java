@@ -0,0 +1,81 @@
+package csx55.dfs;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import csx55.wireformats.PeerRef;
+
+/*
+Round trip times to the peers this peer talks to directly, one per host:port (all virtual nodes of a peer sit behind
+the same connection). Samples come from requests that the asked peer answers itself: stabilize, iterative lookup
+hops and the probes fixFingers sends to finger candidates. Each peer keeps a moving average so one slow answer
+doesn't throw its routing around. The finger tables use it to pick the nearest of several equally good next hops.
+ */
+public class LatencyTracker {
+
+    // weight of a new sample in the moving average
+    private static final double SMOOTHING = 0.25;
+
+    // a measurement older than this is refreshed by the next probe
+    public static final String PROBE_INTERVAL_PROPERTY = "csx55.proximity.probeInterval";
+    private static final long PROBE_INTERVAL_MILLIS = Long.getLong(PROBE_INTERVAL_PROPERTY, 60000);
+
+    private final ConcurrentHashMap<String, Sample> samples = new ConcurrentHashMap<>();
+
+    public void record(PeerRef peer, long rttNanos) {
+        long micros = Math.max(1, rttNanos / 1000);
+        samples.compute(peer.getHostPort(), (hostPort, sample) -> {
+            if (sample == null) {
+                return new Sample(micros);
+            }
+            sample.update(micros);
+            return sample;
+        });
+    }
+
+    // smoothed round trip to peer in microseconds, or -1 if it was never measured
+    public long getRttMicros(PeerRef peer) {
+        Sample sample = samples.get(peer.getHostPort());
+        return sample == null ? -1 : (long) sample.average;
+    }
+
+    // true if peer has no measurement yet or the last one is old
+    public boolean needsProbe(PeerRef peer) {
+        Sample sample = samples.get(peer.getHostPort());
+        return sample == null || System.currentTimeMillis() - sample.updatedAt > PROBE_INTERVAL_MILLIS;
+    }
+
+    public void remove(PeerRef peer) {
+        samples.remove(peer.getHostPort());
+    }
+
+    public String getInfo() {
+        StringBuilder info = new StringBuilder("Round trip times\n");
+        for (Map.Entry<String, Sample> entry : new TreeMap<>(samples).entrySet()) {
+            Sample sample = entry.getValue();
+            info.append(String.format("%-24s %8d us  (%d samples, last %d ms ago)%n", entry.getKey(), (long) sample.average,
+                    sample.count, System.currentTimeMillis() - sample.updatedAt));
+        }
+        return info.toString();
+    }
+
+    private static class Sample {
+        volatile double average;
+        volatile long updatedAt;
+        volatile int count;
+
+        Sample(long micros) {
+            average = micros;
+            updatedAt = System.currentTimeMillis();
+            count = 1;
+        }
+
+        // only called inside ConcurrentHashMap.compute, one update at a time per peer
+        void update(long micros) {
+            average += SMOOTHING * (micros - average);
+            updatedAt = System.currentTimeMillis();
+            count++;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package csx55.dfs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import csx55.transport.TCPSender;
+
+/*
+The discovery's leases on peer registrations, one per hostname:port covering all of that peer's ring positions.
+A lease lasts csx55.lease ms and is renewed by the peer's heartbeats. Expiry runs on a timer wheel: a ring of buckets
+of csx55.lease.tick ms each, one revolution longer than a lease, and a lease sits in the bucket of the tick it is
+due in. A renewal only moves the lease's expiry time forward and never touches the wheel. When its bucket comes
+round, a renewed lease is put in the bucket of its new expiry, the others have expired. So a heartbeat costs one
+map lookup and a tick only looks at the leases that are due then, however many peers there are.
+All leases that expire in one tick are handed to the listener together.
+ */
+public class Leases {
+
+    public static final String LEASE_PROPERTY = "csx55.lease";
+    public static final String TICK_PROPERTY = "csx55.lease.tick";
+    public static final long DEFAULT_LEASE_MILLIS = 15000;
+    public static final long DEFAULT_TICK_MILLIS = 500;
+
+    // a peer's registration, with the connection it registered on so the discovery can push to it
+    public static final class Lease {
+        private final String node;
+        private final TCPSender sender;
+        private final long grantedAt = System.currentTimeMillis();
+        private volatile long expiresAt;
+
+        Lease(String node, TCPSender sender, long expiresAt) {
+            this.node = node;
+            this.sender = sender;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public TCPSender getSender() {
+            return sender;
+        }
+    }
+
+    private final long leaseMillis;
+    private final long tickMillis;
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+    private final List<ArrayDeque<Lease>> wheel; // one bucket per tick, guarded by itself
+    private long lastTick; // last tick whose bucket was checked, only used by the wheel thread
+    private final ScheduledExecutorService timer;
+    private final Consumer<List<Lease>> onExpired;
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong renewals = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public Leases(Consumer<List<Lease>> onExpired) {
+        this(Math.max(1, Long.getLong(LEASE_PROPERTY, DEFAULT_LEASE_MILLIS)), Math.max(1, Long.getLong(TICK_PROPERTY, DEFAULT_TICK_MILLIS)), onExpired);
+    }
+
+    public Leases(long leaseMillis, long tickMillis, Consumer<List<Lease>> onExpired) {
+        this.leaseMillis = leaseMillis;
+        this.tickMillis = tickMillis;
+        this.onExpired = onExpired;
+        // one bucket per tick of a lease, plus room for the tick in progress and the one a lease is rounded up to
+        int buckets = (int) (leaseMillis / tickMillis) + 3;
+        this.wheel = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            wheel.add(new ArrayDeque<>());
+        }
+        this.lastTick = System.currentTimeMillis() / tickMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    // grants node a lease, or renews the one it has (the connection of the first grant is kept)
+    public void grant(String node, TCPSender sender) {
+        if (renew(node)) {
+            return;
+        }
+        Lease lease = new Lease(node, sender, System.currentTimeMillis() + leaseMillis);
+        if (leases.putIfAbsent(node, lease) == null) {
+            granted.incrementAndGet();
+            schedule(lease);
+        } else {
+            renew(node);
+        }
+    }
+
+    // extends node's lease by a full term, false if it has none (it expired or was never granted)
+    public boolean renew(String node) {
+        Lease lease = leases.get(node);
+        if (lease == null) {
+            return false;
+        }
+        lease.expiresAt = System.currentTimeMillis() + leaseMillis;
+        renewals.incrementAndGet();
+        return true;
+    }
+
+    // the peer deregistered, its lease ends now without an expiry
+    public Lease cancel(String node) {
+        return leases.remove(node);
+    }
+
+    public Collection<Lease> live() {
+        return leases.values();
+    }
+
+    public int size() {
+        return leases.size();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    // puts the lease in the bucket of the tick it expires in (never the tick being checked right now)
+    private void schedule(Lease lease) {
+        long tick = Math.max(lease.expiresAt / tickMillis, System.currentTimeMillis() / tickMillis + 1);
+        synchronized (wheel) {
+            wheel.get((int) (tick % wheel.size())).add(lease);
+        }
+    }
+
+    // checks the buckets of every tick since the last check
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long currentTick = now / tickMillis;
+        List<Lease> expired = new ArrayList<>();
+        List<Lease> renewed = new ArrayList<>();
+        for (long tick = lastTick + 1; tick <= currentTick; tick++) {
+            ArrayDeque<Lease> bucket = wheel.get((int) (tick % wheel.size()));
+            List<Lease> due;
+            synchronized (wheel) {
+                due = new ArrayList<>(bucket);
+                bucket.clear();
+            }
+            for (Lease lease : due) {
+                if (leases.get(lease.node) != lease) {
+                    continue; // cancelled, or replaced by a newer grant
+                }
+                if (lease.expiresAt > now) {
+                    renewed.add(lease);
+                } else if (leases.remove(lease.node, lease)) {
+                    expired.add(lease);
+                }
+            }
+        }
+        lastTick = currentTick;
+        for (Lease lease : renewed) {
+            schedule(lease);
+        }
+        if (!expired.isEmpty()) {
+            expirations.addAndGet(expired.size());
+            try {
+                onExpired.accept(expired);
+            } catch (RuntimeException e) {
+                System.out.println("Failed to handle expired leases: " + e.getMessage());
+            }
+        }
+    }
+
+    public String getInfo() {
+        StringBuilder info = new StringBuilder("Leases\n");
+        info.append("Lease: ").append(leaseMillis).append(" ms, checked every ").append(tickMillis).append(" ms\n");
+        info.append("Live: ").append(leases.size()).append("\nGranted: ").append(granted.get()).append("\nRenewals: ")
+                .append(renewals.get()).append("\nExpired: ").append(expirations.get()).append("\n");
+        long now = System.currentTimeMillis();
+        for (Lease lease : leases.values()) {
+            info.append(String.format("%-24s expires in %6d ms (held %d s)%n", lease.node, lease.expiresAt - now, (now - lease.grantedAt) / 1000));
+        }
+        return info.toString();
+    }
+}
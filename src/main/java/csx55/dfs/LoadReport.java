@@ -0,0 +1,136 @@
+package csx55.dfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+Shows how evenly each KeyHasher spreads files over peers.
+Places a lab-style set of peers (a few machines on consecutive addresses, several peers per machine on ephemeral
+ports) and a synthetic corpus of file names that look like what gets uploaded (numbered photos, logs, dataset
+parts, reports, ...), then assigns every file to its successor exactly like uploadFile does and reports the load.
+String.hashCode only moves a little when the last few characters change, so consecutive ports and numbered
+file names bunch up on small stretches of the ring; a 64 bit mixing hash spreads them out.
+The murmur3 xN rows give every peer N virtual nodes (hostname:port#i) the way Peer does with -Dcsx55.vnodes,
+and the weighted row doubles the virtual nodes of every fourth peer, which should then hold about twice the files.
+ */
+public class LoadReport {
+
+    // run with: java csx55.dfs.LoadReport [machines] [peers per machine] [files] [seed]
+    public static void main(String[] args) {
+        int machines = args.length > 0 ? Integer.parseInt(args[0]) : 25;
+        int peersPerMachine = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int fileCount = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 555;
+
+        List<String> peers = peerNames(machines, peersPerMachine, new Random(seed));
+        List<String> files = fileNames(fileCount, new Random(seed + 1));
+        System.out.println(peers.size() + " peers on " + machines + " machines, " + files.size() + " files, "
+                + String.format("%.1f", files.size() / (double) peers.size()) + " files per peer on average\n");
+        System.out.println(String.format("%-12s %6s %10s %10s %12s %14s %16s", "hash", "min", "max", "max/mean",
+                "stddev/mean", "empty peers", "top 10% share"));
+        int[] single = new int[peers.size()];
+        Arrays.fill(single, 1);
+        for (String name : new String[] { "java", "murmur3", "sha1" }) {
+            report(name, KeyHasher.forName(name), peers, files, single);
+        }
+        KeyHasher murmur3 = KeyHasher.forName("murmur3");
+        for (int perPeer : new int[] { 8, 32 }) {
+            int[] virtualNodes = new int[peers.size()];
+            Arrays.fill(virtualNodes, perPeer);
+            report("murmur3 x" + perPeer, murmur3, peers, files, virtualNodes);
+        }
+
+        // every fourth peer has weight 2
+        int[] weighted = new int[peers.size()];
+        for (int i = 0; i < weighted.length; i++) {
+            weighted[i] = i % 4 == 0 ? 16 : 8;
+        }
+        int[] load = assign(murmur3, peers, files, weighted);
+        long heavy = 0;
+        long light = 0;
+        for (int i = 0; i < load.length; i++) {
+            if (i % 4 == 0) {
+                heavy += load[i];
+            } else {
+                light += load[i];
+            }
+        }
+        int heavyPeers = (load.length + 3) / 4;
+        System.out.println(String.format("%nmurmur3 x8 with every fourth peer at weight 2: %.1f files per weight 2 peer, %.1f per weight 1 peer",
+                heavy / (double) heavyPeers, light / (double) (load.length - heavyPeers)));
+    }
+
+    // files per peer when peer i sits at virtualNodes[i] positions on the ring
+    private static int[] assign(KeyHasher hasher, List<String> peers, List<String> files, int[] virtualNodes) {
+        TreeMap<Long, Integer> ring = new TreeMap<>((a, b) -> Long.compareUnsigned(a, b));
+        for (int i = 0; i < peers.size(); i++) {
+            for (int v = 0; v < virtualNodes[i]; v++) {
+                ring.put(hasher.hash(KeyHasher.virtualNodeName(peers.get(i), v)), i);
+            }
+        }
+        int[] load = new int[peers.size()];
+        for (String file : files) {
+            Long owner = ring.ceilingKey(hasher.hash(file));
+            load[ring.get(owner != null ? owner : ring.firstKey())]++;
+        }
+        return load;
+    }
+
+    private static void report(String name, KeyHasher hasher, List<String> peers, List<String> files, int[] virtualNodes) {
+        int[] load = assign(hasher, peers, files, virtualNodes);
+
+        double mean = files.size() / (double) peers.size();
+        double variance = 0;
+        int empty = 0;
+        for (int count : load) {
+            variance += (count - mean) * (count - mean);
+            if (count == 0) {
+                empty++;
+            }
+        }
+        double stddev = Math.sqrt(variance / load.length);
+        int[] sorted = load.clone();
+        Arrays.sort(sorted);
+        long topTenth = 0;
+        for (int i = sorted.length - Math.max(1, sorted.length / 10); i < sorted.length; i++) {
+            topTenth += sorted[i];
+        }
+        System.out.println(String.format("%-12s %6d %10d %10.2f %12.2f %14d %15.1f%%", name, sorted[0],
+                sorted[sorted.length - 1], sorted[sorted.length - 1] / mean, stddev / mean, empty,
+                100.0 * topTenth / files.size()));
+    }
+
+    // <ip-address>:<port> of peers started on consecutive lab machines, each getting an ephemeral port
+    private static List<String> peerNames(int machines, int peersPerMachine, Random random) {
+        List<String> peers = new ArrayList<>();
+        for (int m = 0; m < machines; m++) {
+            for (int p = 0; p < peersPerMachine; p++) {
+                String peer;
+                do {
+                    peer = "129.82.44." + (130 + m) + ":" + (32768 + random.nextInt(28232));
+                } while (peers.contains(peer));
+                peers.add(peer);
+            }
+        }
+        return peers;
+    }
+
+    private static List<String> fileNames(int count, Random random) {
+        String[] patterns = { "IMG_%04d.jpg", "file%d.txt", "part-%05d.csv", "node%02d.log",
+                "report_v%d.pdf", "chapter%02d.md", "data%d.bin" };
+        List<String> files = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        while (files.size() < count) {
+            String name = String.format(patterns[random.nextInt(patterns.length)], random.nextInt(count));
+            if (seen.add(name)) {
+                files.add(name);
+            }
+        }
+        return files;
+    }
+}
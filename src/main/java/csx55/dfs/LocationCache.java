@@ -0,0 +1,151 @@
+package csx55.dfs;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import csx55.wireformats.PeerRef;
+
+/*
+Remembers which peer is responsible for which stretch of the ring, so a repeated upload or download of the same
+(or a nearby) file name goes straight to its peer instead of being routed through the fingers again.
+An entry is a ring range (start, end] owned by the peer at end. Entries come from lookup results and from what the
+ring messages reveal about the neighbours (a joiner owns the range up to it, a successor owns the range after us).
+Entries expire after csx55.cache.ttl milliseconds, and all of them are dropped at once when this peer sees the ring
+change (a join, exit or failover bumps the epoch). A peer that turns out not to own a key it was cached for is
+removed with invalidate(). At most csx55.cache.size ranges are kept; when it is full the oldest entry goes.
+ */
+public class LocationCache {
+
+    public static final String TTL_PROPERTY = "csx55.cache.ttl";
+    public static final String SIZE_PROPERTY = "csx55.cache.size";
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final long ttlMillis;
+    private final int capacity;
+
+    // range end (the owner's peerID) -> entry, in unsigned ring order
+    private final TreeMap<Long, Entry> ranges = new TreeMap<>((a, b) -> Long.compareUnsigned(a, b));
+    private long epoch = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public LocationCache() {
+        this(Long.getLong(TTL_PROPERTY, DEFAULT_TTL_MILLIS), Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    public LocationCache(long ttlMillis, int capacity) {
+        this.ttlMillis = ttlMillis;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    // the cached peer responsible for key, or null on a miss
+    public synchronized PeerRef get(long key) {
+        Map.Entry<Long, Entry> candidate = ranges.ceilingEntry(key);
+        if (candidate == null) {
+            // wrap around to the lowest range end
+            candidate = ranges.firstEntry();
+        }
+        if (candidate != null) {
+            Entry entry = candidate.getValue();
+            if (entry.epoch != epoch || entry.expiresAt < System.currentTimeMillis()) {
+                ranges.remove(candidate.getKey());
+            } else if (FingerTable.isBetweenHalfOpen(key, entry.start, entry.owner.getPeerID())) {
+                hits.incrementAndGet();
+                return entry.owner;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // a lookup found that owner is responsible for key
+    public void putKey(long key, PeerRef owner) {
+        put(key - 1, owner);
+    }
+
+    /*
+     * Records that owner is responsible for the range (start, owner]. A range already cached for the same owner
+     * is widened if the new one reaches further back, so successive lookups build up the owner's whole range.
+     */
+    public synchronized void put(long start, PeerRef owner) {
+        if (owner == null || start == owner.getPeerID()) {
+            return;
+        }
+        long end = owner.getPeerID();
+        long now = System.currentTimeMillis();
+        Entry existing = ranges.get(end);
+        if (existing != null && existing.epoch == epoch && existing.expiresAt >= now && existing.owner.equals(owner)
+                && Long.compareUnsigned(end - existing.start, end - start) > 0) {
+            start = existing.start;
+        }
+        if (existing == null && ranges.size() >= capacity) {
+            evictOldest();
+        }
+        ranges.put(end, new Entry(owner, start, epoch, now + ttlMillis));
+    }
+
+    // owner turned a request away, or couldn't be reached: forget everything cached for that peer
+    public synchronized void invalidate(PeerRef owner) {
+        if (owner == null) {
+            return;
+        }
+        Iterator<Entry> entries = ranges.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().owner.getHostPort().equals(owner.getHostPort())) {
+                entries.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    // the ring changed around this peer, nothing cached before can be trusted
+    public synchronized void newEpoch() {
+        epoch++;
+        ranges.clear();
+    }
+
+    private void evictOldest() {
+        Long oldest = null;
+        long oldestExpiry = Long.MAX_VALUE;
+        for (Map.Entry<Long, Entry> entry : ranges.entrySet()) {
+            if (entry.getValue().expiresAt < oldestExpiry) {
+                oldestExpiry = entry.getValue().expiresAt;
+                oldest = entry.getKey();
+            }
+        }
+        if (oldest != null) {
+            ranges.remove(oldest);
+        }
+    }
+
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : hits.get() / (double) lookups;
+    }
+
+    public synchronized String getInfo() {
+        return "Location cache\nRanges: " + ranges.size() + " (max " + capacity + ", ttl " + ttlMillis + " ms, epoch " + epoch + ")"
+                + "\nHits: " + hits.get() + "\nMisses: " + misses.get()
+                + "\nHit rate: " + String.format("%.1f%%", 100 * getHitRate())
+                + "\nInvalidated: " + invalidations.get() + "\n";
+    }
+
+    private static class Entry {
+        final PeerRef owner;
+        final long start; // exclusive
+        final long epoch;
+        final long expiresAt;
+
+        Entry(PeerRef owner, long start, long epoch, long expiresAt) {
+            this.owner = owner;
+            this.start = start;
+            this.epoch = epoch;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
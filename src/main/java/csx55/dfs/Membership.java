@@ -0,0 +1,236 @@
+package csx55.dfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+The discovery's table of registered ring positions (one per virtual node, hostname:port by ring ID).
+Positions are kept in a concurrent skip list ordered the way the ring is (unsigned IDs), so successor and predecessor
+queries take O(log N) and listing them needs no sort. A second, array backed index holds the same positions in no
+particular order so a random one can be drawn in O(1): a removal moves the last slot into the freed one. The positions
+of each peer are also grouped by hostname:port, so deregistering a peer touches only its own positions.
+Readers never lock. Adds and removes take a short lock so the three indexes change together, the work around them
+(checking the ID, answering the peer) runs in parallel.
+ */
+public class Membership {
+
+    // one registered ring position
+    public static final class Member {
+        private final long id;
+        private final String node; // hostname:port of the peer that owns it
+        private int slot; // index in the sampling array, only changed under indexLock
+
+        Member(long id, String node) {
+            this.id = id;
+            this.node = node;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getNode() {
+            return node;
+        }
+    }
+
+    private static final int SAMPLE_ATTEMPTS = 16; // random draws before sampleOther falls back to a walk
+
+    private final ConcurrentSkipListMap<Long, Member> ring = new ConcurrentSkipListMap<>(Long::compareUnsigned);
+    private final ConcurrentHashMap<String, Set<Long>> positionsByNode = new ConcurrentHashMap<>();
+
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private volatile AtomicReferenceArray<Member> slots = new AtomicReferenceArray<>(16);
+    private volatile int size = 0;
+
+    // adds the position, false if the ID is registered already
+    public boolean add(long id, String node) {
+        Member member = new Member(id, node);
+        indexLock.lock();
+        try {
+            if (ring.putIfAbsent(id, member) != null) {
+                return false;
+            }
+            positionsByNode.computeIfAbsent(node, key -> ConcurrentHashMap.newKeySet()).add(id);
+            AtomicReferenceArray<Member> current = slots;
+            if (size == current.length()) {
+                AtomicReferenceArray<Member> grown = new AtomicReferenceArray<>(current.length() * 2);
+                for (int i = 0; i < size; i++) {
+                    grown.set(i, current.get(i));
+                }
+                slots = grown;
+                current = grown;
+            }
+            member.slot = size;
+            current.set(size, member);
+            size = size + 1;
+        } finally {
+            indexLock.unlock();
+        }
+        return true;
+    }
+
+    // removes one position, false if it wasn't registered
+    public boolean remove(long id) {
+        indexLock.lock();
+        try {
+            Member member = ring.remove(id);
+            if (member == null) {
+                return false;
+            }
+            Set<Long> ids = positionsByNode.get(member.node);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    positionsByNode.remove(member.node);
+                }
+            }
+            AtomicReferenceArray<Member> current = slots;
+            int last = size - 1;
+            Member moved = current.get(last);
+            moved.slot = member.slot;
+            current.set(member.slot, moved);
+            current.set(last, null);
+            size = last;
+        } finally {
+            indexLock.unlock();
+        }
+        return true;
+    }
+
+    // removes every position of the peer at hostname:port, returns how many there were
+    public int removeNode(String node) {
+        Set<Long> ids = positionsByNode.get(node);
+        if (ids == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (Long id : List.copyOf(ids)) {
+            if (remove(id)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public boolean contains(long id) {
+        return ring.containsKey(id);
+    }
+
+    public Member get(long id) {
+        return ring.get(id);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // number of positions the peer at hostname:port has registered
+    public int positionCount(String node) {
+        Set<Long> ids = positionsByNode.get(node);
+        return ids == null ? 0 : ids.size();
+    }
+
+    // number of distinct peers, each with one or more positions
+    public int nodeCount() {
+        return positionsByNode.size();
+    }
+
+    // a position drawn uniformly at random, null if there are none
+    public Member sample() {
+        while (true) {
+            AtomicReferenceArray<Member> current = slots;
+            int count = Math.min(size, current.length());
+            if (count == 0) {
+                return null;
+            }
+            Member member = current.get(ThreadLocalRandom.current().nextInt(count));
+            if (member != null) {
+                return member;
+            }
+            // raced with a removal that cleared the last slot, draw again
+        }
+    }
+
+    // a random position that belongs to another peer than node, null if node is the only peer
+    public Member sampleOther(String node) {
+        if (positionsByNode.isEmpty() || (positionsByNode.size() == 1 && positionsByNode.containsKey(node))) {
+            return null;
+        }
+        for (int i = 0; i < SAMPLE_ATTEMPTS; i++) {
+            Member member = sample();
+            if (member == null) {
+                return null;
+            }
+            if (!member.node.equals(node)) {
+                return member;
+            }
+        }
+        // node owns nearly all positions, take the first other one after a random point instead
+        Member start = sample();
+        if (start == null) {
+            return null;
+        }
+        for (Member member : ring.tailMap(start.id).values()) {
+            if (!member.node.equals(node)) {
+                return member;
+            }
+        }
+        for (Member member : ring.values()) {
+            if (!member.node.equals(node)) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    // the first position at or after key, wrapping around the ring, null if there are none
+    public Member successorOf(long key) {
+        Map.Entry<Long, Member> entry = ring.ceilingEntry(key);
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry == null ? null : entry.getValue();
+    }
+
+    // the first position after id (never id itself), null if id is the only one
+    public Member successorAfter(long id) {
+        Map.Entry<Long, Member> entry = ring.higherEntry(id);
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry == null || entry.getKey() == id ? null : entry.getValue();
+    }
+
+    // the last position before id (never id itself), null if id is the only one
+    public Member predecessorOf(long id) {
+        Map.Entry<Long, Member> entry = ring.lowerEntry(id);
+        if (entry == null) {
+            entry = ring.lastEntry();
+        }
+        return entry == null || entry.getKey() == id ? null : entry.getValue();
+    }
+
+    // up to count positions following id on the ring, id itself excluded
+    public List<Member> successorsAfter(long id, int count) {
+        List<Member> successors = new ArrayList<>(count);
+        Member next = successorAfter(id);
+        while (next != null && successors.size() < count && next.id != id && !successors.contains(next)) {
+            successors.add(next);
+            next = successorAfter(next.id);
+        }
+        return successors;
+    }
+
+    // all positions in ring order
+    public Iterable<Member> inRingOrder() {
+        return ring.values();
+    }
+}
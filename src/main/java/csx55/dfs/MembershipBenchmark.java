@@ -0,0 +1,205 @@
+package csx55.dfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+/*
+Measures the discovery's membership operations at growing ring sizes, comparing the two ways Discovery has kept them:
+before: a Collections.synchronizedMap(HashMap). A random peer is drawn from a fresh copy of the values, a successor
+        query copies the map into a TreeMap first and listing the peers sorts them
+after:  Membership, a skip list in ring order plus an array index for random draws
+Positions are random 64 bit IDs spread over peers of 8 virtual nodes, as a real ring would register them.
+ */
+public class MembershipBenchmark {
+
+    private static long sink; // keeps the JIT from dropping the work
+
+    // run with: java csx55.dfs.MembershipBenchmark [largest ring size] [threads]
+    public static void main(String[] args) throws InterruptedException {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        for (int size = 1000; size <= largest; size *= 10) {
+            long[] ids = randomIds(size + 10000, size);
+            Map<Long, String> before = Collections.synchronizedMap(new HashMap<>());
+            Membership after = new Membership();
+            for (int i = 0; i < size; i++) {
+                before.put(ids[i], nodeOf(i));
+                after.add(ids[i], nodeOf(i));
+            }
+            // the old structure is O(N) per call, so it gets fewer iterations at the bigger sizes
+            int slowIterations = Math.max(20, 2000000 / size);
+            int fastIterations = 200000;
+
+            System.out.println("\n" + size + " registered positions");
+            System.out.println(String.format("%-28s %14s %14s %10s", "operation", "before ns", "after ns", "speedup"));
+            // warm up, then measure
+            for (int round = 0; round < 2; round++) {
+                boolean print = round == 1;
+                report(print, "register + deregister", registerBefore(before, ids, size, slowIterations), registerAfter(after, ids, size, fastIterations));
+                report(print, "random other peer", sampleBefore(before, slowIterations), sampleAfter(after, fastIterations));
+                report(print, "successor of ID", successorBefore(before, ids, slowIterations), successorAfter(after, ids, fastIterations));
+                report(print, "list in ring order", listBefore(before, Math.max(3, slowIterations / 100)), listAfter(after, Math.max(3, slowIterations / 100)));
+            }
+            System.out.println(String.format("%d threads registering %d positions at once: %.0f registrations/s (each thread also draws and queries)",
+                    threads, size, concurrentRegistrations(ids, size, threads)));
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static void report(boolean print, String operation, double before, double after) {
+        if (print) {
+            System.out.println(String.format("%-28s %14.1f %14.1f %9.1fx", operation, before, after, before / after));
+        }
+    }
+
+    // a peer has 8 positions, so position i belongs to peer i / 8
+    private static String nodeOf(int i) {
+        return "10.0." + (i / 8 / 250) % 250 + "." + (i / 8) % 250 + ":" + (40000 + i / 8 / 62500);
+    }
+
+    private static long[] randomIds(int count, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = random.nextLong();
+        }
+        return ids;
+    }
+
+    // registerNode as it was: put, then collect the other peers' positions to pick a random one
+    private static double registerBefore(Map<Long, String> peers, long[] ids, int size, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long id = ids[size + i % 10000];
+            String node = nodeOf(size + i % 10000);
+            synchronized (MembershipBenchmark.class) { // registerNode was synchronized
+                peers.put(id, node);
+                List<String> others = new ArrayList<>();
+                synchronized (peers) {
+                    for (String peer : peers.values()) {
+                        if (!peer.equals(node)) {
+                            others.add(peer);
+                        }
+                    }
+                }
+                sink += others.get((int) (Math.random() * others.size())).length();
+            }
+            synchronized (peers) {
+                peers.values().removeIf(node::equals);
+            }
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double registerAfter(Membership membership, long[] ids, int size, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long id = ids[size + i % 10000];
+            String node = nodeOf(size + i % 10000);
+            membership.add(id, node);
+            sink += membership.sampleOther(node).getId();
+            membership.removeNode(node);
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    // the random draw the way the request described it: keySet().toArray() per attempt
+    private static double sampleBefore(Map<Long, String> peers, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Object[] keys;
+            synchronized (peers) {
+                keys = peers.keySet().toArray();
+            }
+            sink += (Long) keys[(int) (Math.random() * keys.length)];
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double sampleAfter(Membership membership, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += membership.sampleOther("none:0").getId();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    // the ring snapshot as it was first built: copy into a TreeMap in ring order, then look the ID up
+    private static double successorBefore(Map<Long, String> peers, long[] ids, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            TreeMap<Long, String> ring = new TreeMap<>(Long::compareUnsigned);
+            synchronized (peers) {
+                ring.putAll(peers);
+            }
+            Map.Entry<Long, String> entry = ring.ceilingEntry(ids[i % ids.length] + 1);
+            sink += (entry != null ? entry : ring.firstEntry()).getKey();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double successorAfter(Membership membership, long[] ids, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += membership.successorOf(ids[i % ids.length] + 1).getId();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double listBefore(Map<Long, String> peers, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            synchronized (peers) {
+                peers.entrySet().stream()
+                    .sorted((a, b) -> Long.compareUnsigned(a.getKey(), b.getKey()))
+                    .forEach(entry -> sink += entry.getKey());
+            }
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double listAfter(Membership membership, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Membership.Member member : membership.inRingOrder()) {
+                sink += member.getId();
+            }
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    // threads register disjoint parts of ids into an empty Membership, each registration followed by a draw and
+    // a successor query the way Discovery answers it
+    private static double concurrentRegistrations(long[] ids, int size, int threads) throws InterruptedException {
+        Membership membership = new Membership();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int from = size * t / threads;
+            int to = size * (t + 1) / threads;
+            new Thread(() -> {
+                long local = 0;
+                for (int i = from; i < to; i++) {
+                    String node = nodeOf(i);
+                    membership.add(ids[i], node);
+                    Membership.Member other = membership.sampleOther(node);
+                    Membership.Member successor = membership.successorAfter(ids[i]);
+                    local += (other == null ? 0 : other.getId()) + (successor == null ? 0 : successor.getId());
+                }
+                synchronized (MembershipBenchmark.class) {
+                    sink += local;
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return size / ((System.nanoTime() - start) / 1e9);
+    }
+}
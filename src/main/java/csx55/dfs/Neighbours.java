@@ -0,0 +1,51 @@
+package csx55.dfs;
+
+import java.util.List;
+
+import csx55.wireformats.PeerRef;
+
+/*
+One consistent view of a virtual node's place on the ring: its predecessor, its successor and the successor list
+that starts with it. A Neighbours is never modified. FingerTable swaps in a new one with compare-and-set, so a
+reader always gets a predecessor, successor and list that were current together, and two event handlers changing
+them at the same time can't overwrite each other's update without seeing it.
+ */
+public final class Neighbours {
+
+    static final Neighbours NONE = new Neighbours(null, null, List.of());
+
+    private final PeerRef predecessor;
+    private final PeerRef successor;
+    private final List<PeerRef> successors; // [0] is successor, empty while there is none
+
+    Neighbours(PeerRef predecessor, PeerRef successor, List<PeerRef> successors) {
+        this.predecessor = predecessor;
+        this.successor = successor;
+        this.successors = successors;
+    }
+
+    public PeerRef getPredecessor() {
+        return predecessor;
+    }
+
+    public PeerRef getSuccessor() {
+        return successor;
+    }
+
+    public List<PeerRef> getSuccessors() {
+        return successors;
+    }
+
+    Neighbours withPredecessor(PeerRef predecessor) {
+        return new Neighbours(predecessor, successor, successors);
+    }
+
+    Neighbours withSuccessors(PeerRef successor, List<PeerRef> successors) {
+        return new Neighbours(predecessor, successor, successors);
+    }
+
+    @Override
+    public String toString() {
+        return "Predecessor: " + predecessor + "\nSuccessor: " + successor + "\nSuccessor list: " + successors;
+    }
+}
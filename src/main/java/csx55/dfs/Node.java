@@ -2,6 +2,7 @@ package csx55.dfs;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Path;
 import csx55.wireformats.Event;
 
 public interface Node {
@@ -19,6 +20,16 @@ public interface Node {
      * 
      * @return The generated unique node ID.
      */
-    int generateNodeID(String node);
+    long generateNodeID(String node);
+
+    /**
+     * Directory that incoming file bodies are written into. It should be on the same file system as the
+     * node's storage so a received file can be renamed into place instead of copied.
+     * 
+     * @return The directory, or null to use a fresh temporary directory per file.
+     */
+    default Path getIncomingDirectory() {
+        return null;
+    }
 
 }
\ No newline at end of file
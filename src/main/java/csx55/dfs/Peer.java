@@ -2,32 +2,48 @@ package csx55.dfs;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.Scanner;
 
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import csx55.transport.BufferPool;
+import csx55.transport.ConnectionPool;
+import csx55.transport.EventDispatcher;
+import csx55.transport.OutboundQueues;
+import csx55.transport.RequestTracker;
+import csx55.transport.SendFailedException;
 import csx55.transport.TCPRecieverThread;
 import csx55.transport.TCPSender;
-import csx55.transport.TCPServerThread;
+import csx55.transport.ThreadMode;
+import csx55.transport.ServerThread;
+import csx55.transport.TransportFactory;
 import csx55.wireformats.*;
 import csx55.storage.*;
 
 
 public class Peer implements Node {
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
     // Associated Server Thread
-    private TCPServerThread serverThread;
+    private ServerThread serverThread;
 
     // Discovery Information 
     private Socket discoverySocket; // socket to connect to the discovery
@@ -39,16 +55,81 @@ public class Peer implements Node {
     private String IpAddress; // ip Address
     private int portNumber = 0;  // port number
     private String node; // hostname:port
-    private int peerID; // unique peer ID
+    private long peerID; // unique peer ID, KeyHasher hash of hostname:port
 
     // File Manager
     private FileHandler fileHandler;
 
-    // Neighbor Information
-    String predecessor; // <peerID> <ip-addresss>:<port-number>
-    String successor; // <peerID> <ip-addresss>:<port-number>
-
-    Boolean isExiting = false;
+    // Hands incoming events to onEvent on the control or bulk executor
+    private final EventDispatcher dispatcher = new EventDispatcher(this);
+
+    // Outgoing connections to other peers, reused across messages
+    private final ConnectionPool connectionPool = new ConnectionPool();
+
+    // A queue and writer per destination in front of the pool, senders never wait on another peer's socket
+    private final OutboundQueues outbound = new OutboundQueues(connectionPool);
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+    // Requests waiting for their response, matched by request ID
+    private final RequestTracker requestTracker = new RequestTracker();
+    private static final long JOIN_LOOKUP_TIMEOUT_MILLIS = 30000;
+    private static final long LOOKUP_TIMEOUT_MILLIS = 30000;
+    private static final long STABILIZE_TIMEOUT_MILLIS = 3000; // a successor silent for this long is taken as crashed
+    private static final int RELAY_ATTEMPTS = 3; // next hops tried for a lookup before it is left to time out
+
+    // Lookup mode: recursive (each hop relays the request) or iterative (the requester asks each hop itself,
+    // alpha at a time, each with its own timeout)
+    public static final String LOOKUP_MODE_PROPERTY = "csx55.lookup";
+    public static final String LOOKUP_ALPHA_PROPERTY = "csx55.lookup.alpha";
+    public static final String HOP_TIMEOUT_PROPERTY = "csx55.lookup.hopTimeout";
+    private final byte defaultLookupMode = parseLookupMode(System.getProperty(LOOKUP_MODE_PROPERTY, "recursive"));
+    private final int lookupAlpha = Math.max(1, Integer.getInteger(LOOKUP_ALPHA_PROPERTY, 3));
+    private final long hopTimeoutMillis = Long.getLong(HOP_TIMEOUT_PROPERTY, 2000);
+
+    // who owned which keys recently, lets repeated file operations skip the routing
+    private final LocationCache locationCache = new LocationCache();
+
+    // round trips to the peers we talk to, the finger tables forward to the nearest of equally good next hops
+    private final LatencyTracker latencies = new LatencyTracker();
+
+    // Positions on the ring. Each virtual node has its own predecessor, successor and finger table,
+    // ring messages name the virtual node they are for in their target field
+    public static final String VIRTUAL_NODES_PROPERTY = "csx55.vnodes";
+    public static final String WEIGHT_PROPERTY = "csx55.weight";
+    public static final int DEFAULT_VIRTUAL_NODES = 8; // positions of a peer with weight 1
+    public static final int MAX_VIRTUAL_NODES = 256; // the discovery refuses virtual indexes past this
+    private final ConcurrentHashMap<Long, VirtualNode> virtualNodes = new ConcurrentHashMap<>(); // by virtual peerID
+    private VirtualNode[] virtualNodeList; // by virtual index, [0] sits at this node's own peerID
+
+    // runs the stabilization rounds and join retries
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final StabilizationScheduler stabilizer = new StabilizationScheduler(scheduler, () -> {
+        // send a stabilize message to the successor of each virtual node
+        stabilize();
+        // and refresh part of their finger tables
+        fixFingers();
+    });
+    private static final int JOIN_ATTEMPTS = 10;
+    private static final int JOIN_RETRY_DELAY_SECONDS = 2;
+    private volatile long joinStartedAt; // when virtual node 0 registered, to report how long joining took
+
+    // Chord routing, finger lookups started per virtual node each stabilization period
+    public static final String FIX_FINGERS_PROPERTY = "csx55.fixFingers";
+    public static final int DEFAULT_FIX_FINGERS = 4; // finger lookups started per stabilization period
+    private final int fingersPerRound = Integer.getInteger(FIX_FINGERS_PROPERTY, DEFAULT_FIX_FINGERS);
+
+    // hop counts of the lookups this node started
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupHops = new AtomicLong();
+    private final AtomicInteger maxLookupHops = new AtomicInteger();
+
+    // set once by exitChord, from then on ring messages are ignored
+    private final AtomicBoolean exiting = new AtomicBoolean(false);
+
+    // Heartbeats renew this peer's lease at the discovery, which drops peers that stop sending them
+    public static final String HEARTBEAT_PROPERTY = "csx55.heartbeat";
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 5000;
+    private final AtomicBoolean reregistering = new AtomicBoolean(false);
 
 
     public Peer(String hostname, int port) {
@@ -67,7 +148,7 @@ public class Peer implements Node {
     public void bootUpNodeConnection() {
         // start the server thread
         try {
-            setServerThread(new TCPServerThread(this.portNumber, this)); // 0 means the OS will pick a port number
+            setServerThread(TransportFactory.createServerThread(this.portNumber, this.dispatcher)); // 0 means the OS will pick a port number
             new Thread(this.serverThread).start();  // start the server thread
         } catch (IOException e) {
             System.out.println("Failed to start the server: " + e.getMessage());
@@ -79,8 +160,7 @@ public class Peer implements Node {
         // set the node to the hostname:port
         this.node = this.IpAddress + ":" + this.portNumber;
         this.peerID = generateNodeID(this.node);
-        this.successor = null;
-        this.predecessor = null;
+        createVirtualNodes();
 
         // instantiate the file handler
         this.fileHandler = new FileHandler(this);
@@ -97,33 +177,142 @@ public class Peer implements Node {
             TCPSender sender = new TCPSender(this.discoverySocket);
             setDiscoverySenderSocket(sender);
             // create a new thread to listen for responses from the discovery
-            TCPRecieverThread reciever = new TCPRecieverThread(this.discoverySocket, this);
-            new Thread(reciever).start();  // start the reciever thread
-            // create the register request
-            RegisterRequest registerRequest = new RegisterRequest(peerID, IpAddress, portNumber);
-            System.out.println("Printing Register Request Info: \n" + registerRequest.getInfo());
-            // send the register request
-            discoverySenderSocket.sendData(registerRequest.getBytes());
+            TCPRecieverThread reciever = new TCPRecieverThread(this.discoverySocket, this.dispatcher);
+            ThreadMode.start(reciever, "discovery-receiver-");  // start the reciever thread
         } catch (IOException e) {
-            System.out.println("Failed to send the register request: " + e.getMessage());
+            System.out.println("Failed to connect to the discovery: " + e.getMessage());
+            return;
+        }
+        // the other virtual nodes are registered one after another once this one has found its place
+        registerVirtualNode(0);
+    }
+
+    /*
+     * Creates this peer's virtual nodes. A peer with weight w gets round(w * csx55.vnodes) of them, so a
+     * machine with twice the weight owns about twice as many keys. Virtual node i sits at the hash of
+     * hostname:port#i, node 0 at the hash of hostname:port itself.
+     */
+    private void createVirtualNodes() {
+        int count = getVirtualNodeCount();
+        VirtualNode[] list = new VirtualNode[count];
+        for (int i = 0; i < count; i++) {
+            long virtualID = generateNodeID(KeyHasher.virtualNodeName(this.node, i));
+            list[i] = new VirtualNode(i, PeerRef.fromNode(virtualID, this.node));
+            list[i].getFingerTable().setLatencyTracker(latencies);
+            if (virtualNodes.putIfAbsent(virtualID, list[i]) != null) {
+                System.out.println("Virtual node " + i + " has the same ID as another one, it is left off the ring.");
+            }
+        }
+        this.virtualNodeList = list;
+        System.out.println("Joining the ring at " + count + " virtual positions.");
+    }
+
+    public static int getVirtualNodeCount() {
+        int perUnitWeight = Integer.getInteger(VIRTUAL_NODES_PROPERTY, DEFAULT_VIRTUAL_NODES);
+        double weight = Double.parseDouble(System.getProperty(WEIGHT_PROPERTY, "1"));
+        return (int) Math.max(1, Math.min(MAX_VIRTUAL_NODES, Math.round(perUnitWeight * weight)));
+    }
+
+    // rounds come quickly while the ring is changing and back off while it is quiet, see StabilizationScheduler
+    public void initiateStabilizationScheduler() {
+        stabilizer.start(StabilizationScheduler.DEFAULT_MIN_PERIOD_MILLIS);
+    }
+
+    // one heartbeat per period renews the lease on all of this peer's virtual nodes
+    public void initiateHeartbeats() {
+        long period = Math.max(100, Long.getLong(HEARTBEAT_PROPERTY, DEFAULT_HEARTBEAT_MILLIS));
+        scheduler.scheduleAtFixedRate(this::sendHeartbeat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendHeartbeat() {
+        if (exiting.get()) {
+            return;
+        }
+        int joined = 0;
+        for (VirtualNode vnode : virtualNodeList) {
+            if (vnode.getSuccessor() != null) {
+                joined++;
+            }
+        }
+        if (joined == 0) {
+            // nothing registered yet
+            return;
+        }
+        try {
+            discoverySenderSocket.sendData(new Heartbeat(IpAddress, portNumber, joined).getBytes());
+        } catch (IOException e) {
+            System.out.println("Failed to send a heartbeat to the discovery: " + e.getMessage());
+        }
+    }
+
+    /*
+     * The discovery lost our registration (the lease ran out while it couldn't hear from us), so the virtual
+     * nodes on the ring register again. They keep their place, only the discovery's table is refilled; positions
+     * it still has answer "previously registered", which is fine.
+     */
+    private void reregister() {
+        if (!reregistering.compareAndSet(false, true)) {
+            return;
+        }
+        List<CompletableFuture<Event>> responses = new ArrayList<>();
+        for (VirtualNode vnode : virtualNodeList) {
+            if (vnode.getSuccessor() == null) {
+                continue;
+            }
+            try {
+                RegisterRequest registerRequest = new RegisterRequest(vnode.getID(), IpAddress, portNumber, vnode.getIndex());
+                responses.add(requestTracker.register(registerRequest, JOIN_LOOKUP_TIMEOUT_MILLIS));
+                discoverySenderSocket.sendData(registerRequest.getBytes());
+            } catch (IOException e) {
+                System.out.println("Failed to register virtual node " + vnode.getIndex() + " again: " + e.getMessage());
+            }
+        }
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+            reregistering.set(false);
+            System.out.println("Registered " + responses.size() + " virtual nodes with the discovery again.");
+        });
+    }
+
+    /*
+     * The discovery says these peers are gone, they deregistered or their lease ran out. They are dropped from
+     * routing right away, and a virtual node whose successor was one of them fails over now instead of after a
+     * stabilize timeout. A predecessor that left is cleared so the next peer back can stabilize into its place.
+     */
+    private void membershipUpdateHandler(MembershipUpdate update) {
+        for (String departed : update.getDeparted()) {
+            if (departed.equals(node)) {
+                continue;
+            }
+            System.out.println("The discovery reports that " + departed + " has left.");
+            for (VirtualNode vnode : virtualNodeList) {
+                PeerRef successor = vnode.getSuccessor();
+                if (successor != null && successor.getHostPort().equals(departed)) {
+                    successorFailed(vnode, successor, new IOException("its lease at the discovery ended"));
+                }
+                PeerRef predecessor = vnode.getPredecessor();
+                if (predecessor != null && predecessor.getHostPort().equals(departed)) {
+                    vnode.compareAndSetPredecessor(predecessor, null);
+                }
+            }
+            removeFromFingerTables(PeerRef.fromNode(0, departed));
+            connectionPool.closeConnections(departed);
         }
+        stabilizer.ringChanged("departure");
     }
 
-    public void initiateStabilizationScheduler(int delay, int period) {
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-        executor.scheduleAtFixedRate(() -> {
-            // send a stabilize message to the successor
-            stabilize();
-        }, delay, period, TimeUnit.SECONDS);
+    @Override
+    public long generateNodeID(String node) {
+        // Return the hash of the unique identifier <IP>:<port> (this.node)
+        return KeyHasher.getInstance().hash(node);
     }
 
     @Override
-    public int generateNodeID(String node) {
-        // Return the hash code of the unique identifier <IP>:<port> (this.node)
-        return node.hashCode();
+    public Path getIncomingDirectory() {
+        // file bodies land next to the store so storing them is a rename
+        return fileHandler.getIncomingDirectory();
     }
 
-    public void setServerThread(TCPServerThread serverThread) {
+    public void setServerThread(ServerThread serverThread) {
         this.serverThread = serverThread;
     }
 
@@ -147,7 +336,7 @@ public class Peer implements Node {
         return portNumber;
     }
 
-    public int getPeerID() {
+    public long getPeerID() {
         return peerID;
     }
 
@@ -155,7 +344,38 @@ public class Peer implements Node {
         return node;
     }
 
-    public void deregisterNode(int peerID, String discoveryHost, int discoveryPort) throws IOException {
+    // this node as it is sent to other peers, at its own peerID
+    public PeerRef getSelf() {
+        return virtualNodeList[0].getSelf();
+    }
+
+    public VirtualNode[] getVirtualNodes() {
+        return virtualNodeList;
+    }
+
+    // the virtual node of ours that peer refers to, or null if it is some other peer
+    private VirtualNode getLocalVirtualNode(PeerRef peer) {
+        if (peer == null || !peer.getHostPort().equals(this.node)) {
+            return null;
+        }
+        return virtualNodes.get(peer.getPeerID());
+    }
+
+    // is peer one of this node's virtual nodes?
+    public boolean isLocal(PeerRef peer) {
+        return getLocalVirtualNode(peer) != null;
+    }
+
+    private boolean hasJoinedVirtualNode() {
+        for (VirtualNode vnode : virtualNodeList) {
+            if (vnode.isJoined()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void deregisterNode(long peerID, String discoveryHost, int discoveryPort) throws IOException {
         try{
             // create a new deregister request
             DeregisterRequest deregisterRequest = new DeregisterRequest(peerID, IpAddress, portNumber);
@@ -175,9 +395,15 @@ public class Peer implements Node {
             try {
                 // let the successor know that I am leaving
                 DeregisterRequest deregisterRequest = new DeregisterRequest(peerID, IpAddress, portNumber);
-                sendToNode(successor.split(" ")[1], deregisterRequest);
+                PeerRef successor = remoteSuccessor(virtualNodeList[0]);
+                if (successor != null) {
+                    sendToNode(successor, deregisterRequest);
+                }
                 // close the server thread
                 serverThread.shutdown();
+                // the outbound connections stay open, exitChord still sends the exit notices and migrations
+                // stop handing out new events
+                dispatcher.shutdown();
                 // close the connection to the discovery
                 discoverySenderSocket.closeSocket();
                 discoverySocket.close();
@@ -188,21 +414,86 @@ public class Peer implements Node {
         }
     }
 
-    public synchronized void sendToNode(String node, Event message){
+    /*
+     * Queues the message for the node and returns right away, false if it couldn't even be queued (the node
+     * failed moments ago or its queue is full). A write that fails later is only logged, callers that need to
+     * know use send().
+     */
+    public boolean sendToNode(String node, Event message){
         // node is the hostname:port of the next node
-        String[] nodeInfo = node.split(":");
-        String host = nodeInfo[0];
-        int port = Integer.parseInt(nodeInfo[1]);
-        Socket socket = null;
-        try{
-            socket = new Socket(host, port);
-            TCPSender sender = new TCPSender(socket);
-            sender.sendData(message.getBytes());
-            // Disable the output stream for this socket
-            // socket.shutdownOutput();
-        } catch (IOException e) {
-            System.out.println("Failed to send message to node: " + node + "\nerror: " + e.getMessage());
-        } 
+        return !send(node, message).isCompletedExceptionally();
+    }
+
+    // ring messages are addressed to the virtual node peer refers to
+    public boolean sendToNode(PeerRef peer, Event message) {
+        return !send(peer, message).isCompletedExceptionally();
+    }
+
+    /*
+     * Queues the message on the node's outbound queue. The future completes once it has been written, or fails
+     * with a SendFailedException if it was dropped or the node couldn't be reached.
+     * The message is encoded before this returns, so it (and any buffer it wraps) can be reused right away.
+     */
+    public CompletableFuture<Void> send(String node, Event message) {
+        return outbound.send(node, message);
+    }
+
+    public CompletableFuture<Void> send(PeerRef peer, Event message) {
+        if (message instanceof RingEvent) {
+            ((RingEvent) message).setTarget(peer.getPeerID());
+        }
+        return send(peer.getHostPort(), message);
+    }
+
+    /*
+     * Sends a request and returns a future for the response that carries its request ID.
+     * The future fails if the request can't be sent or no response arrives within the timeout.
+     */
+    public CompletableFuture<Event> sendRequest(String node, Event request, long timeoutMillis) {
+        CompletableFuture<Event> response = requestTracker.register(request, timeoutMillis);
+        failOnSendError(send(node, request), request);
+        return response;
+    }
+
+    public CompletableFuture<Event> sendRequest(PeerRef peer, Event request, long timeoutMillis) {
+        CompletableFuture<Event> response = requestTracker.register(request, timeoutMillis);
+        failOnSendError(send(peer, request), request);
+        return response;
+    }
+
+    // a request that never left fails now instead of at its timeout
+    private void failOnSendError(CompletableFuture<Void> sent, Event request) {
+        sent.whenComplete((ok, error) -> {
+            if (error != null) {
+                requestTracker.fail(request, error);
+            }
+        });
+    }
+
+    // for requests the peer answers itself: the round trip is recorded as that peer's latency
+    public CompletableFuture<Event> timedRequest(PeerRef peer, Event request, long timeoutMillis) {
+        long sent = System.nanoTime();
+        return sendRequest(peer, request, timeoutMillis)
+            .thenApply(response -> {
+                latencies.record(peer, System.nanoTime() - sent);
+                return response;
+            });
+    }
+
+    public LocationCache getLocationCache() {
+        return locationCache;
+    }
+
+    public RequestTracker getRequestTracker() {
+        return requestTracker;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public OutboundQueues getOutboundQueues() {
+        return outbound;
     }
 
     public void sleep(int time) {
@@ -214,93 +505,658 @@ public class Peer implements Node {
         }
     }
 
+    /*
+     * Leaves the ring. Consecutive virtual nodes of ours form runs on the ring; for each run the first other
+     * peer after it is told the run's remote predecessor is now its predecessor, and every file goes to the
+     * first other peer after the virtual node that owns it.
+     */
     public void exitChord() {
-        // send a message to the successor to update its predecessor
-        PeerExit peerExit = new PeerExit(this.predecessor);
-        sendToNode(this.successor.split(" ")[1], peerExit);
+        if (!exiting.compareAndSet(false, true)) {
+            System.out.println("Already exiting.");
+            return;
+        }
+        for (VirtualNode vnode : virtualNodeList) {
+            PeerRef successor = vnode.getSuccessor();
+            if (successor == null || isLocal(successor)) {
+                // not on the ring, or the run of my virtual nodes goes on
+                continue;
+            }
+            PeerRef predecessor = remotePredecessor(vnode);
+            if (predecessor == null) {
+                continue;
+            }
+            PeerExit peerExit = new PeerExit(predecessor);
+            sendToNode(successor, peerExit);
+        }
         sleep(1000);
         // Migrate the data 
         for (String fileName : fileHandler.getFileList().keySet()) {
-            int fileHash = fileName.hashCode();
+            long fileHash = KeyHasher.getInstance().hash(fileName);
+            VirtualNode owner = owningVirtualNode(fileHash);
+            PeerRef target = owner == null ? null : remoteSuccessor(owner);
+            if (target == null) {
+                System.out.println("No other peer to take " + fileName + ", leaving it here.");
+                continue;
+            }
             File file = fileHandler.retrieveFile(fileName);
             if (file != null) {
-                System.out.println("Migrating file: " + fileName + " to node: " + this.successor.split(" ")[1]);
+                System.out.println("Migrating file: " + fileName + " to node: " + target.getHostPort());
                 Migration migration = new Migration(file, fileHash, this.node, true);
-                sendToNode(this.successor.split(" ")[1], migration);
+                sendToNode(target, migration);
             } else {
                 System.out.println("While Exiting, File not found: " + fileName);
             }
         }
+        // let the writers finish what is queued (the exit notices and migrations), then close the connections
+        if (!outbound.flush(FLUSH_TIMEOUT_MILLIS)) {
+            System.out.println("Gave up on messages still queued after " + FLUSH_TIMEOUT_MILLIS + " ms");
+        }
+        outbound.shutdown();
+        connectionPool.shutdown();
+    }
+
+    // first peer after vnode that isn't one of ours, null if every node we know of is ours
+    private PeerRef remoteSuccessor(VirtualNode vnode) {
+        PeerRef successor = vnode.getSuccessor();
+        for (int n = 0; n < virtualNodeList.length && successor != null; n++) {
+            VirtualNode local = getLocalVirtualNode(successor);
+            if (local == null) {
+                return successor;
+            }
+            successor = local.getSuccessor();
+        }
+        return null;
+    }
+
+    // last peer before vnode that isn't one of ours, null if every node we know of is ours
+    private PeerRef remotePredecessor(VirtualNode vnode) {
+        PeerRef predecessor = vnode.getPredecessor();
+        for (int n = 0; n < virtualNodeList.length && predecessor != null; n++) {
+            VirtualNode local = getLocalVirtualNode(predecessor);
+            if (local == null) {
+                return predecessor;
+            }
+            predecessor = local.getPredecessor();
+        }
+        return null;
+    }
+
+    // the joined virtual node at or after key that is closest to it, the one storing key
+    private VirtualNode owningVirtualNode(long key) {
+        VirtualNode owner = null;
+        for (VirtualNode vnode : virtualNodeList) {
+            if (vnode.isJoined() && (owner == null || Long.compareUnsigned(vnode.getID() - key, owner.getID() - key) < 0)) {
+                owner = vnode;
+            }
+        }
+        return owner;
+    }
+
+    // the joined virtual node before key that is closest to it, where a lookup of key starts
+    private VirtualNode closestVirtualNode(long key) {
+        VirtualNode closest = null;
+        for (VirtualNode vnode : virtualNodeList) {
+            if (vnode.isJoined() && (closest == null || Long.compareUnsigned(key - vnode.getID(), key - closest.getID()) < 0)) {
+                closest = vnode;
+            }
+        }
+        return closest;
     }
 
     public void stabilize() {
-        // send a stabilize message to the successor
+        // send a stabilize message to the successor of each virtual node
         // Debug
         // System.out.println("Sending Stabilize message to the successor."); 
-        if (this.successor == null) {
+        if (!hasJoinedVirtualNode()) {
             System.out.println("Successor is null. So, not sending the stabilize message.");
             return;
         }
-        if (this.successor.equals(this.peerID + " " + this.node)) {
-            System.out.println("I am the only node in the network. So, not sending the stabilize message.");
+        for (VirtualNode vnode : virtualNodeList) {
+            stabilize(vnode);
+        }
+    }
+
+    /*
+     * Asks the successor of vnode for its predecessor and successor list. A successor that doesn't answer
+     * within STABILIZE_TIMEOUT_MILLIS is taken to have crashed and the next entry of the successor list
+     * takes its place, so a dead neighbour is replaced within one stabilization period.
+     */
+    private void stabilize(VirtualNode vnode) {
+        PeerRef successor = vnode.getSuccessor();
+        if (successor == null || successor.equals(vnode.getSelf())) {
+            // not joined yet, or alone on the ring
             return;
         }
-        Stabilize stabilizeMessage = new Stabilize(this.node);
-        sendToNode(this.successor.split(" ")[1], stabilizeMessage);
+        Stabilize stabilizeMessage = new Stabilize(vnode.getSelf());
+        timedRequest(successor, stabilizeMessage, STABILIZE_TIMEOUT_MILLIS)
+            .thenAccept(response -> handleStabilizeResponse(vnode, successor, (StabilizeResponse) response))
+            .exceptionally(error -> {
+                successorFailed(vnode, successor, error);
+                return null;
+            });
     }
 
-    public void handleRegistrationResponse(RegisterResponse registerResponse) {
-        if (registerResponse.getSuccessStatus() == Protocol.SUCCESS) {
-            System.out.println("Printing Register Response Info: \n" + registerResponse.getInfo());
-            String randPeer = registerResponse.getPeer();
-            if (randPeer.equals("NULL")){
-                System.out.println("Printing Register Response Info (NULL rand peer): \n" + registerResponse.getInfo());
-                return;
-            } else if (randPeer.equals(node)) {
-                System.out.println("I am the only node in the network.");
-                this.successor = peerID + " " + node;
-                this.predecessor = peerID + " " + node;
+    private void handleStabilizeResponse(VirtualNode vnode, PeerRef successor, StabilizeResponse stabilizeResponse) {
+        PeerRef predecessor = stabilizeResponse.getPredecessor();
+        if (predecessor != null && !predecessor.equals(vnode.getSelf())
+                && FingerTable.isBetweenOpen(predecessor.getPeerID(), vnode.getID(), successor.getPeerID())) {
+            // a node joined between me and my successor, it is my successor now (unless another answer moved it already)
+            if (!vnode.compareAndSetSuccessor(successor, predecessor)) {
                 return;
             }
-            System.out.println("Asking Random peer: " + randPeer + " who my successor is.");
-            // send a message to the random peer to compute my successor
-            FindSuccessorRequest findSuccessor = new FindSuccessorRequest(this.node);
-            // create sender socket for the random peer
-            sendToNode(randPeer, findSuccessor);
+            System.out.println("Updated successor of virtual node " + vnode.getIndex() + " from : " + successor + " to " + predecessor);
+            stabilizer.ringChanged("new successor");
+            // let it know about me now rather than next period
+            stabilize(vnode);
+            return;
+        }
+        if (vnode.updateSuccessorList(successor, stabilizeResponse.getSuccessors())) {
+            stabilizer.ringChanged("successor list change");
+        }
+        learnPeers(stabilizeResponse.getSuccessors());
+        // the successor owns the keys up to it, and the first peer on its list the ones after that
+        if (vnode.getSelf().equals(predecessor) && !isLocal(successor)) {
+            locationCache.put(vnode.getID(), successor);
+        }
+        List<PeerRef> successorsOfSuccessor = stabilizeResponse.getSuccessors();
+        if (!successorsOfSuccessor.isEmpty() && successorsOfSuccessor.get(0) != null && !isLocal(successorsOfSuccessor.get(0))) {
+            locationCache.put(successor.getPeerID(), successorsOfSuccessor.get(0));
+        }
+    }
+
+    // the successor crashed without exiting, move on to the next live entry of the successor list
+    private void successorFailed(VirtualNode vnode, PeerRef successor, Throwable error) {
+        System.out.println("Successor " + successor + " of virtual node " + vnode.getIndex() + " is not answering: " + error.getMessage());
+        removeFromFingerTables(successor);
+        PeerRef next = vnode.failOver(successor);
+        if (next == null) {
+            // someone else moved the successor on already
+            return;
+        }
+        if (next.equals(vnode.getSelf())) {
+            System.out.println("No other successor is known. Waiting for a predecessor to stabilize with me.");
+            return;
+        }
+        System.out.println("Failing over to " + next);
+        locationCache.newEpoch();
+        stabilizer.ringChanged("failover");
+        // the new successor's predecessor is gone too, I take its place the same way as when a peer exits
+        PeerExit peerExit = new PeerExit(vnode.getSelf());
+        sendToNode(next, peerExit);
+        // and check right away that the new successor is alive
+        stabilize(vnode);
+    }
+
+    public void fixFingers() {
+        for (VirtualNode vnode : virtualNodeList) {
+            fixFingers(vnode);
+        }
+    }
+
+    /*
+     * Refreshes the next few fingers of a virtual node by looking up their start keys.
+     * A finger whose start still falls before the previous finger's peer has the same successor, so it is
+     * copied instead of looked up; only the fingers that point somewhere new cost a lookup, about log N of them.
+     */
+    private void fixFingers(VirtualNode vnode) {
+        FingerTable fingerTable = vnode.getFingerTable();
+        PeerRef successor = vnode.getSuccessor();
+        if (successor == null || successor.equals(vnode.getSelf())) {
+            return;
+        }
+        int started = 0;
+        for (int n = 1; n < FingerTable.BITS && started < fingersPerRound; n++) {
+            int i = fingerTable.nextFingerToFix();
+            PeerRef previous = fingerTable.getFinger(i - 1);
+            if (previous != null && FingerTable.isBetweenHalfOpen(fingerTable.start(i), vnode.getID(), previous.getPeerID())) {
+                fingerTable.setFinger(i, previous);
+                continue;
+            }
+            started++;
+            routeLookup(fingerTable.start(i), RELAY_ATTEMPTS)
+                .thenAccept(response -> {
+                    if (response.getSuccessor() != null) {
+                        fingerTable.resolveFinger(i, response.getSuccessor());
+                        learnPeer(response.getSuccessor());
+                    }
+                })
+                .exceptionally(error -> {
+                    System.out.println("Failed to fix finger " + i + " of virtual node " + vnode.getIndex() + ": " + error.getMessage());
+                    return null;
+                });
+        }
+        probeCandidates(vnode);
+    }
+
+    /*
+     * Measures the round trip to next hop candidates of vnode that haven't been measured lately. The probe is an
+     * iterative lookup of the candidate's own ID, which it answers straight away with its successor list; the
+     * peers right after it usually fall in the same finger interval, so they become candidates too.
+     */
+    private void probeCandidates(VirtualNode vnode) {
+        for (PeerRef candidate : vnode.getFingerTable().candidatesToProbe(fingersPerRound)) {
+            FindSuccessorRequest probe = new FindSuccessorRequest(getSelf(), candidate.getPeerID(), FindSuccessorRequest.ITERATIVE);
+            timedRequest(candidate, probe, hopTimeoutMillis)
+                .thenAccept(response -> learnPeers(((FindSuccessorResponse) response).getCandidates()))
+                .exceptionally(error -> {
+                    if (error instanceof IOException || error.getCause() instanceof IOException) {
+                        removeFromFingerTables(candidate);
+                    }
+                    return null;
+                });
+        }
+    }
+
+    // offers a peer we heard of to every finger table as a next hop candidate
+    private void learnPeer(PeerRef peer) {
+        if (peer == null || isLocal(peer)) {
+            return;
+        }
+        for (VirtualNode vnode : virtualNodeList) {
+            vnode.getFingerTable().offerCandidate(peer);
+        }
+    }
+
+    private void learnPeers(List<PeerRef> peers) {
+        for (PeerRef peer : peers) {
+            learnPeer(peer);
+        }
+    }
+
+    /*
+     * Runs a lookup of key as far as this peer's own virtual nodes can take it. It starts at the virtual node
+     * closest before the key and keeps going while the next hop is another virtual node of ours, so only hops
+     * to other peers cost a message. Returns null if none of our virtual nodes is on the ring yet.
+     */
+    private FingerTable.Route routeLocally(long key) {
+        VirtualNode owner = owningVirtualNode(key);
+        PeerRef ownerPredecessor = owner == null ? null : owner.getPredecessor();
+        if (ownerPredecessor != null && FingerTable.isBetweenHalfOpen(key, ownerPredecessor.getPeerID(), owner.getID())) {
+            // the key is ours, no other virtual node needs to be asked
+            return new FingerTable.Route(owner.getSelf(), true);
+        }
+        VirtualNode current = closestVirtualNode(key);
+        if (current == null) {
+            return null;
+        }
+        FingerTable.Route route = current.findSuccessor(key);
+        for (int n = 0; n < virtualNodeList.length && !route.isFinal(); n++) {
+            VirtualNode next = getLocalVirtualNode(route.getSuccessor());
+            if (next == null) {
+                break;
+            }
+            current = next;
+            route = current.findSuccessor(key);
+        }
+        return route;
+    }
+
+    /*
+     * Finds the peer responsible for key. It is answered locally when one of our virtual nodes already knows
+     * the key's successor or the location cache has an owner for it, otherwise a FindSuccessorRequest goes to the closest preceding finger and is
+     * forwarded from finger to finger until a peer knows the answer, which that peer sends straight back to us.
+     */
+    public CompletableFuture<FindSuccessorResponse> lookup(long key) {
+        return lookup(key, defaultLookupMode);
+    }
+
+    // mode is FindSuccessorRequest.RECURSIVE or ITERATIVE
+    public CompletableFuture<FindSuccessorResponse> lookup(long key, byte mode) {
+        FingerTable.Route route = routeLocally(key);
+        if (route != null && !route.isFinal()) {
+            // a recent lookup or a ring message may already have told us who it is, that costs no hops
+            PeerRef cached = locationCache.get(key);
+            if (cached != null) {
+                recordLookup(0);
+                return CompletableFuture.completedFuture(new FindSuccessorResponse(true, cached, key, 0));
+            }
+        }
+        return findSuccessor(key, mode)
+            .thenApply(response -> {
+                if (response.getSuccessor() != null && !isLocal(response.getSuccessor())) {
+                    locationCache.putKey(key, response.getSuccessor());
+                }
+                return response;
+            });
+    }
+
+    private CompletableFuture<FindSuccessorResponse> findSuccessor(long key, byte mode) {
+        return mode == FindSuccessorRequest.ITERATIVE ? iterativeLookup(key) : routeLookup(key, RELAY_ATTEMPTS);
+    }
+
+    public static byte parseLookupMode(String mode) {
+        return "iterative".equalsIgnoreCase(mode) ? FindSuccessorRequest.ITERATIVE : FindSuccessorRequest.RECURSIVE;
+    }
+
+    // the lookup driven from here, see IterativeLookup
+    private CompletableFuture<FindSuccessorResponse> iterativeLookup(long key) {
+        FingerTable.Route route = routeLocally(key);
+        if (route == null || route.isFinal()) {
+            recordLookup(0);
+            PeerRef successor = route == null ? getSelf() : route.getSuccessor();
+            return CompletableFuture.completedFuture(new FindSuccessorResponse(true, successor, key, 0));
+        }
+        List<PeerRef> firstHops = nextHopCandidates(key, lookupAlpha);
+        if (!firstHops.contains(route.getSuccessor())) {
+            firstHops.add(0, route.getSuccessor());
+        }
+        return new IterativeLookup(this, key, lookupAlpha, hopTimeoutMillis).start(firstHops)
+            .thenApply(response -> {
+                recordLookup(response.getHopCount());
+                return response;
+            });
+    }
+
+    // the closest preceding fingers of all my virtual nodes that belong to other peers, closest to the key first
+    private List<PeerRef> nextHopCandidates(long key, int count) {
+        List<PeerRef> candidates = new ArrayList<>();
+        for (VirtualNode vnode : virtualNodeList) {
+            if (!vnode.isJoined()) {
+                continue;
+            }
+            for (PeerRef finger : vnode.getFingerTable().closestPrecedingFingers(key, count)) {
+                if (!isLocal(finger) && !candidates.contains(finger)) {
+                    candidates.add(finger);
+                }
+            }
+        }
+        candidates.sort((a, b) -> Long.compareUnsigned(key - a.getPeerID(), key - b.getPeerID()));
+        return candidates.size() > count ? new ArrayList<>(candidates.subList(0, count)) : candidates;
+    }
+
+    /*
+     * Times count lookups of random keys in the given mode, without the location cache, and prints the latency
+     * percentiles. Run it in both modes while peers come and go to compare their tails.
+     */
+    public void benchmarkLookups(int count, byte mode) {
+        Random random = new Random();
+        long[] micros = new long[count];
+        int done = 0;
+        int failed = 0;
+        long hops = 0;
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            try {
+                FindSuccessorResponse response = findSuccessor(random.nextLong(), mode).get(LOOKUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                micros[done++] = (System.nanoTime() - start) / 1000;
+                hops += response.getHopCount();
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        Arrays.sort(micros, 0, done);
+        String name = mode == FindSuccessorRequest.ITERATIVE ? "iterative" : "recursive";
+        if (done == 0) {
+            System.out.println(name + ": all " + failed + " lookups failed");
+            return;
+        }
+        System.out.println(String.format("%s: %d lookups, %d failed, %.2f hops on average%n  latency p50 %d us, p90 %d us, p99 %d us, max %d us",
+                name, done, failed, hops / (double) done, micros[done / 2], micros[(int) (done * 0.9)], micros[(int) (done * 0.99)], micros[done - 1]));
+    }
+
+    /*
+     * The routed lookup itself, without the location cache; fixFingers and joins use it directly so the ring
+     * state they build never comes from a stale cache entry.
+     * A first hop that can't be reached is dropped from the tables and the lookup routed around it.
+     */
+    private CompletableFuture<FindSuccessorResponse> routeLookup(long key, int attemptsLeft) {
+        FingerTable.Route route = routeLocally(key);
+        if (route == null || route.isFinal()) {
+            recordLookup(0);
+            PeerRef successor = route == null ? getSelf() : route.getSuccessor();
+            return CompletableFuture.completedFuture(new FindSuccessorResponse(true, successor, key, 0));
+        }
+        PeerRef nextHop = route.getSuccessor();
+        FindSuccessorRequest request = new FindSuccessorRequest(getSelf(), key);
+        CompletableFuture<FindSuccessorResponse> response = sendRequest(nextHop, request, LOOKUP_TIMEOUT_MILLIS)
+            .thenApply(answer -> {
+                FindSuccessorResponse lookupResponse = (FindSuccessorResponse) answer;
+                recordLookup(lookupResponse.getHopCount());
+                return lookupResponse;
+            });
+        // the request never reached the next hop (a timeout could just be a slow ring and is not retried)
+        return response.exceptionallyCompose(error -> {
+            if (!SendFailedException.isSendFailure(error)) {
+                return CompletableFuture.failedFuture(error);
+            }
+            removeFromFingerTables(nextHop);
+            if (attemptsLeft > 1) {
+                return routeLookup(key, attemptsLeft - 1);
+            }
+            return CompletableFuture.failedFuture(error);
+        });
+    }
+
+    private void recordLookup(int hops) {
+        lookups.incrementAndGet();
+        lookupHops.addAndGet(hops);
+        maxLookupHops.accumulateAndGet(hops, Math::max);
+    }
+
+    public String getLookupInfo() {
+        long count = lookups.get();
+        double average = count == 0 ? 0 : lookupHops.get() / (double) count;
+        return "Lookups: " + count + "\nAverage hops: " + String.format("%.2f", average) + "\nMax hops: " + maxLookupHops.get()
+                + "\nCache hit rate: " + String.format("%.1f%%", 100 * locationCache.getHitRate()) + "\n";
+    }
+
+    /*
+     * Answers a FindSuccessorRequest or relays it to the closest preceding finger. If that finger can't be
+     * reached it is dropped from the tables and the request is routed again around it.
+     */
+    private void routeFindSuccessor(FindSuccessorRequest findSuccessorRequest, int attemptsLeft) {
+        PeerRef requestingNode = findSuccessorRequest.getRequester();
+        // find the successor of the key, or the closest finger before it, starting from my closest virtual node
+        long key = findSuccessorRequest.getKey();
+        FingerTable.Route result = routeLocally(key);
+
+        // For the case when none of my virtual nodes is on the ring yet, many nodes are joining at once so some may not be ready
+        if (result == null) {
+            // Debug
+            System.out.println("Not on the ring yet. So, telling the requester to ask again.");
+            FindSuccessorResponse notReady = new FindSuccessorResponse(false, null, key, findSuccessorRequest.getHopCount());
+            notReady.setRequestID(findSuccessorRequest.getRequestID());
+            sendToNode(requestingNode, notReady);
+            return;
+        }
+        // Debug
+        System.out.println("Returned node after search for successor is " + Long.toUnsignedString(result.getSuccessorID()) + "  " + result.getSuccessorHostPort());
+        
+        if (result.isFinal()) {
+            // Debug
+            System.out.println("Successor found after " + findSuccessorRequest.getHopCount() + " hops. Sending the response to the node.");
+            // the answer goes straight back to the node that started the lookup
+            FindSuccessorResponse requestResponse;
+            VirtualNode answering = getLocalVirtualNode(result.getSuccessor());
+            if (findSuccessorRequest.getMode() == FindSuccessorRequest.ITERATIVE && answering != null) {
+                // the peers after it come along, an iterative requester can use them as next hop candidates
+                requestResponse = new FindSuccessorResponse(true, result.getSuccessor(), key, findSuccessorRequest.getHopCount(),
+                        answering.getSuccessorList());
+            } else {
+                requestResponse = new FindSuccessorResponse(true, result.getSuccessor(), key, findSuccessorRequest.getHopCount());
+            }
+            requestResponse.setRequestID(findSuccessorRequest.getRequestID());
+            sendToNode(requestingNode, requestResponse);
+            return;
+        }
+        if (findSuccessorRequest.getMode() == FindSuccessorRequest.ITERATIVE) {
+            // the requester drives the lookup, tell it who to ask next instead of relaying
+            FindSuccessorResponse step = new FindSuccessorResponse(false, result.getSuccessor(), key, findSuccessorRequest.getHopCount(),
+                    nextHopCandidates(key, lookupAlpha));
+            step.setRequestID(findSuccessorRequest.getRequestID());
+            sendToNode(requestingNode, step);
+            return;
+        }
+        // Debug
+        System.out.println("The successor is not me. So, sending the request to the closest preceding finger " + result.getSuccessorHostPort());
+        // relay the message to the closest finger for the requesting node
+        FindSuccessorRequest request = new FindSuccessorRequest(requestingNode, key);
+        request.setRequestID(findSuccessorRequest.getRequestID()); // keep the originator's request ID so the answer reaches its caller
+        request.setHopCount(findSuccessorRequest.getHopCount() + 1);
+        send(result.getSuccessor(), request).whenComplete((ok, error) -> {
+            if (error != null) {
+                // that finger is gone, route around it
+                removeFromFingerTables(result.getSuccessor());
+                if (attemptsLeft > 1) {
+                    routeFindSuccessor(findSuccessorRequest, attemptsLeft - 1);
+                }
+            }
+        });
+    }
+
+    /*
+     * Registers virtual node index with the discovery. The virtual nodes register one at a time, the next
+     * one once this one has found its successor, so later ones can join by routing through earlier ones.
+     */
+    private void registerVirtualNode(int index) {
+        if (index == 0) {
+            joinStartedAt = System.currentTimeMillis();
+        }
+        if (index >= virtualNodeList.length) {
+            System.out.println("All " + virtualNodeList.length + " virtual nodes have joined the ring in " + (System.currentTimeMillis() - joinStartedAt) + " ms.");
+            return;
+        }
+        VirtualNode vnode = virtualNodeList[index];
+        try {
+            RegisterRequest registerRequest = new RegisterRequest(vnode.getID(), IpAddress, portNumber, index);
+            System.out.println("Printing Register Request Info: \n" + registerRequest.getInfo());
+            // the discovery echoes the request ID, so the response finds its way back to this virtual node
+            requestTracker.register(registerRequest, JOIN_LOOKUP_TIMEOUT_MILLIS)
+                .thenAccept(response -> handleRegistrationResponse(vnode, (RegisterResponse) response))
+                .exceptionally(error -> {
+                    System.out.println("Registration of virtual node " + index + " failed: " + error.getMessage());
+                    return null;
+                });
+            discoverySenderSocket.sendData(registerRequest.getBytes());
+        } catch (IOException e) {
+            System.out.println("Failed to send the register request: " + e.getMessage());
+        }
+    }
+
+    public void handleRegistrationResponse(VirtualNode vnode, RegisterResponse registerResponse) {
+        System.out.println("Printing Register Response Info: \n" + registerResponse.getInfo());
+        if (registerResponse.getSuccessStatus() != Protocol.SUCCESS) {
+            return;
+        }
+        String randPeer = registerResponse.getPeer();
+        if (randPeer.equals("NULL")) {
+            System.out.println("Printing Register Response Info (NULL rand peer): \n" + registerResponse.getInfo());
+            return;
+        }
+        if (registerResponse.hasRingSnapshot()) {
+            // the discovery sent the registered positions around this one, take the place without a lookup
+            joinFromSnapshot(vnode, registerResponse);
+        } else if (hasJoinedVirtualNode()) {
+            // part of this peer is on the ring already, find the successor through it
+            routeLookup(vnode.getID(), RELAY_ATTEMPTS)
+                .thenAccept(response -> findSuccessorHandler(vnode, response))
+                .exceptionally(error -> {
+                    System.out.println("Failed to find the successor of virtual node " + vnode.getIndex() + ": " + error.getMessage());
+                    return null;
+                });
+        } else if (randPeer.equals(node)) {
+            System.out.println("I am the only node in the network.");
+            vnode.setSuccessor(vnode.getSelf());
+            vnode.setPredecessor(vnode.getSelf());
+            registerVirtualNode(vnode.getIndex() + 1);
         } else {
-            System.out.println("Printing Register Response Info: \n" + registerResponse.getInfo());
+            joinThrough(vnode, randPeer, 1);
         }
     }
 
-    public void findSuccessorHandler(FindSuccessorResponse findSuccessorResponse) {
+    // asks randPeer for the successor of vnode, again after a pause if randPeer isn't on the ring yet
+    private void joinThrough(VirtualNode vnode, String randPeer, int attempt) {
+        System.out.println("Asking Random peer: " + randPeer + " who the successor of virtual node " + vnode.getIndex() + " is.");
+        FindSuccessorRequest findSuccessor = new FindSuccessorRequest(vnode.getSelf());
+        // the answer comes back to this request's future
+        sendRequest(randPeer, findSuccessor, JOIN_LOOKUP_TIMEOUT_MILLIS)
+            .thenAccept(response -> {
+                FindSuccessorResponse findSuccessorResponse = (FindSuccessorResponse) response;
+                if (findSuccessorResponse.getSuccessStatus() != Protocol.SUCCESS && attempt < JOIN_ATTEMPTS) {
+                    System.out.println(randPeer + " is not on the ring yet, asking again in " + JOIN_RETRY_DELAY_SECONDS + " seconds.");
+                    scheduler.schedule(() -> joinThrough(vnode, randPeer, attempt + 1), JOIN_RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+                    return;
+                }
+                findSuccessorHandler(vnode, findSuccessorResponse);
+            })
+            .exceptionally(error -> {
+                System.out.println("Failed to find my successor through " + randPeer + ": " + error.getMessage());
+                return null;
+            });
+    }
+
+    /*
+     * Joins with the discovery's snapshot of the ring: the successor and successor list, the predecessor and
+     * a finger table filled from it, all in the one round trip of the registration. The snapshot can be behind
+     * (a position may still be joining or already gone), the JOIN_RESPONSE and stabilization correct that.
+     */
+    private void joinFromSnapshot(VirtualNode vnode, RegisterResponse snapshot) {
+        System.out.println("The discovery placed virtual node " + vnode.getIndex() + " between " + snapshot.getPredecessor() + " and " + snapshot.getSuccessor());
+        vnode.getFingerTable().seedFingers(snapshot.getFingers());
+        learnPeers(snapshot.getFingers());
+        vnode.offerPredecessor(snapshot.getPredecessor());
+        List<PeerRef> successors = snapshot.getSuccessors();
+        vnode.setSuccessor(successors.get(0), successors.subList(1, successors.size()));
+        joinSuccessor(vnode);
+    }
+
+    public void findSuccessorHandler(VirtualNode vnode, FindSuccessorResponse findSuccessorResponse) {
         System.out.println("Printing Find Successor Response Info: \n" + findSuccessorResponse.getInfo());
         if (findSuccessorResponse.getSuccessStatus() == Protocol.SUCCESS) {
-            String newSuccessor = findSuccessorResponse.getSuccessorNode();
-            int newSuccessorID = newSuccessor.hashCode();
+            PeerRef newSuccessor = findSuccessorResponse.getSuccessor();
             // Debug
-            System.out.println("Updated successor from : " + this.successor + " to " + newSuccessorID + "  " + newSuccessor);
-            this.successor = newSuccessorID + " " + newSuccessor;
-            
-            // send join message to the successor
-            try{
-                JoinRequest joinMessage = new JoinRequest(this.node);
-                sendToNode(newSuccessor, joinMessage);
-            } catch (IOException e) {
-                System.out.println("Failed to send join message to successor: " + e.getMessage());
-            }
+            System.out.println("Updated successor of virtual node " + vnode.getIndex() + " from : " + vnode.getSuccessor() + " to " + newSuccessor);
+            vnode.setSuccessor(newSuccessor);
+            joinSuccessor(vnode);
         } else {
             System.out.println("Failed to find the successor: " + findSuccessorResponse.getInfo());
         }
     }
+
+    // vnode has its successor, tell the successor about it and let the next virtual node join
+    private void joinSuccessor(VirtualNode vnode) {
+        stabilizer.ringChanged("join");
+        // send join message to the successor
+        JoinRequest joinMessage = new JoinRequest(vnode.getSelf());
+        sendToNode(vnode.getSuccessor(), joinMessage);
+        registerVirtualNode(vnode.getIndex() + 1);
+    }
+
+    // a peer left the ring, none of the virtual nodes should route through it any more
+    void removeFromFingerTables(PeerRef peer) {
+        if (peer == null) {
+            return;
+        }
+        for (VirtualNode vnode : virtualNodeList) {
+            vnode.getFingerTable().removePeer(peer);
+        }
+        locationCache.invalidate(peer);
+        latencies.remove(peer);
+    }
     
     // -------------------------------------------------- On Event Switch --------------------------------------------------
 
     public void onEvent(Event event, Socket socket) throws IOException {
 
+        // responses to requests made with sendRequest go to the caller waiting on them
+        if (Protocol.isResponse(event.getType()) && requestTracker.complete(event)) {
+            return;
+        }
+
+        // ring messages are for one of the virtual nodes
+        VirtualNode vnode = null;
+        if (event instanceof RingEvent) {
+            vnode = virtualNodes.get(((RingEvent) event).getTarget());
+            if (vnode == null) {
+                System.out.println("No virtual node " + Long.toUnsignedString(((RingEvent) event).getTarget()) + " here. Ignoring message of type " + event.getType());
+                return;
+            }
+        }
+
         switch (event.getType()) {
 
             case Protocol.DEREGISTER_REQUEST:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
@@ -310,13 +1166,8 @@ public class Peer implements Node {
                 break;
 
             case Protocol.REGISTER_RESPONSE:
-                if (isExiting) {
-                    System.out.println("Already exiting. Ignoring the deregister request.");
-                    return;
-                }
-                // casting the event to a RegisterResponse
-                RegisterResponse registerResponse = (RegisterResponse) event;
-                handleRegistrationResponse(registerResponse);
+                // registrations are tracked by request ID, one that gets here answered after its timeout
+                System.out.println("Ignoring late register response: \n" + ((RegisterResponse) event).getInfo());
                 break;
 
             case Protocol.PEER_EXIT:
@@ -324,11 +1175,19 @@ public class Peer implements Node {
                 // casting the event to a PeerExit
                 PeerExit peerExit = (PeerExit) event;
                 System.out.println("Printing Peer Exit Info: \n" + peerExit.getInfo());
-                // set my predecessor to the peerExit nodes predecessor
-                this.predecessor = peerExit.getPredecessor();
-                // notify predecessor to update its successor
-                NotifyPredecessor exitNotifyMessage = new NotifyPredecessor(this.peerID, this.node);
-                sendToNode(this.predecessor.split(" ")[1], exitNotifyMessage);
+                // the exiting node was my predecessor, the peerExit node's predecessor takes its place
+                PeerRef leaving = vnode.getPredecessor();
+                if (!vnode.compareAndSetPredecessor(leaving, peerExit.getPredecessor())) {
+                    System.out.println("Predecessor of virtual node " + vnode.getIndex() + " changed meanwhile, stabilization takes it from here.");
+                    break;
+                }
+                // stop routing through it
+                removeFromFingerTables(leaving);
+                locationCache.newEpoch();
+                stabilizer.ringChanged("peer exit");
+                // notify predecessor to update its successor, it takes my successor list along
+                NotifyPredecessor exitNotifyMessage = new NotifyPredecessor(vnode.getSelf(), vnode.getSuccessorList());
+                sendToNode(peerExit.getPredecessor(), exitNotifyMessage);
                 break;
             
             case Protocol.DEREGISTER_RESPONSE:
@@ -338,120 +1197,82 @@ public class Peer implements Node {
                 break;
 
             case Protocol.FIND_SUCCESSOR_REQUEST:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
                 // cast the event to a FindSuccessorRequest
                 FindSuccessorRequest findSuccessorRequest = (FindSuccessorRequest) event;
-                String requestingNode = findSuccessorRequest.getNode();
+                PeerRef requestingNode = findSuccessorRequest.getRequester();
                 System.out.println("Printing Find Successor Request Info: \n" + findSuccessorRequest.getInfo());
 
-                // For the case when the successor is null, many nodes are joining at once so some may not be ready
-                if (this.successor == null) {
-                    // Debug
-                    System.out.println("Successor is null. So, requesting new rand node from Discovery.");
-                    String originalIp = findSuccessorRequest.getIpAddress();
-                    int originalPort = findSuccessorRequest.getPortNumber();
-                    int originalPeerID = requestingNode.hashCode();
-                    RegisterRequest registerRequest = new RegisterRequest(originalPeerID, originalIp, originalPort);
-                    discoverySenderSocket.sendData(registerRequest.getBytes());
-                    break;
-                }
-
-                // For the case when only one node is in the network and a new node is joining
-                if (this.successor.equals(this.peerID + " " + this.node) && this.predecessor.equals(this.peerID + " " + this.node)) {
-                    // Debug
-                    System.out.println("Only one node in the network, so adding the new node as the successor.");
-                    FindSuccessorResponse requestResponse = new FindSuccessorResponse(true, this.node);
-                    sendToNode(findSuccessorRequest.getNode(), requestResponse);
-                    break;
-                }
-                
-                // find the successor of the node
-                // Debug
-                System.out.println("Returned node after search for successor is " + result.getSuccessorID() + "  " + result.getSuccessorHostPort());
-                
-                if (result.getSuccessor().equals(this.successor)){
-                    // Debug
-                    System.out.println("Successor found. My successor is your successor.");
-                    String successorHostPort = this.successor.split(" ")[1];
-                    FindSuccessorResponse requestResponse = new FindSuccessorResponse(true, successorHostPort);
-                    sendToNode(findSuccessorRequest.getNode(), requestResponse);
-                } else if (result.getSuccessorID() == this.peerID) {
-                    // Debug
-                    System.out.println("I am the successor. So, sending the response to the node.");
-                    // send the response to the node
-                    FindSuccessorResponse requestResponse = new FindSuccessorResponse(true, this.node);
-                    sendToNode(findSuccessorRequest.getNode(), requestResponse);
-                } else if (result.getSuccessorID() == findSuccessorRequest.getNode().hashCode()) {
-                        // Debug
-                        System.out.println("The successor is the node itself. So, sending the response to the node.");
-                        // send the response to the node
-                        FindSuccessorResponse requestResponse = new FindSuccessorResponse(true, result.getSuccessorHostPort());
-                        sendToNode(findSuccessorRequest.getNode(), requestResponse);
-                        break;
-                } else {
-                    // Debug
-                    System.out.println("The successor is not me. So, sending the request to the next node " + result.getSuccessorHostPort());
-                    // send a findSuccessorRequest to the closest node (relay the message to the closest node for the requesting node)
-                    FindSuccessorRequest request = new FindSuccessorRequest(requestingNode);
-                    sleep(4000);
-                    sendToNode(result.getSuccessorHostPort(), request);
-                }
+                routeFindSuccessor(findSuccessorRequest, RELAY_ATTEMPTS);
                 break;
 
             case Protocol.FIND_SUCCESSOR_RESPONSE:
-                if (isExiting) {
-                    System.out.println("Already exiting. Ignoring the deregister request.");
-                    return;
-                }
-                // cast the event to a FindSuccessorResponse
-                FindSuccessorResponse findSuccessorResponse = (FindSuccessorResponse) event;
-                findSuccessorHandler(findSuccessorResponse);
+                // joins and finger lookups are tracked by request ID, one that gets here answered after its timeout
+                System.out.println("Ignoring late lookup response: " + ((FindSuccessorResponse) event).getInfo());
                 break;
 
             case Protocol.JOIN_REQUEST:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
                 // cast the event to a JoinRequest
                 JoinRequest joinRequest = (JoinRequest) event;
                 System.out.println("Printing Join Request Info: \n" + joinRequest.getInfo());
-                String oldPredecessor = this.predecessor;
-                // set my predecessor to the joinRequest node
-                this.predecessor = joinRequest.getPeerID() + " " + joinRequest.getNode();
+                // the joiner becomes my predecessor unless a closer one joined in the meantime
+                Neighbours replaced = vnode.offerPredecessor(joinRequest.getPeer());
+                PeerRef oldPredecessor = replaced == null ? null : replaced.getPredecessor();
+                if (replaced == null) {
+                    // it will find the peer in between on its first stabilize, a null predecessor tells it to wait for that
+                    System.out.println(joinRequest.getPeer() + " is no longer right before virtual node " + vnode.getIndex() + ", stabilization will place it.");
+                } else {
+                    // the joiner took over part of my keys, and now owns the ones between my old predecessor and it
+                    locationCache.newEpoch();
+                    stabilizer.ringChanged("join");
+                    if (oldPredecessor != null && !isLocal(joinRequest.getPeer())) {
+                        locationCache.put(oldPredecessor.getPeerID(), joinRequest.getPeer());
+                    }
+                }
                 // create a JOIN_RESPONSE message with the predecessor and successor information
-                JoinResponse joinResponseMessage = new JoinResponse(oldPredecessor);
-                sendToNode(joinRequest.getNode(), joinResponseMessage);
+                JoinResponse joinResponseMessage = new JoinResponse(oldPredecessor, vnode.getSuccessorList());
+                joinResponseMessage.setRequestID(joinRequest.getRequestID());
+                sendToNode(joinRequest.getPeer(), joinResponseMessage);
                 break;
 
             case Protocol.JOIN_RESPONSE:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
                 // cast the event to a JoinResponse
                 JoinResponse joinResponse = (JoinResponse) event;
                 System.out.println("Printing Join Response Info: \n" + joinResponse.getInfo());
+                // the successor's list is mine after it, no need to wait for the first stabilize to have something to fail over to
+                vnode.updateSuccessorList(vnode.getSuccessor(), joinResponse.getSuccessors());
+                if (joinResponse.getPredecessor() == null) {
+                    // the successor hasn't learned its own predecessor yet, stabilization fills it in
+                    break;
+                }
             
-                // update the predecessor of the current node
-                this.predecessor = joinResponse.getPredecessor();
+                // update the predecessor of the current node, unless a closer one stabilized with me first
+                if (vnode.offerPredecessor(joinResponse.getPredecessor()) == null) {
+                    break;
+                }
             
                 // reach out to the predecessor to update its successor
-                String[] predecessorInfo = this.predecessor.split(" ");
-                String predecessorNode = predecessorInfo[1];
                 // create a NOTIFY message
-                NotifyPredecessor notifyMessage = new NotifyPredecessor(this.peerID, this.node);
+                NotifyPredecessor notifyMessage = new NotifyPredecessor(vnode.getSelf(), vnode.getSuccessorList());
 
                 // send the NOTIFY message to the predecessor
-                sendToNode(predecessorNode, notifyMessage);
+                sendToNode(joinResponse.getPredecessor(), notifyMessage);
 
                 break;
 
             case Protocol.NOTIFY_PREDECESSOR:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
@@ -459,61 +1280,53 @@ public class Peer implements Node {
                 NotifyPredecessor notify = (NotifyPredecessor) event;
                 System.out.println("Printing NotifyPredecessor Info: \n" + notify.getInfo());
             
-                // update the successor of the current node
-                String newSuccessor = notify.getPeerID() + " " + notify.getNode();
-                this.successor = newSuccessor;
+                // update the successor of the current node, it owns the keys between us
+                Neighbours previous = vnode.setSuccessor(notify.getPeer(), notify.getSuccessors());
+                if (!notify.getPeer().equals(previous.getSuccessor())) {
+                    locationCache.newEpoch();
+                    stabilizer.ringChanged("notify");
+                }
+                if (!isLocal(notify.getPeer())) {
+                    locationCache.put(vnode.getID(), notify.getPeer());
+                }
             
                 break;
 
             case Protocol.STABILIZE:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
                 // cast the event to a Stabilize
                 Stabilize stabilize = (Stabilize) event;
-               
-                if (this.predecessor == null) {
-                    System.out.println("Predecessor is null. So, not sending the stabilize response.");
-                    return;
-                } else if (this.predecessor.equals(this.peerID + " " + this.node)) {
-                    System.out.println("I am the only node in the network. So, not sending the stabilize response.");
-                    return;
-                } else if (!(this.predecessor.equals(stabilize.getNodeID_nodeHostPort()))) {
-                    // check if the sender of the stabilize message is my predecessor
-                    // if not, send a stabilizeResponse message to the sender to update its successor
-                   
-                    // A new node has joined the network between the current node and its predecessor
-                    // create a new stabilizeResponse message and send to the sender
-                    // Debug
-                    System.out.println("Sending Stabilize Response to " + stabilize.getNodeID_nodeHostPort());
-                    StabilizeResponse stabilizeResponse = new StabilizeResponse(this.predecessor);
-                    sendToNode(stabilize.getNode(), stabilizeResponse);
-                    return;
-                } else {
-                    // else just ignore the message, keep those nodes on their toes
-                    // System.out.println("Received a Stabilize message from my predecessor. Ignoring the message.");
-                    break;
+                PeerRef sender = stabilize.getSender();
+
+                // the sender is my predecessor now if it is closer than the one I have (or I had none)
+                Neighbours before = vnode.offerPredecessor(sender);
+                if (before != null) {
+                    System.out.println("Updated predecessor of virtual node " + vnode.getIndex() + " from : " + before.getPredecessor() + " to " + sender);
+                    locationCache.newEpoch();
+                    stabilizer.ringChanged("new predecessor");
                 }
-
-            case Protocol.STABILIZE_RESPONSE:
-                if (isExiting) {
-                    System.out.println("Already exiting. Ignoring the deregister request.");
-                    return;
+                if (vnode.compareAndSetSuccessor(vnode.getSelf(), sender)) {
+                    // I thought I was alone on the ring
+                    stabilizer.ringChanged("second node");
                 }
-                // cast the event to a StabilizeResponse
-                StabilizeResponse stabilizeResponse = (StabilizeResponse) event;
-                System.out.println("Printing Stabilize Response Info: \n" + stabilizeResponse.getInfo());
-                // update the predecessor of the current node
-                this.successor = stabilizeResponse.getPredecessor();
-                // send a join request to the new successor
-                JoinRequest joinRequestMessage = new JoinRequest(this.node);
-                sendToNode(this.successor, joinRequestMessage);
+                // the sender takes my predecessor as its successor if it sits between us,
+                // and keeps my successor list to fail over to
+                Neighbours current = vnode.getNeighbours();
+                StabilizeResponse stabilizeResponse = new StabilizeResponse(current.getPredecessor(), current.getSuccessors());
+                stabilizeResponse.setRequestID(stabilize.getRequestID());
+                sendToNode(sender, stabilizeResponse);
+                break;
 
+            case Protocol.STABILIZE_RESPONSE:
+                // stabilize messages are tracked by request ID, one that gets here answered after its timeout
+                System.out.println("Ignoring late stabilize response: \n" + ((StabilizeResponse) event).getInfo());
                 break;
 
             case Protocol.MIGRATION:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
@@ -523,31 +1336,43 @@ public class Peer implements Node {
             
                 // check if this node is responsible for storing the file
                 String fileName = migration.getFileName();
-                int fileHash = fileName.hashCode();
+                long fileHash = KeyHasher.getInstance().hash(fileName);
+                // either one of my virtual nodes, or the closest finger towards the responsible node, which routes it on
+                FingerTable.Route responsibleNode = routeLocally(fileHash);
             
-                if (responsibleNode.getSuccessorID() == this.getPeerID() || migration.getForce()) {                    // This node is responsible, store the file locally
-                    fileHandler.storeFile(migration.getFile(), migration.getFileIdentifier());
+                if (responsibleNode == null || (responsibleNode.isFinal() && isLocal(responsibleNode.getSuccessor())) || migration.getForce()) {                    // This node is responsible, store the file locally
+                    fileHandler.storeFile(migration.getFile(), migration.getFileName(), migration.getFileIdentifier());
                     // check if the file is stored locally
                     Boolean doesFileExist = fileHandler.fileExists(migration.getFileName());
                     if (doesFileExist) {
                         // create a migration response
                         MigrationResponse migrationResponse = new MigrationResponse(migration.getFileName(), true);
+                        migrationResponse.setRequestID(migration.getRequestID());
                         // send the migration response
                         sendToNode(migration.getOriginatingPeer(), migrationResponse);
                     } else {
                         System.out.println("Failed to store the file locally.");
                         MigrationResponse migrationResponse = new MigrationResponse(migration.getFileName(), false);
+                        migrationResponse.setRequestID(migration.getRequestID());
                         sendToNode(migration.getOriginatingPeer(), migrationResponse);
                     }
                 } else {
                     // This node is not responsible, relay the file to the responsible node
-                    System.out.println("Relaying file to node: " + responsibleNode.getSuccessorHostPort());
-                    sendToNode(responsibleNode.getSuccessorHostPort(), migration);
+                    // (straight to it if the location cache knows it, otherwise to the next hop)
+                    PeerRef relayTo = responsibleNode.getSuccessor();
+                    PeerRef cachedOwner = responsibleNode.isFinal() ? null : locationCache.get(fileHash);
+                    if (cachedOwner != null) {
+                        relayTo = cachedOwner;
+                    }
+                    System.out.println("Relaying file to node: " + relayTo.getHostPort());
+                    // the received copy was only passing through, it can go once the writer has streamed it
+                    File passingThrough = migration.getFile();
+                    send(relayTo, migration).whenComplete((ok, error) -> passingThrough.delete());
                 }
                 break;
 
             case Protocol.MIGRATION_RESPONSE:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
@@ -567,7 +1392,7 @@ public class Peer implements Node {
                     // resend the file
                     // File file = fileHandler.retrieveFile(migrationResponse.getFileName());
                     // if (file != null) {
-                    //     int fileIdentifier = migrationResponse.getFileName().hashCode();
+                    //     long fileIdentifier = KeyHasher.getInstance().hash(migrationResponse.getFileName());
                     //     Migration retryMigration = new Migration(file, fileIdentifier, this.node, false);
                     //     sendToNode(retryingNode.getSuccessorHostPort(), retryMigration);
                     // }
@@ -575,7 +1400,7 @@ public class Peer implements Node {
                 break;
 
             case Protocol.DOWNLOAD_REQUEST:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
@@ -585,27 +1410,79 @@ public class Peer implements Node {
                 // check if the file exists
                 if (fileHandler.fileExists(downloadRequest.getFileName())) {
                     System.out.println("File found. Sending the file to the requesting node.");
+                    File requestedFile = fileHandler.retrieveFile(downloadRequest.getFileName());
+                    if (ChunkSender.shouldChunk(requestedFile)) {
+                        // large files go back in acknowledged chunks, the end of the transfer answers the request
+                        fileHandler.sendChunked(downloadRequest.getHops().get(0).getHostPort(), requestedFile,
+                                FileTransferBegin.DOWNLOAD, downloadRequest.getFileIdentifier(), downloadRequest.getRequestID());
+                        break;
+                    }
                     // create a download response
-                    DownloadResponse downloadResponse = new DownloadResponse(fileHandler.retrieveFile(downloadRequest.getFileName()));
+                    DownloadResponse downloadResponse = new DownloadResponse(requestedFile);
+                    downloadResponse.setRequestID(downloadRequest.getRequestID());
                     // send the download response
-                    sendToNode(downloadRequest.getHops().get(0).split(" ")[1], downloadResponse);
+                    sendToNode(downloadRequest.getHops().get(0), downloadResponse);
                 } else {
+                    FingerTable.Route owner = routeLocally(downloadRequest.getFileIdentifier());
+                    if (owner != null && !(owner.isFinal() && isLocal(owner.getSuccessor()))) {
+                        // the requester's location cache sent it to the wrong node, tell it so it can look the key up again
+                        System.out.println("Not responsible for " + downloadRequest.getFileName() + ". Redirecting the requester.");
+                        FindSuccessorResponse redirect = new FindSuccessorResponse(false, owner.getSuccessor(), downloadRequest.getFileIdentifier(), 0);
+                        redirect.setRequestID(downloadRequest.getRequestID());
+                        sendToNode(downloadRequest.getHops().get(0), redirect);
+                        break;
+                    }
                     System.out.println("File not found. Please try again.");
-                    
+                    // answer anyway, the requester would otherwise wait out the whole transfer timeout
+                    DownloadResponse notFound = new DownloadResponse(downloadRequest.getFileName(), Protocol.FAILURE);
+                    notFound.setRequestID(downloadRequest.getRequestID());
+                    sendToNode(downloadRequest.getHops().get(0), notFound);
                 }
                 break;
             
             case Protocol.DOWNLOAD_RESPONSE:
-                if (isExiting) {
+                if (exiting.get()) {
                     System.out.println("Already exiting. Ignoring the deregister request.");
                     return;
                 }
                 // cast the event to a DownloadResponse
                 DownloadResponse downloadResponse = (DownloadResponse) event;
-                System.out.println("Printing Download Response Info: \n" + downloadResponse.getInfo());
                 // store the file locally
-                int downloadedFileNameHash = downloadResponse.getFile().getName().hashCode();
-                fileHandler.storeFile(downloadResponse.getFile(), downloadedFileNameHash);
+                fileHandler.handleDownloadResponse(downloadResponse);
+                break;
+
+            case Protocol.FILE_TRANSFER_BEGIN:
+                if (exiting.get()) {
+                    System.out.println("Already exiting. Ignoring the file transfer.");
+                    return;
+                }
+                fileHandler.handleTransferBegin((FileTransferBegin) event);
+                break;
+
+            case Protocol.FILE_CHUNK:
+                fileHandler.handleFileChunk((FileChunk) event);
+                break;
+
+            case Protocol.FILE_CHUNK_ACK:
+                fileHandler.handleChunkAck((FileChunkAck) event);
+                break;
+
+            case Protocol.FILE_TRANSFER_END:
+                fileHandler.handleTransferEnd((FileTransferEnd) event);
+                break;
+
+            case Protocol.HEARTBEAT_RESPONSE:
+                // only sent when the discovery has no lease for us
+                System.out.println("Printing Heartbeat Response Info: \n" + ((HeartbeatResponse) event).getInfo());
+                if (!exiting.get()) {
+                    reregister();
+                }
+                break;
+
+            case Protocol.MEMBERSHIP_UPDATE:
+                if (!exiting.get()) {
+                    membershipUpdateHandler((MembershipUpdate) event);
+                }
                 break;
                 
             default:
@@ -619,6 +1496,28 @@ public class Peer implements Node {
     // Main method to run the peerNode
     // gradle build neighbors
     // ~/CS555/hw3/build/classes/java/main$ java csx55.chord.Peer 129.82.44.146 45559
+    // add -Dcsx55.transport=nio before the class name to use the selector based server instead of thread-per-connection
+    // add -Dcsx55.threads=virtual to run the receivers and event handlers on virtual threads (JDK 21+)
+    // add -Dcsx55.dispatch.controlThreads=<n> and -Dcsx55.dispatch.bulkThreads=<n> to size the event handler lanes
+    //     (default 4 and 2, virtual threads too), -Dcsx55.dispatch.controlQueue=<n> and -Dcsx55.dispatch.bulkQueue=<n>
+    //     for how many received events may wait before reading pauses (default 1024 and 64)
+    // add -Dcsx55.hash=murmur3|sha1|java to pick the hash for peer and file IDs (default murmur3, must match the discovery)
+    // add -Dcsx55.fixFingers=<n> to change how many finger lookups are started each stabilization period (default 4)
+    // add -Dcsx55.vnodes=<n> to change how many ring positions a peer of weight 1 takes (default 8)
+    // add -Dcsx55.weight=<w> on bigger machines to take proportionally more positions, and so more keys (default 1)
+    // add -Dcsx55.lookup=iterative to drive lookups from the requester (default recursive), with
+    //     -Dcsx55.lookup.alpha=<n> parallel queries (default 3) and -Dcsx55.lookup.hopTimeout=<ms> per query (default 2000)
+    // add -Dcsx55.proximity=<n> to keep n next hop candidates per finger interval and forward to the one with the
+    //     lowest round trip (default 4, 1 routes on IDs only), -Dcsx55.proximity.probeInterval=<ms> to re-measure them
+    // add -Dcsx55.stabilize.min=<ms> and -Dcsx55.stabilize.max=<ms> to bound the stabilization period, it drops to
+    //     the minimum when the ring changes and doubles up to the maximum while it doesn't (default 500 to 16000 ms)
+    // add -Dcsx55.cache.ttl=<ms> and -Dcsx55.cache.size=<n> to tune the key location cache (default 30000 ms, 1024 ranges)
+    // add -Dcsx55.outbound.queue=<n> to bound the outgoing queue per destination (default 1024) and
+    //     -Dcsx55.outbound.policy=reject|drop-oldest|block for a full one (default reject, block waits up to
+    //     -Dcsx55.outbound.blockMillis, default 1000); -Dcsx55.outbound.retryMillis=<ms> is how long an unreachable peer
+    //     fails new messages right away (default 1000) and -Dcsx55.connectTimeout=<ms> bounds a connect (default 2000)
+    // add -Dcsx55.heartbeat=<ms> to change how often the peer renews its lease at the discovery (default 5000, keep
+    //     it well under the discovery's -Dcsx55.lease)
     // -------------------------------------------------- Main Method --------------------------------------------------
     public static void main(String[] args) {
         if (args.length != 2) {
@@ -638,9 +1537,8 @@ public class Peer implements Node {
 
         Peer node = new Peer(discoveryHost, discoveryPort);
         node.bootUpNodeConnection();
-        int delayToStartStabilizer = 10;
-        int periodToStabilize = 10;
-        node.initiateStabilizationScheduler(delayToStartStabilizer, periodToStabilize);
+        node.initiateStabilizationScheduler();
+        node.initiateHeartbeats();
 
         // Start a new thread to read commands from the console
         new Thread(() -> {
@@ -669,16 +1567,59 @@ public class Peer implements Node {
                         }
                         break;
                     case "my-info":
-                        System.out.println("My Peer ID: " + node.peerID);
+                        System.out.println("My Peer ID: " + Long.toUnsignedString(node.peerID));
                         System.out.println("My IP Address: " + node.getIpAddress());
                         System.out.println("My Port Number: " + node.getPortNumber());
+                        System.out.println("My Virtual Nodes: " + node.virtualNodeList.length);
+                        break;
+                    case "connections":
+                        // Prints the pooled connection counters (messages sent vs. handshakes avoided)
+                        System.out.println(node.getConnectionPool().getInfo());
+                        System.out.println(node.getOutboundQueues().getInfo());
+                        break;
+                    case "queues":
+                        // Prints the queue depth of the control and bulk event lanes
+                        System.out.println(node.dispatcher.getInfo());
+                        System.out.println(BufferPool.getInstance().getInfo());
+                        System.out.println(node.requestTracker.getInfo());
                         break;
                     case "neighbors":
                         // Prints information about the neighboring peer nodes in the following format:
                         // predecessor: <peerID> <ip-address>:<port>
                         // successor: <peerID> <ip-address>:<port>
-                        System.out.println("Predecessor: " + node.predecessor);
-                        System.out.println("Successor: " + node.successor);
+                        // once for each virtual node
+                        for (VirtualNode vnode : node.virtualNodeList) {
+                            System.out.println(vnode.getInfo());
+                        }
+                        break;
+                    case "fingers":
+                        // Prints the finger table of each virtual node and the hop counts of the lookups started here
+                        for (VirtualNode vnode : node.virtualNodeList) {
+                            System.out.println(vnode.getFingerTable().getInfo());
+                        }
+                        System.out.println(node.getLookupInfo());
+                        break;
+                    case "lookup-bench":
+                        // Times random lookups: lookup-bench <count> [recursive|iterative]
+                        String[] benchArgs = words.length > 1 ? words[1].trim().split("\\s+") : new String[0];
+                        try {
+                            int count = benchArgs.length > 0 ? Integer.parseInt(benchArgs[0]) : 100;
+                            node.benchmarkLookups(count, parseLookupMode(benchArgs.length > 1 ? benchArgs[1] : "recursive"));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Usage: lookup-bench <count> [recursive|iterative]");
+                        }
+                        break;
+                    case "latency":
+                        // Prints the measured round trip to each peer we talk to directly
+                        System.out.println(node.latencies.getInfo());
+                        break;
+                    case "stabilization":
+                        // Prints the current stabilization period and how long the ring took to settle after changes
+                        System.out.println(node.stabilizer.getInfo());
+                        break;
+                    case "cache":
+                        // Prints the location cache size and hit rate
+                        System.out.println(node.locationCache.getInfo());
                         break;
                     case "files":
                         // Prints the list of files this peer node is responsible for. 
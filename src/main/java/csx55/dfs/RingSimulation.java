@@ -0,0 +1,155 @@
+package csx55.dfs;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import csx55.wireformats.PeerRef;
+
+/*
+Checks finger table routing without starting any peers.
+Builds a ring of N peers in memory, gives every peer the finger table fixFingers converges to, then runs random
+lookups the way FIND_SUCCESSOR_REQUEST handles them (ask the current peer's FingerTable, forward to the next hop
+until the answer is final) and counts the hops. Every answer is checked against the sorted list of peerIDs, and
+the same lookups are repeated with successor-only routing (no fingers) to show what the ring walk used to cost.
+For proximity routing every peer is also placed in one of a few sites, with a one way latency that grows with the
+distance between them, and the lookups are run a third time with measured round trips to the next hop candidates.
+ */
+public class RingSimulation {
+
+    private static final int SITES = 5;
+
+    // run with: java csx55.dfs.RingSimulation [peers] [lookups] [seed]
+    public static void main(String[] args) throws UnknownHostException {
+        int peerCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int lookupCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 555;
+        Random random = new Random(seed);
+
+        // peers on 10.x.y.z:5555, with the peerIDs Peer would give them (KeyHasher hash of host:port)
+        KeyHasher hasher = KeyHasher.getInstance();
+        TreeMap<Long, PeerRef> byID = new TreeMap<>((a, b) -> Long.compareUnsigned(a, b));
+        while (byID.size() < peerCount) {
+            byte[] address = { 10, (byte) random.nextInt(256), (byte) random.nextInt(256), (byte) random.nextInt(256) };
+            String node = InetAddress.getByAddress(address).getHostAddress() + ":5555";
+            PeerRef peer = PeerRef.fromNode(hasher.hash(node), node);
+            byID.put(peer.getPeerID(), peer);
+        }
+        PeerRef[] ring = byID.values().toArray(new PeerRef[0]);
+
+        Map<String, double[]> positions = placePeers(ring, random);
+
+        Map<PeerRef, FingerTable> fingers = new HashMap<>();
+        Map<PeerRef, FingerTable> successorsOnly = new HashMap<>();
+        Map<PeerRef, FingerTable> proximity = new HashMap<>();
+        for (int p = 0; p < ring.length; p++) {
+            PeerRef peer = ring[p];
+            PeerRef predecessor = ring[(p - 1 + ring.length) % ring.length];
+            FingerTable table = new FingerTable(peer);
+            table.setPredecessor(predecessor);
+            for (int i = 0; i < FingerTable.BITS; i++) {
+                table.setFinger(i, successorOf(byID, table.start(i)));
+            }
+            fingers.put(peer, table);
+            // the same fingers, plus the next few peers of each interval with the round trips a probe would measure
+            FingerTable proximityTable = new FingerTable(peer);
+            LatencyTracker latencies = new LatencyTracker();
+            proximityTable.setLatencyTracker(latencies);
+            proximityTable.setPredecessor(predecessor);
+            for (int i = 0; i < FingerTable.BITS; i++) {
+                proximityTable.setFinger(i, table.getFinger(i));
+                PeerRef candidate = table.getFinger(i);
+                for (int n = 0; n < FingerTable.DEFAULT_CANDIDATES && !candidate.equals(peer); n++) {
+                    proximityTable.offerCandidate(candidate);
+                    latencies.record(candidate, 2 * oneWayMicros(positions, peer, candidate) * 1000);
+                    candidate = successorOf(byID, candidate.getPeerID() + 1);
+                }
+            }
+            proximity.put(peer, proximityTable);
+            FingerTable successorTable = new FingerTable(peer);
+            successorTable.setSuccessor(ring[(p + 1) % ring.length]);
+            successorTable.setPredecessor(predecessor);
+            successorsOnly.put(peer, successorTable);
+        }
+
+        System.out.println("Ring of " + peerCount + " peers, " + lookupCount + " lookups, log2(N) = "
+                + String.format("%.2f", Math.log(peerCount) / Math.log(2)));
+        long[] latency = new long[1];
+        report("finger table", run(fingers, byID, ring, lookupCount, new Random(seed + 1), positions, latency), latency[0]);
+        report("proximity", run(proximity, byID, ring, lookupCount, new Random(seed + 1), positions, latency), latency[0]);
+        report("successor only", run(successorsOnly, byID, ring, lookupCount, new Random(seed + 1), positions, latency), latency[0]);
+    }
+
+    // hop count histogram of random lookups, index = hops; latency[0] is set to the one way latency of all hops in us
+    private static int[] run(Map<PeerRef, FingerTable> tables, TreeMap<Long, PeerRef> byID, PeerRef[] ring, int lookupCount, Random random,
+                             Map<String, double[]> positions, long[] latency) {
+        int[] histogram = new int[ring.length + 1];
+        latency[0] = 0;
+        for (int n = 0; n < lookupCount; n++) {
+            long key = random.nextLong();
+            PeerRef current = ring[random.nextInt(ring.length)];
+            int hops = 0;
+            FingerTable.Route route = tables.get(current).findSuccessor(key);
+            while (!route.isFinal()) {
+                latency[0] += oneWayMicros(positions, current, route.getSuccessor());
+                current = route.getSuccessor();
+                hops++;
+                route = tables.get(current).findSuccessor(key);
+            }
+            if (!route.getSuccessor().equals(successorOf(byID, key))) {
+                throw new IllegalStateException("Lookup of " + key + " ended at " + route.getSuccessor()
+                        + " instead of " + successorOf(byID, key));
+            }
+            histogram[hops]++;
+        }
+        return histogram;
+    }
+
+    private static void report(String name, int[] histogram, long latencyMicros) {
+        long lookups = 0;
+        long total = 0;
+        int max = 0;
+        for (int hops = 0; hops < histogram.length; hops++) {
+            lookups += histogram[hops];
+            total += (long) hops * histogram[hops];
+            if (histogram[hops] > 0) {
+                max = hops;
+            }
+        }
+        System.out.println(String.format("%-16s average hops %7.2f   max %4d   average latency %8.2f ms", name, total / (double) lookups, max,
+                latencyMicros / 1000.0 / lookups));
+        if (max < 40) {
+            System.out.println("  hops:lookups " + Arrays.toString(Arrays.copyOf(histogram, max + 1)));
+        }
+    }
+
+    // a few sites spread over 100 x 100 ms, each peer a millisecond or so from the centre of its site
+    private static Map<String, double[]> placePeers(PeerRef[] ring, Random random) {
+        double[][] sites = new double[SITES][];
+        for (int s = 0; s < SITES; s++) {
+            sites[s] = new double[] { random.nextDouble() * 100, random.nextDouble() * 100 };
+        }
+        Map<String, double[]> positions = new HashMap<>();
+        for (PeerRef peer : ring) {
+            double[] site = sites[random.nextInt(SITES)];
+            positions.put(peer.getHostPort(), new double[] { site[0] + random.nextGaussian(), site[1] + random.nextGaussian() });
+        }
+        return positions;
+    }
+
+    private static long oneWayMicros(Map<String, double[]> positions, PeerRef from, PeerRef to) {
+        double[] a = positions.get(from.getHostPort());
+        double[] b = positions.get(to.getHostPort());
+        return (long) (Math.hypot(a[0] - b[0], a[1] - b[1]) * 1000);
+    }
+
+    // first peer at or after key on the ring
+    private static PeerRef successorOf(TreeMap<Long, PeerRef> byID, long key) {
+        Map.Entry<Long, PeerRef> entry = byID.ceilingEntry(key);
+        return entry != null ? entry.getValue() : byID.firstEntry().getValue();
+    }
+}
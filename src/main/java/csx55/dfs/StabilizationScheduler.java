@@ -0,0 +1,133 @@
+package csx55.dfs;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+Runs the stabilization rounds (stabilize, then fixFingers) on an adaptive period instead of a fixed one.
+When the peer sees the ring change (a join, an exit, a failover, a stabilize that moved a successor or predecessor)
+the next round runs after csx55.stabilize.min ms. Every round after which nothing changed doubles the period, up to
+csx55.stabilize.max ms. A join storm is worked through in quick rounds while a quiet ring costs one round per
+ceiling period. The time from the first change of a burst to the last one, confirmed by a quiet round, is recorded
+as the time the ring took to settle.
+ */
+public class StabilizationScheduler {
+
+    public static final String MIN_PERIOD_PROPERTY = "csx55.stabilize.min";
+    public static final String MAX_PERIOD_PROPERTY = "csx55.stabilize.max";
+    public static final long DEFAULT_MIN_PERIOD_MILLIS = 500;
+    public static final long DEFAULT_MAX_PERIOD_MILLIS = 16000;
+
+    private final ScheduledExecutorService scheduler;
+    private final Runnable round;
+    private final long minPeriod;
+    private final long maxPeriod;
+
+    private long period;
+    private ScheduledFuture<?> next;
+    private long nextRunAt;
+    private long rounds = 0;
+
+    // changes since the last round started, and the burst of changes the ring hasn't settled from yet
+    private boolean changedSinceRound = false;
+    private long unsettledSince = -1; // -1 while settled
+    private String burstReason;
+    private long lastChangeAt;
+    private int roundsInBurst;
+
+    private int settles = 0;
+    private long lastSettleMillis;
+    private long maxSettleMillis;
+    private long totalSettleMillis;
+    private int lastSettleRounds;
+
+    public StabilizationScheduler(ScheduledExecutorService scheduler, Runnable round) {
+        this.scheduler = scheduler;
+        this.round = round;
+        this.minPeriod = Math.max(10, Long.getLong(MIN_PERIOD_PROPERTY, DEFAULT_MIN_PERIOD_MILLIS));
+        this.maxPeriod = Math.max(minPeriod, Long.getLong(MAX_PERIOD_PROPERTY, DEFAULT_MAX_PERIOD_MILLIS));
+        this.period = minPeriod;
+    }
+
+    public synchronized void start(long delayMillis) {
+        if (next == null) {
+            schedule(delayMillis);
+        }
+    }
+
+    /*
+     * Something about the ring changed, the next round runs within the minimum period and the backoff starts over.
+     * A round that is already running reschedules itself once it is done.
+     */
+    public synchronized void ringChanged(String reason) {
+        long now = System.currentTimeMillis();
+        changedSinceRound = true;
+        lastChangeAt = now;
+        if (unsettledSince < 0) {
+            unsettledSince = now;
+            burstReason = reason;
+            roundsInBurst = 0;
+        }
+        period = minPeriod;
+        if (next != null && nextRunAt - now > minPeriod && next.cancel(false)) {
+            schedule(minPeriod);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        nextRunAt = System.currentTimeMillis() + delayMillis;
+        next = scheduler.schedule(this::runRound, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runRound() {
+        synchronized (this) {
+            rounds++;
+            boolean quiet = !changedSinceRound;
+            changedSinceRound = false;
+            if (unsettledSince >= 0) {
+                roundsInBurst++;
+                if (quiet) {
+                    settled();
+                }
+            }
+            if (quiet) {
+                period = Math.min(period * 2, maxPeriod);
+            }
+        }
+        try {
+            round.run();
+        } catch (RuntimeException e) {
+            System.out.println("Stabilization round failed: " + e.getMessage());
+        }
+        synchronized (this) {
+            schedule(period);
+        }
+    }
+
+    // a whole round went by without a change, the burst is over
+    private void settled() {
+        lastSettleMillis = lastChangeAt - unsettledSince;
+        lastSettleRounds = roundsInBurst;
+        maxSettleMillis = Math.max(maxSettleMillis, lastSettleMillis);
+        totalSettleMillis += lastSettleMillis;
+        settles++;
+        System.out.println("Ring settled " + lastSettleMillis + " ms after a " + burstReason + " (" + lastSettleRounds + " rounds).");
+        unsettledSince = -1;
+    }
+
+    public synchronized String getInfo() {
+        StringBuilder info = new StringBuilder("Stabilization\n");
+        info.append("Period: ").append(period).append(" ms (").append(minPeriod).append(" to ").append(maxPeriod).append(" ms)\n");
+        info.append("Rounds: ").append(rounds).append("\n");
+        if (unsettledSince >= 0) {
+            info.append("Settling for ").append(System.currentTimeMillis() - unsettledSince).append(" ms since a ").append(burstReason).append("\n");
+        }
+        if (settles > 0) {
+            info.append("Settled ").append(settles).append(" times, last in ").append(lastSettleMillis).append(" ms (")
+                    .append(lastSettleRounds).append(" rounds), average ").append(totalSettleMillis / settles)
+                    .append(" ms, max ").append(maxSettleMillis).append(" ms\n");
+        }
+        return info.toString();
+    }
+}
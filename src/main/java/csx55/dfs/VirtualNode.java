@@ -0,0 +1,107 @@
+package csx55.dfs;
+
+import java.util.List;
+
+import csx55.wireformats.PeerRef;
+
+/*
+One position of a Peer on the ring.
+A peer joins the ring at several virtual IDs, hashed from hostname:port, hostname:port#1, hostname:port#2, ...
+Each virtual node has its own predecessor, successor and finger table and takes part in join, stabilize and
+notify like a separate node would, but they all share the peer's server, connections and file storage.
+With more positions per peer the arcs a peer owns add up to a share of the ring close to its weight,
+instead of depending on where a single hash happened to land.
+ */
+public class VirtualNode {
+
+    private final int index; // 0 is the peer's own position (hash of hostname:port)
+    private final PeerRef self;
+    private final FingerTable fingerTable; // also holds the predecessor, successor and successor list (see Neighbours)
+
+    public VirtualNode(int index, PeerRef self) {
+        this.index = index;
+        this.self = self;
+        this.fingerTable = new FingerTable(self);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getID() {
+        return self.getPeerID();
+    }
+
+    public PeerRef getSelf() {
+        return self;
+    }
+
+    public FingerTable getFingerTable() {
+        return fingerTable;
+    }
+
+    // predecessor, successor and successor list as they were at one moment
+    public Neighbours getNeighbours() {
+        return fingerTable.getNeighbours();
+    }
+
+    public PeerRef getPredecessor() {
+        return fingerTable.getPredecessor();
+    }
+
+    public void setPredecessor(PeerRef predecessor) {
+        fingerTable.setPredecessor(predecessor);
+    }
+
+    public boolean compareAndSetPredecessor(PeerRef expected, PeerRef predecessor) {
+        return fingerTable.compareAndSetPredecessor(expected, predecessor);
+    }
+
+    // candidate becomes the predecessor if it is closer than the current one, returns what it replaced or null
+    public Neighbours offerPredecessor(PeerRef candidate) {
+        return fingerTable.offerPredecessor(candidate);
+    }
+
+    public PeerRef getSuccessor() {
+        return fingerTable.getSuccessor();
+    }
+
+    public Neighbours setSuccessor(PeerRef successor) {
+        return fingerTable.setSuccessor(successor);
+    }
+
+    public Neighbours setSuccessor(PeerRef successor, List<PeerRef> successorsOfSuccessor) {
+        return fingerTable.setSuccessor(successor, successorsOfSuccessor);
+    }
+
+    public boolean compareAndSetSuccessor(PeerRef expected, PeerRef successor) {
+        return fingerTable.compareAndSetSuccessor(expected, successor);
+    }
+
+    public List<PeerRef> getSuccessorList() {
+        return fingerTable.getSuccessorList();
+    }
+
+    // true if the list changed
+    public boolean updateSuccessorList(PeerRef successor, List<PeerRef> successorsOfSuccessor) {
+        return fingerTable.updateSuccessorList(successor, successorsOfSuccessor);
+    }
+
+    // the successor is dead, move on to the next entry of the successor list and return it (null if it already moved on)
+    public PeerRef failOver(PeerRef dead) {
+        return fingerTable.failOver(dead);
+    }
+
+    // a virtual node is on the ring once it knows its successor
+    public boolean isJoined() {
+        return getSuccessor() != null;
+    }
+
+    public FingerTable.Route findSuccessor(long key) {
+        return fingerTable.findSuccessor(key);
+    }
+
+    public String getInfo() {
+        return "Virtual node " + index + ": " + Long.toUnsignedString(getID()) + "\n" + getNeighbours() + "\n";
+    }
+}
@@ -0,0 +1,185 @@
+package csx55.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import csx55.dfs.Peer;
+import csx55.transport.FileStreamer;
+import csx55.wireformats.*;
+
+/*
+Receiving side of the chunked transfers started by ChunkSender.
+Every chunk is written straight to its offset in a temporary file and acked, so chunks may arrive in any order
+and a resent chunk just overwrites itself. When the end message arrives the file is checked against the
+sender's CRC32 and then handed to the FileHandler like a Migration (upload) or a DownloadResponse (download).
+Transfers that have not seen a message for STALE_TRANSFER_MILLIS are dropped.
+ */
+public class ChunkReceiver {
+
+    private static final long STALE_TRANSFER_MILLIS = 120000;
+
+    private final Peer peerNode;
+    private final FileHandler fileHandler;
+    private final ConcurrentHashMap<Long, IncomingTransfer> transfers = new ConcurrentHashMap<>();
+
+    public ChunkReceiver(Peer peerNode, FileHandler fileHandler) {
+        this.peerNode = peerNode;
+        this.fileHandler = fileHandler;
+    }
+
+    public void onBegin(FileTransferBegin begin) throws IOException {
+        dropStaleTransfers();
+        if (!transfers.containsKey(begin.getTransferID())) {
+            System.out.println("Receiving chunked transfer:\n" + begin.getInfo());
+            // like a streamed body, a download is received where it will be saved and an upload next to the store
+            Path directory = begin.getMode() == FileTransferBegin.UPLOAD ? fileHandler.getIncomingDirectory() : FileStreamer.downloadDirectory();
+            transfers.put(begin.getTransferID(), new IncomingTransfer(begin, directory));
+        }
+        // also acked again when the sender repeats the begin because our first ack was late
+        peerNode.sendToNode(begin.getOriginatingPeer(), new FileChunkAck(begin.getTransferID(), FileChunkAck.BEGIN_SEQUENCE));
+    }
+
+    public void onChunk(FileChunk chunk) throws IOException {
+        IncomingTransfer transfer = transfers.get(chunk.getTransferID());
+        if (transfer == null) {
+            System.out.println("Dropping chunk " + chunk.getSequence() + " of unknown transfer " + chunk.getTransferID());
+            return;
+        }
+        transfer.write(chunk);
+        peerNode.sendToNode(transfer.begin.getOriginatingPeer(), new FileChunkAck(chunk.getTransferID(), chunk.getSequence()));
+    }
+
+    public void onEnd(FileTransferEnd end) throws IOException {
+        IncomingTransfer transfer = transfers.remove(end.getTransferID());
+        if (transfer == null) {
+            System.out.println("End of unknown transfer " + end.getTransferID());
+            return;
+        }
+        FileTransferBegin begin = transfer.begin;
+        boolean complete = transfer.finish(end);
+        File file = transfer.path.toFile();
+
+        if (begin.getMode() == FileTransferBegin.UPLOAD) {
+            boolean stored = false;
+            if (complete) {
+                fileHandler.storeFile(file, begin.getFileName(), begin.getFileIdentifier());
+                stored = fileHandler.fileExists(begin.getFileName());
+            }
+            MigrationResponse migrationResponse = new MigrationResponse(begin.getFileName(), stored);
+            migrationResponse.setRequestID(end.getRequestID());
+            peerNode.sendToNode(begin.getOriginatingPeer(), migrationResponse);
+        } else if (complete) {
+            // answer the download request as if the whole file had come in one DownloadResponse
+            DownloadResponse downloadResponse = new DownloadResponse(file, begin.getFileName());
+            downloadResponse.setRequestID(end.getRequestID());
+            if (!peerNode.getRequestTracker().complete(downloadResponse)) {
+                fileHandler.handleDownloadResponse(downloadResponse);
+            }
+        } else {
+            peerNode.getRequestTracker().fail(end, new IOException("Chunked download of " + begin.getFileName() + " was incomplete or corrupt"));
+        }
+    }
+
+    private void dropStaleTransfers() {
+        long cutoff = System.currentTimeMillis() - STALE_TRANSFER_MILLIS;
+        transfers.values().removeIf(transfer -> {
+            if (transfer.lastActivity < cutoff) {
+                System.out.println("Dropping stalled transfer of " + transfer.begin.getFileName());
+                transfer.discard();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    // state of one transfer being received
+    private static class IncomingTransfer {
+        private final FileTransferBegin begin;
+        private final Path path;
+        private final FileChannel channel;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final BitSet received = new BitSet();
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        IncomingTransfer(FileTransferBegin begin, Path directory) throws IOException {
+            this.begin = begin;
+            this.path = FileStreamer.createTarget(directory, begin.getFileName());
+            this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        }
+
+        void write(FileChunk chunk) throws IOException {
+            if (chunk.getSequence() < 0 || chunk.getSequence() >= begin.getChunkCount()) {
+                throw new IOException("Chunk " + chunk.getSequence() + " is outside " + begin.getFileName());
+            }
+            lastActivity = System.currentTimeMillis();
+            long position = (long) chunk.getSequence() * begin.getChunkSize();
+            ByteBuffer data = ByteBuffer.wrap(chunk.getData(), 0, chunk.getLength());
+            while (data.hasRemaining()) {
+                channel.write(data, position + data.position()); // positional writes are safe from several handler threads
+            }
+            lock.lock();
+            try {
+                received.set(chunk.getSequence());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // close the file and check it, returns false (and deletes the file) if chunks are missing or the CRC differs
+        boolean finish(FileTransferEnd end) throws IOException {
+            channel.close();
+            int chunksReceived;
+            lock.lock();
+            try {
+                chunksReceived = received.cardinality();
+            } finally {
+                lock.unlock();
+            }
+            if (chunksReceived != begin.getChunkCount() || end.getChunkCount() != begin.getChunkCount()) {
+                System.out.println("Transfer of " + begin.getFileName() + " ended with " + chunksReceived + " of " + begin.getChunkCount() + " chunks.");
+                Files.deleteIfExists(path);
+                return false;
+            }
+            long checksum = checksum(path);
+            if (checksum != end.getChecksum()) {
+                System.out.println("Checksum mismatch for " + begin.getFileName() + ": expected " + Long.toHexString(end.getChecksum())
+                        + " but got " + Long.toHexString(checksum));
+                Files.deleteIfExists(path);
+                return false;
+            }
+            System.out.println("Received " + begin.getFileName() + " (" + begin.getFileSize() + " bytes), checksum verified.");
+            return true;
+        }
+
+        void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.out.println("Error removing partial file: " + e.getMessage());
+            }
+        }
+
+        private static long checksum(Path path) throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = Files.newInputStream(path)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                }
+            }
+            return crc.getValue();
+        }
+    }
+}
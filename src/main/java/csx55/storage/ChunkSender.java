@@ -0,0 +1,210 @@
+package csx55.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import csx55.dfs.Peer;
+import csx55.wireformats.*;
+
+/*
+Sends one file as a chunked transfer: FileTransferBegin, then fixed size FileChunks, then FileTransferEnd.
+At most windowSize chunks are unacknowledged at any time, so a transfer never holds more than
+windowSize * chunkSize bytes in flight no matter how big the file is. If no ack arrives within the ack timeout
+the chunks that are still unacknowledged are sent again, and the transfer gives up after MAX_RETRIES
+timeouts in a row. The end message carries the CRC32 of the file and is only sent once every chunk is acked.
+Chunk size, window size and the size above which uploads and downloads are chunked can be set with
+-Dcsx55.chunk.size, -Dcsx55.chunk.window and -Dcsx55.chunk.threshold (bytes).
+ */
+public class ChunkSender implements Runnable {
+
+    public static final String CHUNK_SIZE_PROPERTY = "csx55.chunk.size";
+    public static final String WINDOW_PROPERTY = "csx55.chunk.window";
+    public static final String THRESHOLD_PROPERTY = "csx55.chunk.threshold";
+
+    // a chunk plus its header still fits the 1 MB receive buffer class
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final long DEFAULT_THRESHOLD = 16L * 1024 * 1024;
+
+    private static final long ACK_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_RETRIES = 5;
+    private static final long RESULT_TIMEOUT_MILLIS = 120000; // receiver checks the CRC before it answers
+
+    private final Peer peerNode;
+    private final String destination; // hostname:port of the receiver
+    private final File file;
+    private final long requestID; // request ID the end message carries (the download request's ID for downloads)
+    private final FileTransferBegin begin;
+    private final int chunkCount;
+    private final int windowSize;
+
+    private final Semaphore window;
+    private final CountDownLatch beginAcked = new CountDownLatch(1);
+    private final ReentrantLock ackLock = new ReentrantLock();
+    private final BitSet acked = new BitSet();
+    private int nextSequence = 0; // chunks below this have been sent at least once
+
+    // transfers in progress, so acks can be routed to their sender
+    private static final ConcurrentHashMap<Long, ChunkSender> activeTransfers = new ConcurrentHashMap<>();
+
+    public ChunkSender(Peer peerNode, String destination, File file, byte mode, long fileIdentifier, long requestID) {
+        this.peerNode = peerNode;
+        this.destination = destination;
+        this.file = file;
+        this.requestID = requestID;
+        this.begin = new FileTransferBegin(ThreadLocalRandom.current().nextLong(), mode, file.getName(), fileIdentifier,
+                file.length(), Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE), peerNode.getNode());
+        this.chunkCount = begin.getChunkCount();
+        this.windowSize = Math.max(1, Integer.getInteger(WINDOW_PROPERTY, DEFAULT_WINDOW));
+        this.window = new Semaphore(windowSize);
+    }
+
+    // files at least this big are sent chunked
+    public static boolean shouldChunk(File file) {
+        return file.length() >= Long.getLong(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+    }
+
+    // route an ack to the transfer it belongs to
+    public static void handleAck(FileChunkAck ack) {
+        ChunkSender sender = activeTransfers.get(ack.getTransferID());
+        if (sender != null) {
+            sender.onAck(ack.getSequence());
+        }
+    }
+
+    public void run() {
+        activeTransfers.put(begin.getTransferID(), this);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            System.out.println("Starting chunked transfer of " + file.getName() + " to " + destination + "\n" + begin.getInfo());
+            sendBegin();
+
+            byte[] buffer = new byte[begin.getChunkSize()];
+            CRC32 checksum = new CRC32();
+            int reported = 0;
+            for (int sequence = 0; sequence < chunkCount; sequence++) {
+                awaitWindow(1, fileChannel, buffer);
+                int length = readChunk(fileChannel, sequence, buffer);
+                checksum.update(buffer, 0, length); // first sends go in order, so this covers the whole file once
+                sendChunk(sequence, buffer, length);
+                ackLock.lock();
+                try {
+                    nextSequence = sequence + 1;
+                } finally {
+                    ackLock.unlock();
+                }
+                int percent = (int) ((sequence + 1) * 100L / chunkCount);
+                if (percent / 10 > reported) {
+                    reported = percent / 10;
+                    System.out.println("Sent " + percent + "% of " + file.getName());
+                }
+            }
+            // every permit back means every chunk has been acked
+            awaitWindow(windowSize, fileChannel, buffer);
+
+            FileTransferEnd end = new FileTransferEnd(begin.getTransferID(), chunkCount, checksum.getValue());
+            if (begin.getMode() == FileTransferBegin.UPLOAD) {
+                // the receiver answers with a MigrationResponse once the file is checked and stored
+                Event response = peerNode.sendRequest(destination, end, RESULT_TIMEOUT_MILLIS).get();
+                System.out.println("Upload finished: " + ((MigrationResponse) response).getInfo());
+            } else {
+                end.setRequestID(requestID);
+                if (!peerNode.sendToNode(destination, end)) {
+                    throw new IOException("Failed to send the end of the transfer");
+                }
+                System.out.println("Chunked transfer of " + file.getName() + " to " + destination + " finished.");
+            }
+        } catch (Exception e) {
+            System.out.println("Chunked transfer of " + file.getName() + " to " + destination + " failed: " + e.getMessage());
+        } finally {
+            activeTransfers.remove(begin.getTransferID());
+        }
+    }
+
+    private void sendBegin() throws IOException, InterruptedException {
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            if (!peerNode.sendToNode(destination, begin)) {
+                throw new IOException("Failed to send the start of the transfer");
+            }
+            if (beginAcked.await(ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+        throw new IOException("Receiver never acknowledged the start of the transfer");
+    }
+
+    // wait for permits from the window, resending unacked chunks whenever the ack timeout passes
+    private void awaitWindow(int permits, FileChannel fileChannel, byte[] buffer) throws IOException, InterruptedException {
+        int retries = 0;
+        while (!window.tryAcquire(permits, ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (++retries > MAX_RETRIES) {
+                throw new IOException("No acks from " + destination + " after " + MAX_RETRIES + " retries");
+            }
+            resendUnacked(fileChannel, buffer);
+        }
+    }
+
+    private void resendUnacked(FileChannel fileChannel, byte[] buffer) throws IOException {
+        BitSet missing;
+        ackLock.lock();
+        try {
+            missing = new BitSet(nextSequence);
+            missing.set(0, nextSequence);
+            missing.andNot(acked);
+        } finally {
+            ackLock.unlock();
+        }
+        System.out.println("Resending " + missing.cardinality() + " unacknowledged chunks of " + file.getName());
+        for (int sequence = missing.nextSetBit(0); sequence >= 0; sequence = missing.nextSetBit(sequence + 1)) {
+            int length = readChunk(fileChannel, sequence, buffer);
+            sendChunk(sequence, buffer, length);
+        }
+    }
+
+    private void onAck(int sequence) {
+        if (sequence == FileChunkAck.BEGIN_SEQUENCE) {
+            beginAcked.countDown();
+            return;
+        }
+        ackLock.lock();
+        try {
+            if (sequence < 0 || sequence >= chunkCount || acked.get(sequence)) {
+                return; // duplicate ack for a resent chunk
+            }
+            acked.set(sequence);
+        } finally {
+            ackLock.unlock();
+        }
+        window.release();
+    }
+
+    // read chunk sequence into the buffer, returns the number of bytes in it
+    private int readChunk(FileChannel fileChannel, int sequence, byte[] buffer) throws IOException {
+        long position = (long) sequence * begin.getChunkSize();
+        int length = (int) Math.min(begin.getChunkSize(), begin.getFileSize() - position);
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (fileChannel.read(target, position + target.position()) < 0) {
+                throw new IOException(file.getName() + " got shorter while it was being sent");
+            }
+        }
+        return length;
+    }
+
+    private void sendChunk(int sequence, byte[] buffer, int length) throws IOException {
+        // the chunk is encoded before it is queued, so the buffer can be reused right away
+        if (!peerNode.sendToNode(destination, new FileChunk(begin.getTransferID(), sequence, buffer, length))) {
+            throw new IOException("Failed to send chunk " + sequence);
+        }
+    }
+}
@@ -2,26 +2,45 @@ package csx55.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 
 import java.util.concurrent.ConcurrentHashMap;
 
+import csx55.dfs.KeyHasher;
 import csx55.dfs.Peer;
+import csx55.transport.FileStreamer;
+import csx55.transport.ThreadMode;
 import csx55.wireformats.*;
 
 public class FileHandler {
 
     private Peer peerNode;
     private String fileDirectory;
+    private Path incomingDirectory; // received bodies are written here and renamed into fileDirectory
+
+    // how long an upload or download waits for the responsible node to answer
+    private static final long TRANSFER_TIMEOUT_MILLIS = 300000;
+
+    // times a download follows a redirect from a node the location cache wrongly pointed at
+    private static final int DOWNLOAD_REDIRECTS = 2;
+
+    // hidden subdirectory of the store for files that are still being received
+    private static final String INCOMING_DIRECTORY = ".incoming";
 
     // thread safe data structure to store file information
-    private final ConcurrentHashMap<String, Integer> fileMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> fileMap = new ConcurrentHashMap<>();
+
+    // incoming chunked transfers (large uploads and downloads)
+    private final ChunkReceiver chunkReceiver;
     
     public FileHandler(Peer peerNode) {
         this.peerNode = peerNode;
-        setFileDirectory(String.valueOf(peerNode.getPeerID()));
+        this.chunkReceiver = new ChunkReceiver(peerNode, this);
+        setFileDirectory(Long.toUnsignedString(peerNode.getPeerID()));
     }
 
     public void setFileDirectory(String peerID) {
@@ -32,9 +51,16 @@ public class FileHandler {
         if (!dir.exists()) {
             dir.mkdirs();  // create the directory if it doesn't exist
         }
+        // same file system as the store, so a finished file is moved with a rename
+        incomingDirectory = Paths.get(fileDirectory, INCOMING_DIRECTORY).toAbsolutePath();
+        incomingDirectory.toFile().mkdirs();
         System.out.println("File directory set to: " + fileDirectory);
     }
 
+    public Path getIncomingDirectory() {
+        return incomingDirectory;
+    }
+
     // return the working directory of the peer node
     public String getWorkingDirectory() {
         return fileDirectory;
@@ -63,45 +89,76 @@ public class FileHandler {
         }
     
         String fileName = file.getName();
-        int fileHash = fileName.hashCode();
-    
+        long fileHash = KeyHasher.getInstance().hash(fileName);
+
+        // find the node responsible for the file name's hash through the finger table
+        peerNode.lookup(fileHash)
+            .thenAccept(response -> sendUpload(file, fileName, fileHash, response.getSuccessor()))
+            .exceptionally(error -> {
+                System.out.println("Failed to find the node responsible for " + fileName + ": " + error.getMessage());
+                return null;
+            });
+    }
+
+    private void sendUpload(File file, String fileName, long fileHash, PeerRef responsibleNode) {
         if (responsibleNode == null) {
             System.out.println("Responsible node is null.");
             return;
         }
     
-        if (responsibleNode.getSuccessorID() == peerNode.getPeerID()) {
+        if (peerNode.isLocal(responsibleNode)) {
             // This node is responsible, store the file locally
-            try {
-                Files.copy(file.toPath(), Paths.get(getWorkingDirectory(), 
-                            fileName), StandardCopyOption.REPLACE_EXISTING);
-                System.out.println("File " + fileHash + " stored locally at " + getWorkingDirectory());
-                fileMap.put(fileName, fileHash);
-            } catch (IOException e) {
-                System.out.println("Error storing file: " + e.getMessage());
-            }
+            storeFile(file, fileName, fileHash);
         } else {
             // Send the file to the responsible node
-            System.out.println("Sending file " + fileName + " to node: " + responsibleNode.getSuccessorHostPort());
+            System.out.println("Sending file " + fileName + " to node: " + responsibleNode.getHostPort());
+            if (ChunkSender.shouldChunk(file)) {
+                // large files go in acknowledged chunks, the sender reports the result when it is done
+                sendChunked(responsibleNode.getHostPort(), file, FileTransferBegin.UPLOAD, fileHash, 0);
+                return;
+            }
             // create a migration  and send it to the responsible node
             Migration migration = new Migration(file, fileHash, peerNode.getNode(), false);
-            peerNode.sendToNode(responsibleNode.getSuccessorHostPort(), migration);
+            peerNode.sendRequest(responsibleNode.getHostPort(), migration, TRANSFER_TIMEOUT_MILLIS)
+                .thenAccept(response -> System.out.println("Upload finished: " + ((MigrationResponse) response).getInfo()))
+                .exceptionally(error -> {
+                    System.out.println("Upload of " + fileName + " failed: " + error.getMessage());
+                    // don't send the next upload there from the cache
+                    peerNode.getLocationCache().invalidate(responsibleNode);
+                    return null;
+                });
         }
     }
 
     public void downloadFile(String fileName) {
+        downloadFile(fileName, DOWNLOAD_REDIRECTS);
+    }
+
+    private void downloadFile(String fileName, int redirectsLeft) {
         if (fileName == null) {
             System.out.println("File name is null.");
             return;
         }
-        int fileHash = fileName.hashCode();
-    
+        long fileHash = KeyHasher.getInstance().hash(fileName);
+
+        peerNode.lookup(fileHash)
+            .thenAccept(response -> {
+                System.out.println("Found the node responsible for " + fileName + " in " + response.getHopCount() + " hops");
+                requestDownload(fileName, fileHash, response.getSuccessor(), redirectsLeft);
+            })
+            .exceptionally(error -> {
+                System.out.println("Failed to find the node responsible for " + fileName + ": " + error.getMessage());
+                return null;
+            });
+    }
+
+    private void requestDownload(String fileName, long fileHash, PeerRef responsibleNode, int redirectsLeft) {
         if (responsibleNode == null) {
             System.out.println("Responsible node is null.");
             return;
         }
     
-        if (responsibleNode.getSuccessorID() == peerNode.getPeerID()) {
+        if (peerNode.isLocal(responsibleNode)) {
             if (!fileMap.containsKey(fileName)) {
                 System.out.println("File not found: " + fileName);
                 System.out.println("Something went wrong!");
@@ -111,34 +168,124 @@ public class FileHandler {
             }
     
             try {
+                Path target = downloadTarget(fileName);
                 Files.copy(Paths.get(getWorkingDirectory(), fileName), 
-                            Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
-                System.out.println("File downloaded to: " + fileName);
+                            target, StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("File downloaded to: " + target);
             } catch (IOException e) {
                 System.out.println("Error downloading file: " + e.getMessage());
             }
         } else {
-            System.out.println("Requesting file <" + fileName + "> from node: " + responsibleNode.getSuccessorHostPort());
-            DownloadRequest downloadRequest = new DownloadRequest(fileName, fileHash, peerNode.getPeerID() + " " + peerNode.getNode());
-            peerNode.sendToNode(responsibleNode.getSuccessorHostPort(), downloadRequest);
+            System.out.println("Requesting file <" + fileName + "> from node: " + responsibleNode.getHostPort());
+            DownloadRequest downloadRequest = new DownloadRequest(fileName, fileHash, peerNode.getSelf());
+            peerNode.sendRequest(responsibleNode.getHostPort(), downloadRequest, TRANSFER_TIMEOUT_MILLIS)
+                .thenAccept(response -> {
+                    if (response instanceof FindSuccessorResponse) {
+                        // the location cache was out of date, that node doesn't own the file name any more
+                        System.out.println(responsibleNode.getHostPort() + " is not responsible for " + fileName + ".");
+                        peerNode.getLocationCache().invalidate(responsibleNode);
+                        if (redirectsLeft > 0) {
+                            downloadFile(fileName, redirectsLeft - 1);
+                        }
+                        return;
+                    }
+                    handleDownloadResponse((DownloadResponse) response);
+                })
+                .exceptionally(error -> {
+                    System.out.println("Download of " + fileName + " failed (file not found or no response): " + error.getMessage());
+                    peerNode.getLocationCache().invalidate(responsibleNode);
+                    return null;
+                });
         }
     }
 
-    public void storeFile(File sourceFile, int fileIdentifier) {
+    // start a chunked transfer of the file on its own thread
+    public void sendChunked(String destination, File file, byte mode, long fileIdentifier, long requestID) {
+        ThreadMode.start(new ChunkSender(peerNode, destination, file, mode, fileIdentifier, requestID), "chunk-sender-");
+    }
+
+    public void handleTransferBegin(FileTransferBegin begin) throws IOException {
+        chunkReceiver.onBegin(begin);
+    }
+
+    public void handleFileChunk(FileChunk chunk) throws IOException {
+        chunkReceiver.onChunk(chunk);
+    }
+
+    public void handleChunkAck(FileChunkAck ack) {
+        ChunkSender.handleAck(ack);
+    }
+
+    public void handleTransferEnd(FileTransferEnd end) throws IOException {
+        chunkReceiver.onEnd(end);
+    }
+
+    /*
+     * Saves a file that came back from a download request to the current working directory, like a download of a
+     * file we own ourselves. It is not added to our store, we are not responsible for its name.
+     * The body was received into the working directory (see FileStreamer.targetDirectory), so it is only renamed.
+     */
+    public void handleDownloadResponse(DownloadResponse downloadResponse) {
+        System.out.println("Printing Download Response Info: \n" + downloadResponse.getInfo());
+        if (downloadResponse.getStatus() != Protocol.SUCCESS) {
+            System.out.println("File not found: " + downloadResponse.getFileName());
+            return;
+        }
+        File received = downloadResponse.getFile();
+        if (received == null || !received.exists()) {
+            System.out.println("Downloaded file is missing: " + downloadResponse.getFileName());
+            return;
+        }
+        Path target = downloadTarget(downloadResponse.getFileName());
+        try {
+            moveIntoPlace(received.toPath(), target);
+            System.out.println("File downloaded to: " + target);
+        } catch (IOException e) {
+            System.out.println("Error saving downloaded file: " + e.getMessage());
+        }
+    }
+
+    // where a download of fileName is saved
+    private Path downloadTarget(String fileName) {
+        return FileStreamer.downloadDirectory().resolve(new File(fileName).getName());
+    }
+
+    public void storeFile(File sourceFile, long fileIdentifier) {
         if (sourceFile == null) {
             System.out.println("Source file is null.");
             return;
         }
+        storeFile(sourceFile, sourceFile.getName(), fileIdentifier);
+    }
 
-        System.out.println("Storing file: " + sourceFile.getPath() + " with identifier: " + fileIdentifier);
+    /*
+     * Stores the file under fileName, for uploads and migrations of names we are responsible for. A file that was
+     * received into the incoming directory is renamed into place, so its bytes are only written once. Anything else
+     * is first copied into the incoming directory.
+     * The final step is always an atomic rename, so readers see either the old file or the complete new one,
+     * and two transfers of the same name can't interleave their writes.
+     */
+    public void storeFile(File sourceFile, String fileName, long fileIdentifier) {
+        if (sourceFile == null) {
+            System.out.println("Source file is null.");
+            return;
+        }
+
+        System.out.println("Storing file: " + sourceFile.getPath() + " as " + fileName + " with identifier: " + Long.toUnsignedString(fileIdentifier));
         if (!sourceFile.exists()) {
             System.out.println("Source file does not exist: " + sourceFile.getPath());
             return;
         }
 
-        String fileName = sourceFile.getName();
+        Path target = Paths.get(getWorkingDirectory(), new File(fileName).getName());
         try {
-            Files.copy(sourceFile.toPath(), Paths.get(getWorkingDirectory(), fileName), StandardCopyOption.REPLACE_EXISTING);
+            Path staged = sourceFile.toPath();
+            if (!incomingDirectory.equals(staged.toAbsolutePath().getParent())) {
+                // not received by us (e.g. a local upload), copy it next to the store first
+                staged = Files.createTempFile(incomingDirectory, ".incoming-", "-" + target.getFileName());
+                Files.copy(sourceFile.toPath(), staged, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moveIntoPlace(staged, target);
             System.out.println("File stored locally at " + getWorkingDirectory());
             fileMap.put(fileName, fileIdentifier);
         } catch (IOException e) {
@@ -146,6 +293,15 @@ public class FileHandler {
         }
     }
 
+    // rename atomically where the file system allows it, so readers never see a partly written file
+    private static void moveIntoPlace(Path staged, Path target) throws IOException {
+        try {
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     public Boolean removeFile(String fileName) {
         if (fileName == null) {
             System.out.println("File name is null.");
@@ -158,7 +314,7 @@ public class FileHandler {
             return false;
         }
 
-        int fileIdentifier = fileMap.get(fileName);
+        long fileIdentifier = fileMap.get(fileName);
         File file = new File(getWorkingDirectory() + fileIdentifier + "_" + fileName);
         if (!file.exists()) {
             System.out.println("File not found: " + file.getPath());
@@ -203,14 +359,14 @@ public class FileHandler {
     }
 
     // get file list
-    public ConcurrentHashMap<String, Integer> getFileList() {
+    public ConcurrentHashMap<String, Long> getFileList() {
         return fileMap;
     }
 
     public void printFileList() {
         // Return a list of files stored locally
         for (String key : fileMap.keySet()) {
-            System.out.println(key + " " + fileMap.get(key));
+            System.out.println(key + " " + Long.toUnsignedString(fileMap.get(key)));
         }
     }
 }
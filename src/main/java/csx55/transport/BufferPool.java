@@ -0,0 +1,105 @@
+package csx55.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Size classed pool of receive buffers shared by every receiver of this process.
+Frames are read into a pooled byte[] (the smallest power of two that fits), decoded, and the buffer is
+released again, so the receive path stops allocating a fresh array per message.
+Frames above the largest size class get a one-off array that is never pooled, and frames above the
+maximum frame size (-Dcsx55.maxFrameSize, in bytes) are rejected before anything is allocated.
+ */
+public class BufferPool {
+
+    public static final String MAX_FRAME_SIZE_PROPERTY = "csx55.maxFrameSize";
+    public static final int DEFAULT_MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    private static final int MIN_CLASS_SHIFT = 8;  // smallest class is 256 bytes
+    private static final int MAX_CLASS_SHIFT = 20; // largest class is 1 MB
+    private static final int BYTES_PER_CLASS = 8 * 1024 * 1024; // free buffers kept per class
+
+    private static final BufferPool instance = new BufferPool(Integer.getInteger(MAX_FRAME_SIZE_PROPERTY, DEFAULT_MAX_FRAME_SIZE));
+
+    private final List<ArrayBlockingQueue<byte[]>> freeBuffers; // one queue per size class
+    private final int maxFrameSize;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    public BufferPool(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        this.freeBuffers = new ArrayList<>(MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1);
+        for (int shift = MIN_CLASS_SHIFT; shift <= MAX_CLASS_SHIFT; shift++) {
+            freeBuffers.add(new ArrayBlockingQueue<>(Math.max(1, BYTES_PER_CLASS >> shift)));
+        }
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /*
+     * Returns a buffer of at least length bytes. Only the first length bytes belong to the frame.
+     * Throws a FrameTooLargeException if the length is negative or above the maximum frame size.
+     */
+    public byte[] acquire(int length) throws FrameTooLargeException {
+        if (length < 0 || length > maxFrameSize) {
+            rejected.incrementAndGet();
+            throw new FrameTooLargeException(length, maxFrameSize);
+        }
+        acquired.incrementAndGet();
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0) {
+            unpooled.incrementAndGet();
+            return new byte[length];
+        }
+        byte[] buffer = freeBuffers.get(sizeClass).poll();
+        if (buffer != null) {
+            reused.incrementAndGet();
+            return buffer;
+        }
+        return new byte[1 << (sizeClass + MIN_CLASS_SHIFT)];
+    }
+
+    // hand a buffer back once the frame in it has been decoded
+    public void release(byte[] buffer) {
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass >= 0 && buffer.length == 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            freeBuffers.get(sizeClass).offer(buffer); // dropped for the GC if the class is already full
+        }
+    }
+
+    // index of the smallest class that fits length, or -1 if it is bigger than the largest class
+    private static int sizeClass(int length) {
+        if (length > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    public String getInfo() {
+        return "Buffer Pool\nBuffers acquired: " + acquired.get() + "\nReused from pool: " + reused.get()
+                + "\nUnpooled (over " + (1 << MAX_CLASS_SHIFT) + " bytes): " + unpooled.get()
+                + "\nRejected (over " + maxFrameSize + " bytes): " + rejected.get() + "\n";
+    }
+
+    // thrown when a frame announces a length we won't allocate
+    public static class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLargeException(int length, int maxFrameSize) {
+            super("Frame length " + length + " is outside the allowed range 0-" + maxFrameSize);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package csx55.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import csx55.wireformats.Event;
+
+/*
+This class keeps established TCPSender connections to other nodes so that messages to the same
+node reuse an open socket instead of paying a new TCP handshake (and leaking a socket) per message.
+Connections are keyed by hostname:port, capped per destination, re-opened when a send fails
+and closed once they have been idle for longer than the idle timeout.
+A write to a socket the other side has closed usually still succeeds into the kernel's send buffer, so an idle
+connection is checked for the peer's FIN (a non-blocking read) before it is reused. Nothing is ever sent back on
+these connections, so any data or end of stream there means the connection is no good anymore.
+ */
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_NODE = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+    // a peer that doesn't accept within this long is treated as down instead of stalling its sender for the OS timeout
+    public static final String CONNECT_TIMEOUT_PROPERTY = "csx55.connectTimeout";
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private final ConcurrentHashMap<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final int maxConnectionsPerNode; // cap on open sockets to a single hostname:port
+    private final long idleTimeoutMillis; // idle connections older than this are closed
+    private final int connectTimeoutMillis = Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    private final ScheduledExecutorService evictor;
+
+    // counters so the reuse can be measured
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong handshakesAvoided = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_NODE, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    public ConnectionPool(int maxConnectionsPerNode, long idleTimeoutMillis) {
+        this.maxConnectionsPerNode = maxConnectionsPerNode;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepPeriod = Math.max(1, idleTimeoutMillis / 2);
+        evictor.scheduleAtFixedRate(this::evictIdleConnections, sweepPeriod, sweepPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Sends the data to hostname:port over a pooled connection.
+     * A reused connection that fails is discarded and the message is retried once on a fresh socket.
+     */
+    public void send(String node, byte[] data) throws IOException {
+        transmit(node, sender -> sender.sendData(data));
+    }
+
+    // send the event over a pooled connection, encoded straight into a pooled buffer
+    public void send(String node, Event event) throws IOException {
+        transmit(node, sender -> sender.sendEvent(event));
+    }
+
+    // send a header frame followed by the file's contents over a pooled connection
+    public void sendFile(String node, byte[] header, File file) throws IOException {
+        transmit(node, sender -> sender.sendFile(header, file));
+    }
+
+    public void sendFile(String node, Event header, File file) throws IOException {
+        transmit(node, sender -> sender.sendFile(header, file));
+    }
+
+    // send a frame encoded with TCPSender.encodeFrame, a retry starts again from the frame's first byte
+    public void sendFrame(String node, ByteBuffer frame) throws IOException {
+        transmit(node, sender -> sender.sendFrame(frame.duplicate()));
+    }
+
+    public void sendFile(String node, ByteBuffer header, File file) throws IOException {
+        transmit(node, sender -> sender.sendFile(header.duplicate(), file));
+    }
+
+    private void transmit(String node, Transmission transmission) throws IOException {
+        Destination destination = destinations.computeIfAbsent(node, Destination::new);
+        destination.acquire();
+        try {
+            PooledConnection connection = destination.idle.pollFirst();
+            while (connection != null && !connection.isOpen()) {
+                // closed by the other side while it sat idle, writing to it would lose the message silently
+                connection.close();
+                reconnects.incrementAndGet();
+                connection = destination.idle.pollFirst();
+            }
+            if (connection != null) {
+                try {
+                    transmission.sendOn(connection.sender);
+                    messagesSent.incrementAndGet();
+                    handshakesAvoided.incrementAndGet();
+                    connection.touch();
+                    destination.idle.offerFirst(connection);
+                    return;
+                } catch (IOException e) {
+                    // the other side went away since we last used it, fall through and reconnect
+                    connection.close();
+                    reconnects.incrementAndGet();
+                }
+            }
+            connection = destination.connect();
+            try {
+                transmission.sendOn(connection.sender);
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            messagesSent.incrementAndGet();
+            connection.touch();
+            destination.idle.offerFirst(connection);
+        } finally {
+            destination.release();
+        }
+    }
+
+    // close every pooled connection to the node, e.g. once it has left the ring
+    public void closeConnections(String node) {
+        Destination destination = destinations.remove(node);
+        if (destination != null) {
+            destination.closeAll();
+        }
+    }
+
+    // close every pooled connection and stop the evictor
+    public void shutdown() {
+        evictor.shutdownNow();
+        for (Destination destination : destinations.values()) {
+            destination.closeAll();
+        }
+        destinations.clear();
+    }
+
+    private void evictIdleConnections() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        for (Destination destination : destinations.values()) {
+            destination.idle.removeIf(connection -> {
+                if (connection.lastUsed < cutoff) {
+                    connection.close();
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getHandshakesAvoided() {
+        return handshakesAvoided.get();
+    }
+
+    public int getOpenConnections() {
+        int open = 0;
+        for (Destination destination : destinations.values()) {
+            open += destination.idle.size();
+        }
+        return open;
+    }
+
+    public String getInfo() {
+        return "Connection Pool\nMessages sent: " + messagesSent.get() + "\nHandshakes: " + handshakes.get()
+                + "\nHandshakes avoided: " + handshakesAvoided.get() + "\nReconnects: " + reconnects.get()
+                + "\nIdle evictions: " + evictions.get() + "\nOpen connections: " + getOpenConnections()
+                + " (max " + maxConnectionsPerNode + " per node)\nConnect timeout: " + connectTimeoutMillis + " ms\n";
+    }
+
+    // all connections to a single hostname:port
+    private class Destination {
+        private final String host;
+        private final int port;
+        private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+        private final Semaphore permits = new Semaphore(maxConnectionsPerNode);
+
+        Destination(String node) {
+            String[] nodeInfo = node.split(":");
+            this.host = nodeInfo[0];
+            this.port = Integer.parseInt(nodeInfo[1]);
+        }
+
+        void acquire() throws IOException {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + host + ":" + port);
+            }
+        }
+
+        void release() {
+            permits.release();
+        }
+
+        PooledConnection connect() throws IOException {
+            // opened through a channel so file bodies can be sent with transferTo (sendfile)
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            Socket socket = channel.socket();
+            handshakes.incrementAndGet();
+            return new PooledConnection(new TCPSender(socket), channel);
+        }
+
+        void closeAll() {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // what to write on a connection
+    private interface Transmission {
+        void sendOn(TCPSender sender) throws IOException;
+    }
+
+    private static class PooledConnection {
+        private final TCPSender sender;
+        private final SocketChannel channel;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(TCPSender sender, SocketChannel channel) {
+            this.sender = sender;
+            this.channel = channel;
+        }
+
+        // false if the other side closed or reset the connection (only called while holding the connection)
+        boolean isOpen() {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            try {
+                channel.configureBlocking(false);
+                probe.clear();
+                int read = channel.read(probe);
+                channel.configureBlocking(true);
+                return read == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        void close() {
+            try {
+                sender.closeSocket();
+            } catch (IOException e) {
+                System.out.println("Failed to close pooled connection: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package csx55.transport;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import csx55.dfs.Node;
+import csx55.wireformats.Event;
+import csx55.wireformats.Protocol;
+
+/*
+The EventDispatcher sits between EventFactory.createEvent and Node.onEvent.
+Instead of handling an event on the thread that read it, the reader hands it to one of two executors:
+a control lane for ring maintenance (stabilize, notify, find successor, join, ...) and a bulk lane for file data
+(migration, download). A slow file transfer can then only hold up other file transfers, never stabilization.
+The events of one connection are handled in the order they were read within each lane, one control and one bulk
+event at a time, so a JOIN, NOTIFY, STABILIZE sequence on a connection never overtakes itself while a MIGRATION read
+before it can't hold it up either. Different connections run in parallel.
+The control lane holds at most its queue size of waiting events. Once it is full dispatch() returns false and the
+reader stops reading from that connection until the lane has room again (awaitRoom for a reader thread, whenRoom for
+a selector), so handlers never run on a reading thread. A full bulk lane never stops a reader, since that would leave
+the connection's later control frames unread: its events wait in the connection's bulk backlog instead. That backlog
+stays small, file bodies are already on disk by then and chunked transfers keep at most a window of chunks unacked.
+ */
+public class EventDispatcher {
+
+    public static final String CONTROL_THREADS_PROPERTY = "csx55.dispatch.controlThreads";
+    public static final String CONTROL_QUEUE_PROPERTY = "csx55.dispatch.controlQueue";
+    public static final String BULK_THREADS_PROPERTY = "csx55.dispatch.bulkThreads";
+    public static final String BULK_QUEUE_PROPERTY = "csx55.dispatch.bulkQueue";
+
+    public static final int DEFAULT_CONTROL_THREADS = 4;
+    public static final int DEFAULT_CONTROL_QUEUE = 1024;
+    public static final int DEFAULT_BULK_THREADS = 2;
+    public static final int DEFAULT_BULK_QUEUE = 64;
+
+    private final Node node; // node that will handle the events
+    private final Lane controlLane;
+    private final Lane bulkLane;
+    private final ConcurrentHashMap<Socket, Connection> connections = new ConcurrentHashMap<>();
+
+    public EventDispatcher(Node node) {
+        this(node,
+                Integer.getInteger(CONTROL_THREADS_PROPERTY, DEFAULT_CONTROL_THREADS),
+                Integer.getInteger(CONTROL_QUEUE_PROPERTY, DEFAULT_CONTROL_QUEUE),
+                Integer.getInteger(BULK_THREADS_PROPERTY, DEFAULT_BULK_THREADS),
+                Integer.getInteger(BULK_QUEUE_PROPERTY, DEFAULT_BULK_QUEUE));
+    }
+
+    public EventDispatcher(Node node, int controlThreads, int controlQueue, int bulkThreads, int bulkQueue) {
+        this.node = node;
+        this.controlLane = new Lane("control", controlThreads, controlQueue, false);
+        this.bulkLane = new Lane("bulk", bulkThreads, bulkQueue, true);
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    // file data goes to the bulk lane, everything else (including chunk acks) is control traffic
+    public static boolean isBulk(int eventType) {
+        switch (eventType) {
+            case Protocol.MIGRATION:
+            case Protocol.DOWNLOAD_REQUEST:
+            case Protocol.DOWNLOAD_RESPONSE:
+            case Protocol.FILE_TRANSFER_BEGIN:
+            case Protocol.FILE_CHUNK:
+            case Protocol.FILE_TRANSFER_END:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Lane laneOf(int eventType) {
+        return isBulk(eventType) ? bulkLane : controlLane;
+    }
+
+    /*
+     * Queues the event behind the earlier ones of its lane read from the same connection. The socket is passed
+     * through so the node can still reply on it. Returns false if the control lane is full, the reader should then
+     * stop reading from this connection until awaitRoom returns or the whenRoom action runs. Bulk events are always
+     * taken, past the lane's queue size they wait in the connection's backlog.
+     */
+    public boolean dispatch(Event event, Socket socket) {
+        Lane lane = laneOf(event.getType());
+        lane.added();
+        connections.computeIfAbsent(socket, Connection::new).serialOf(lane).add(event);
+        if (lane.isFull()) {
+            lane.paused.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // blocks a reader thread until the lane of eventType has room, returns at once for the bulk lane
+    public void awaitRoom(int eventType) throws InterruptedException {
+        laneOf(eventType).awaitRoom();
+    }
+
+    // runs the action once the lane of eventType has room, right away if it has some now
+    public void whenRoom(int eventType, Runnable action) {
+        laneOf(eventType).whenRoom(action);
+    }
+
+    // the reader of the socket is done, events already queued from it are still handled
+    public void connectionClosed(Socket socket) {
+        connections.remove(socket);
+    }
+
+    public void shutdown() {
+        controlLane.executor.shutdown();
+        bulkLane.executor.shutdown();
+    }
+
+    public String getInfo() {
+        return "Event Dispatcher\n" + controlLane.getInfo() + bulkLane.getInfo() + "Connections: " + connections.size() + "\n";
+    }
+
+    // the events read from one connection, each lane's handed to it one after the other
+    private class Connection {
+        private final Serial control;
+        private final Serial bulk;
+
+        Connection(Socket socket) {
+            this.control = new Serial(socket, controlLane);
+            this.bulk = new Serial(socket, bulkLane);
+        }
+
+        Serial serialOf(Lane lane) {
+            return lane == bulkLane ? bulk : control;
+        }
+    }
+
+    // the events of one lane read from one connection, at most one of them on the lane at a time
+    private class Serial {
+        private final Socket socket;
+        private final Lane lane;
+        private final ArrayDeque<Event> queue = new ArrayDeque<>(); // guarded by this
+        private boolean running = false; // an event of this queue is on the lane
+
+        Serial(Socket socket, Lane lane) {
+            this.socket = socket;
+            this.lane = lane;
+        }
+
+        synchronized void add(Event event) {
+            queue.addLast(event);
+            if (!running) {
+                running = true;
+                startNext();
+            }
+        }
+
+        // called holding this
+        private void startNext() {
+            Event next = queue.peekFirst();
+            lane.executor.execute(() -> run(next));
+        }
+
+        private void run(Event event) {
+            try {
+                lane.handle(event, socket);
+            } finally {
+                synchronized (this) {
+                    queue.pollFirst();
+                    if (queue.isEmpty()) {
+                        running = false;
+                    } else {
+                        startNext();
+                    }
+                }
+                lane.done();
+            }
+        }
+    }
+
+    // one executor plus the count of events waiting for it
+    private class Lane {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final int capacity;
+        private final boolean backlogged; // past capacity events wait in the connections instead of pausing readers
+        private final AtomicInteger waiting = new AtomicInteger(); // dispatched and not yet handled
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong paused = new AtomicLong(); // times a reader had to stop, or a backlog grew, for a full lane
+        private final ReentrantLock roomLock = new ReentrantLock();
+        private final Condition room = roomLock.newCondition();
+        private final List<Runnable> roomActions = new ArrayList<>(); // guarded by roomLock
+
+        Lane(String name, int threads, int capacity, boolean backlogged) {
+            this.name = name;
+            this.capacity = Math.max(1, capacity);
+            this.backlogged = backlogged;
+            // each connection has at most one event in the executor's queue, the backlog waits in the connections
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    ThreadMode.threadFactory(name + "-handler-"), new ThreadPoolExecutor.DiscardPolicy());
+        }
+
+        // full enough that readers must stop, never for a backlogged lane
+        boolean isFull() {
+            return !backlogged && waiting.get() >= capacity;
+        }
+
+        void added() {
+            int depth = waiting.incrementAndGet();
+            maxDepth.accumulateAndGet(depth, Math::max);
+            if (backlogged && depth > capacity) {
+                paused.incrementAndGet(); // the reader goes on, the event waits in its connection's backlog
+            }
+        }
+
+        void done() {
+            handled.incrementAndGet();
+            if (waiting.decrementAndGet() >= capacity || backlogged) {
+                return;
+            }
+            List<Runnable> actions;
+            roomLock.lock();
+            try {
+                room.signalAll();
+                if (roomActions.isEmpty()) {
+                    return;
+                }
+                actions = new ArrayList<>(roomActions);
+                roomActions.clear();
+            } finally {
+                roomLock.unlock();
+            }
+            actions.forEach(Runnable::run);
+        }
+
+        void awaitRoom() throws InterruptedException {
+            roomLock.lock();
+            try {
+                while (isFull()) {
+                    room.await();
+                }
+            } finally {
+                roomLock.unlock();
+            }
+        }
+
+        void whenRoom(Runnable action) {
+            roomLock.lock();
+            try {
+                if (isFull()) {
+                    roomActions.add(action);
+                    return;
+                }
+            } finally {
+                roomLock.unlock();
+            }
+            action.run();
+        }
+
+        private void handle(Event event, Socket socket) {
+            try {
+                node.onEvent(event, socket);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to handle event " + event.getType() + " on the " + name + " lane: " + e.getMessage());
+            }
+        }
+
+        String getInfo() {
+            return name + " lane: waiting " + waiting.get() + "/" + capacity + " (max " + maxDepth.get() + "), active "
+                    + executor.getActiveCount() + ", handled " + handled.get()
+                    + (backlogged ? ", backlogged past capacity " : ", readers paused when full ") + paused.get() + "\n";
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package csx55.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import csx55.wireformats.FileTransfer;
+import csx55.wireformats.Protocol;
+
+/*
+Moves file bodies between disk and sockets without copying them through the heap.
+Sending uses FileChannel.transferTo (sendfile when the target is a socket channel) and receiving uses
+FileChannel.transferFrom, so memory use stays flat no matter how large the file is.
+ */
+public class FileStreamer {
+
+    // stream the whole file to the target channel
+    public static void sendBody(File file, WritableByteChannel target) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long position = 0;
+            while (position < size) {
+                position += fileChannel.transferTo(position, size - position, target);
+            }
+        }
+    }
+
+    /*
+     * Read the transfer's body from a blocking source channel into a new file in the directory the transfer
+     * belongs in (see targetDirectory and createTarget) and attach the file to the transfer.
+     */
+    public static void receiveBody(ReadableByteChannel source, FileTransfer transfer, Path incomingDirectory) throws IOException {
+        Path target = createTarget(targetDirectory(transfer, incomingDirectory), transfer.getFileName());
+        try (FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            long length = transfer.getContentLength();
+            long position = 0;
+            while (position < length) {
+                long transferred = fileChannel.transferFrom(source, position, length - position);
+                if (transferred <= 0) {
+                    throw new IOException("Connection closed after " + position + " of " + length + " bytes of " + transfer.getFileName());
+                }
+                position += transferred;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        transfer.setFile(target.toFile());
+    }
+
+    /*
+     * Where a received body is written: a downloaded file ends up in the current working directory, so it is
+     * received there, anything else (a migration) goes to the node's incoming directory next to its store.
+     * Either way the finished file is renamed into place on the same file system.
+     */
+    public static Path targetDirectory(FileTransfer transfer, Path incomingDirectory) {
+        return transfer.getType() == Protocol.DOWNLOAD_RESPONSE ? downloadDirectory() : incomingDirectory;
+    }
+
+    // the current working directory, where downloads are saved
+    public static Path downloadDirectory() {
+        return Paths.get("").toAbsolutePath();
+    }
+
+    /*
+     * An empty file to receive a body into. With a directory (see targetDirectory) the file gets a
+     * unique name in it, so concurrent transfers of the same file never share a file and the finished one can be
+     * renamed into place. Without one it is named after the transferred file in its own temporary directory.
+     */
+    public static Path createTarget(Path directory, String fileName) throws IOException {
+        String name = new File(fileName).getName();
+        if (directory != null) {
+            return Files.createTempFile(directory, ".incoming-", "-" + name);
+        }
+        return Files.createFile(Files.createTempDirectory("csx55-transfer-").resolve(name));
+    }
+}
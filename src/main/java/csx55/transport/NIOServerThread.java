@@ -0,0 +1,434 @@
+package csx55.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import csx55.wireformats.Event;
+import csx55.wireformats.EventFactory;
+import csx55.wireformats.FileTransfer;
+
+/*
+The NIOServerThread is the selector based alternative to TCPServerThread.
+The run() method accepts connections and hands them round robin to a small number of event loop threads.
+Each event loop reads the same <int length><payload> frames that TCPSender.sendData writes without blocking,
+and passes every complete frame to the EventDispatcher so a slow handler never stalls a selector.
+When the dispatcher's control lane is full the loop stops reading from that connection (no OP_READ interest) until
+the lane has room again, the other connections of the loop keep going. A full bulk lane never pauses reading.
+File bodies are read by the loop but written to disk by a file writer thread per loop (see Body), so a slow disk or
+a large migration doesn't stall the other connections either.
+ */
+public class NIOServerThread implements ServerThread {
+
+    public static final int DEFAULT_EVENT_LOOPS = 2;
+    private static final int BODY_CHUNK_SIZE = 64 * 1024; // file bodies are read off the socket in chunks this big
+    private static final int MAX_QUEUED_CHUNKS = 16; // chunks a connection may have waiting for the file writer
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] eventLoops;
+    private final EventDispatcher dispatcher; // runs Node.onEvent off the selector threads
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final BufferPool bufferPool = BufferPool.getInstance(); // receive buffers shared by all connections
+
+    public NIOServerThread(int port, EventDispatcher dispatcher, int eventLoopCount) throws IOException {
+        this.dispatcher = dispatcher;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        this.acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(i);
+            Thread loopThread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+    }
+
+    public int getPortNumber() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /*
+     * Accepts incoming connections and registers each one with the next event loop.
+     */
+    public void run() {
+        try {
+            while (serverChannel.isOpen()) {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        SocketChannel clientChannel = serverChannel.accept();
+                        if (clientChannel != null) {
+                            clientChannel.configureBlocking(false);
+                            eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)].register(clientChannel);
+                        }
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // shutdown() closed the selector
+        } catch (IOException e) {
+            System.out.println("NIOServerThread IOException: " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    public void shutdown() {
+        try {
+            serverChannel.close();
+            acceptSelector.close();
+        } catch (IOException e) {
+            System.out.println("Error closing server channel: " + e.getMessage());
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+    }
+
+    // one selector thread serving many connections
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingResumes = new ConcurrentLinkedQueue<>();
+        private final ExecutorService fileWriter; // creates, writes and closes the files bodies are received into
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.fileWriter = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "nio-file-writer-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        // start reading from a paused connection again, called from any thread
+        void resume(Connection connection) {
+            pendingResumes.add(connection);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pendingRegistrations.poll()) != null) {
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    Connection resumed;
+                    while ((resumed = pendingResumes.poll()) != null) {
+                        if (resumed.key.isValid()) {
+                            resumed.key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            Connection connection = (Connection) key.attachment();
+                            try {
+                                connection.read();
+                            } catch (BufferPool.FrameTooLargeException e) {
+                                System.out.println("Closing connection from " + connection.channel.getRemoteAddress() + ": " + e.getMessage());
+                                connection.close();
+                            } catch (IOException e) {
+                                connection.close();
+                            } catch (RuntimeException e) {
+                                // a frame we can't make sense of, only this connection goes, the loop keeps serving the rest
+                                System.out.println("Closing connection from " + connection.channel.socket().getRemoteSocketAddress() + ": " + e);
+                                connection.close();
+                            }
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // close() closed the selector
+            } catch (IOException e) {
+                System.out.println("NIO event loop IOException: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            fileWriter.shutdown();
+            if (!selector.isOpen()) {
+                return;
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                System.out.println("Error closing event loop: " + e.getMessage());
+            }
+        }
+    }
+
+    // framing state for a single connection
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private SelectionKey key;
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        private ByteBuffer dataBuffer; // null while the length prefix is being read
+        private Body body; // set while the body of a FileTransfer is being read
+
+        Connection(SocketChannel channel, EventLoop eventLoop) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+        }
+
+        // read whatever is available and dispatch every frame that completes
+        void read() throws IOException {
+            while (true) {
+                if (body != null) {
+                    if (!readBody()) {
+                        return;
+                    }
+                    continue;
+                }
+                if (dataBuffer == null) {
+                    if (channel.read(lengthBuffer) < 0) {
+                        throw new IOException("Connection closed by peer");
+                    }
+                    if (lengthBuffer.hasRemaining()) {
+                        return;
+                    }
+                    lengthBuffer.flip();
+                    int dataLength = lengthBuffer.getInt();
+                    lengthBuffer.clear();
+                    // throws (and the event loop closes the connection) if the length is over the maximum frame size
+                    dataBuffer = ByteBuffer.wrap(bufferPool.acquire(dataLength), 0, dataLength);
+                }
+                if (channel.read(dataBuffer) < 0) {
+                    throw new IOException("Connection closed by peer");
+                }
+                if (dataBuffer.hasRemaining()) {
+                    return;
+                }
+                ByteBuffer frame = dataBuffer;
+                dataBuffer = null;
+                frame.flip();
+                Event event;
+                try {
+                    event = EventFactory.getInstance().createEvent(frame); // decoded in place from the pooled buffer
+                } finally {
+                    bufferPool.release(frame.array()); // the event has copied out everything it needs
+                }
+                if (event instanceof FileTransfer && ((FileTransfer) event).hasBody()) {
+                    // the file contents follow, hold the event back until they are on disk
+                    body = new Body((FileTransfer) event, this);
+                    eventLoop.fileWriter.execute(body::open);
+                } else if (event != null && !dispatch(event)) {
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Reads available body bytes into pooled chunks and queues them for the file writer. Returns true if more
+         * frames can be read, false while more of the body is to come or reading is paused: when too many chunks
+         * wait for the writer, and after the last chunk until the writer has closed the file and dispatched the
+         * transfer (so the next frame of this connection can't be handled before it).
+         */
+        private boolean readBody() throws IOException {
+            while (body.remaining > 0) {
+                if (body.queued.get() >= MAX_QUEUED_CHUNKS) {
+                    body.waitingForWriter.set(true);
+                    // the writer may have caught up in between, then it won't resume us
+                    if (body.queued.get() >= MAX_QUEUED_CHUNKS || !body.waitingForWriter.compareAndSet(true, false)) {
+                        key.interestOps(0);
+                        return false;
+                    }
+                }
+                int length = (int) Math.min(BODY_CHUNK_SIZE, body.remaining);
+                byte[] chunk = bufferPool.acquire(length);
+                int read;
+                try {
+                    read = channel.read(ByteBuffer.wrap(chunk, 0, length));
+                } catch (IOException e) {
+                    bufferPool.release(chunk);
+                    throw e;
+                }
+                if (read <= 0) {
+                    bufferPool.release(chunk);
+                    if (read < 0) {
+                        throw new IOException("Connection closed in the middle of " + body.transfer.getFileName());
+                    }
+                    return false;
+                }
+                body.remaining -= read;
+                body.queued.incrementAndGet();
+                Body target = body;
+                eventLoop.fileWriter.execute(() -> target.write(chunk, read));
+            }
+            Body finished = body;
+            body = null;
+            key.interestOps(0);
+            eventLoop.fileWriter.execute(finished::finish);
+            return false;
+        }
+
+        // false if the control lane is full, reading then pauses until it has room
+        private boolean dispatch(Event event) {
+            if (dispatcher.dispatch(event, channel.socket())) { // the socket lets the node reply on this connection
+                return true;
+            }
+            key.interestOps(0);
+            dispatcher.whenRoom(event.getType(), () -> eventLoop.resume(this));
+            return false;
+        }
+
+        void close() {
+            if (dataBuffer != null) {
+                bufferPool.release(dataBuffer.array());
+                dataBuffer = null;
+            }
+            if (body != null) {
+                // drop the partly received file once the writes already queued are done
+                Body partial = body;
+                body = null;
+                try {
+                    eventLoop.fileWriter.execute(partial::abort);
+                } catch (RejectedExecutionException e) {
+                    partial.abort(); // shutting down
+                }
+            }
+            dispatcher.connectionClosed(channel.socket());
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * A file body on its way to disk. The event loop only reads it off the socket, everything that touches the
+     * file runs on the loop's file writer, in order, so a slow disk never holds up the selector.
+     */
+    private class Body {
+        private final FileTransfer transfer;
+        private final Connection connection;
+        private long remaining; // bytes still to read, event loop only
+        private final AtomicInteger queued = new AtomicInteger(); // chunks read and not yet written
+        private final AtomicBoolean waitingForWriter = new AtomicBoolean(); // reading paused until queued drains
+
+        // file writer only
+        private Path path;
+        private FileChannel fileChannel;
+        private IOException error;
+
+        Body(FileTransfer transfer, Connection connection) {
+            this.transfer = transfer;
+            this.connection = connection;
+            this.remaining = transfer.getContentLength();
+        }
+
+        void open() {
+            try {
+                Path directory = FileStreamer.targetDirectory(transfer, dispatcher.getNode().getIncomingDirectory());
+                path = FileStreamer.createTarget(directory, transfer.getFileName());
+                fileChannel = FileChannel.open(path, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        void write(byte[] chunk, int length) {
+            try {
+                if (error == null) {
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                    while (buffer.hasRemaining()) {
+                        fileChannel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                bufferPool.release(chunk);
+                if (queued.decrementAndGet() <= MAX_QUEUED_CHUNKS / 2 && waitingForWriter.compareAndSet(true, false)) {
+                    connection.eventLoop.resume(connection);
+                }
+            }
+        }
+
+        // the whole body is written, hand the transfer on and let the connection read its next frame
+        void finish() {
+            closeFile();
+            if (error != null) {
+                // the body was still read to the end, so the connection's framing is intact
+                System.out.println("Failed to receive " + transfer.getFileName() + ": " + error.getMessage());
+                deleteFile();
+                connection.eventLoop.resume(connection);
+                return;
+            }
+            transfer.setFile(path.toFile());
+            if (dispatcher.dispatch(transfer, connection.channel.socket())) {
+                connection.eventLoop.resume(connection);
+            } else {
+                dispatcher.whenRoom(transfer.getType(), () -> connection.eventLoop.resume(connection));
+            }
+        }
+
+        void abort() {
+            closeFile();
+            deleteFile();
+        }
+
+        private void closeFile() {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+                fileChannel = null;
+            }
+        }
+
+        private void deleteFile() {
+            if (path != null) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.out.println("Error removing partial file: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
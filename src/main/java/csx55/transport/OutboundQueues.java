@@ -0,0 +1,332 @@
+package csx55.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import csx55.wireformats.Event;
+import csx55.wireformats.FileTransfer;
+
+/*
+Outgoing messages of a node, queued per destination instead of written by the thread that sends them.
+Every hostname:port gets one bounded queue and its own writer thread. send() encodes the event right away, so the
+caller can reuse or change it, queues the frame and returns. The future it returns completes once the frame is on
+the wire, or fails if it was dropped or couldn't be written.
+Messages to one node are written in the order they were sent, file data included, because later messages can depend
+on earlier ones (the PeerExit before the Migrations of an exit, the begin, chunks and end of a transfer). The writer
+keeps using the same pooled connection and the EventDispatcher handles a connection's events in order, so they are
+handled in that order too. A large file body only delays the messages queued behind it for the same node.
+A connect that fails or times out fails everything queued for that destination, and for the next
+csx55.outbound.retryMillis ms new messages to it fail immediately, so a dead neighbour only costs the messages
+addressed to it. When a queue is full the csx55.outbound.policy decides: reject the new message (default),
+drop the oldest queued one, or block the sender up to csx55.outbound.blockMillis ms.
+Writers are started on the first message and stop again after a while without any.
+ */
+public class OutboundQueues {
+
+    public static final String QUEUE_SIZE_PROPERTY = "csx55.outbound.queue";
+    public static final String POLICY_PROPERTY = "csx55.outbound.policy";
+    public static final String BLOCK_MILLIS_PROPERTY = "csx55.outbound.blockMillis";
+    public static final String RETRY_MILLIS_PROPERTY = "csx55.outbound.retryMillis";
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final long DEFAULT_BLOCK_MILLIS = 1000;
+    public static final long DEFAULT_RETRY_MILLIS = 1000;
+    private static final long WRITER_IDLE_MILLIS = 10000; // a writer with nothing to send for this long stops
+
+    // what to do with a message for a full queue
+    public enum Policy {
+        REJECT, DROP_OLDEST, BLOCK;
+
+        static Policy parse(String name) {
+            switch (name.toLowerCase()) {
+                case "drop-oldest":
+                    return DROP_OLDEST;
+                case "block":
+                    return BLOCK;
+                case "reject":
+                    return REJECT;
+                default:
+                    System.out.println("Unknown outbound queue policy " + name + ", using reject");
+                    return REJECT;
+            }
+        }
+    }
+
+    private final ConnectionPool connectionPool;
+    private final BufferPool bufferPool = BufferPool.getInstance();
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final int queueSize;
+    private final Policy policy;
+    private final long blockMillis;
+    private final long retryMillis;
+    private volatile boolean closed = false;
+
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition drained = pendingLock.newCondition(); // signalled when pending drops to 0
+    private int pending = 0; // queued or being written, guarded by pendingLock
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    public OutboundQueues(ConnectionPool connectionPool) {
+        this(connectionPool, Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE),
+                Policy.parse(System.getProperty(POLICY_PROPERTY, "reject")),
+                Long.getLong(BLOCK_MILLIS_PROPERTY, DEFAULT_BLOCK_MILLIS),
+                Long.getLong(RETRY_MILLIS_PROPERTY, DEFAULT_RETRY_MILLIS));
+    }
+
+    public OutboundQueues(ConnectionPool connectionPool, int queueSize, Policy policy, long blockMillis, long retryMillis) {
+        this.connectionPool = connectionPool;
+        this.queueSize = Math.max(1, queueSize);
+        this.policy = policy;
+        this.blockMillis = blockMillis;
+        this.retryMillis = retryMillis;
+    }
+
+    /*
+     * Queues the event for hostname:port. Only a full queue under the block policy makes the caller wait,
+     * a failure is reported through the returned future.
+     */
+    public CompletableFuture<Void> send(String node, Event event) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new SendFailedException("Outbound queues are shut down"));
+        }
+        Lane lane = lanes.computeIfAbsent(node, Lane::new);
+        if (System.currentTimeMillis() < lane.failingUntil) {
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(new SendFailedException(node + " was unreachable " + lane.lastError));
+        }
+        Frame frame;
+        try {
+            frame = new Frame(TCPSender.encodeFrame(event, bufferPool), event instanceof FileTransfer ? ((FileTransfer) event).getFile() : null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new SendFailedException("Failed to encode " + event.getClass().getSimpleName() + ": " + e.getMessage()));
+        }
+        pendingLock.lock();
+        try {
+            pending++;
+        } finally {
+            pendingLock.unlock();
+        }
+        lane.enqueue(frame);
+        return frame.done;
+    }
+
+    /*
+     * Waits up to timeoutMillis for everything queued so far to be written (or given up on).
+     * Returns false if messages were still waiting when the time ran out.
+     */
+    public boolean flush(long timeoutMillis) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        pendingLock.lock();
+        try {
+            while (pending > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = drained.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // a frame was written or given up on
+    private void finished() {
+        pendingLock.lock();
+        try {
+            pending--;
+            if (pending == 0) {
+                drained.signalAll();
+            }
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private int pending() {
+        pendingLock.lock();
+        try {
+            return pending;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // fail whatever is still queued and stop the writers, the connection pool is closed by its owner
+    public void shutdown() {
+        closed = true;
+        for (Lane lane : lanes.values()) {
+            lane.failQueued(new SendFailedException("Outbound queues are shut down"));
+            Thread writer = lane.writer;
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+    }
+
+    public String getInfo() {
+        StringBuilder info = new StringBuilder("Outbound Queues\n");
+        info.append("Policy: ").append(policy.name().toLowerCase().replace('_', '-')).append(", ").append(queueSize).append(" messages per queue\n");
+        info.append("Sent: ").append(sent.get()).append("\nFailed: ").append(failed.get()).append("\nRejected: ").append(rejected.get())
+                .append("\nDropped: ").append(dropped.get()).append("\nBlocked senders: ").append(blocked.get())
+                .append("\nWaiting: ").append(pending()).append("\n");
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Lane> entry : new TreeMap<>(lanes).entrySet()) {
+            Lane lane = entry.getValue();
+            info.append(String.format("%-30s queued %4d, sent %8d, failed %6d%s%s%n", entry.getKey(), lane.queue.size(), lane.sent.get(),
+                    lane.failed.get(), lane.writing.get() ? ", writing" : "",
+                    now < lane.failingUntil ? ", unreachable for " + (lane.failingUntil - now) + " ms" : ""));
+        }
+        return info.toString();
+    }
+
+    // an encoded message waiting for its writer
+    private class Frame {
+        final ByteBuffer frame; // length prefix and payload, in a pooled buffer
+        final File file; // body that follows the frame, or null
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Frame(ByteBuffer frame, File file) {
+            this.frame = frame;
+            this.file = file;
+        }
+
+        void complete() {
+            bufferPool.release(frame.array());
+            finished();
+            done.complete(null);
+        }
+
+        void fail(IOException error) {
+            bufferPool.release(frame.array());
+            finished();
+            done.completeExceptionally(error);
+        }
+    }
+
+    // the queue and writer for one destination
+    private class Lane {
+        final String node;
+        final LinkedBlockingDeque<Frame> queue = new LinkedBlockingDeque<>(queueSize);
+        final AtomicBoolean writing = new AtomicBoolean(); // true while a writer thread owns this lane
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        volatile Thread writer;
+        volatile long failingUntil = 0; // fail fast until then, the last write to node failed
+        volatile String lastError = "";
+
+        Lane(String node) {
+            this.node = node;
+        }
+
+        void enqueue(Frame frame) {
+            boolean queued = queue.offerLast(frame);
+            if (!queued) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        // the oldest message is the most likely to be out of date by now
+                        while (!queued) {
+                            Frame oldest = queue.pollFirst();
+                            if (oldest != null) {
+                                dropped.incrementAndGet();
+                                oldest.fail(new SendFailedException("Dropped from the full queue to " + node));
+                            }
+                            queued = queue.offerLast(frame);
+                        }
+                        break;
+                    case BLOCK:
+                        blocked.incrementAndGet();
+                        try {
+                            queued = queue.offerLast(frame, blockMillis, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (!queued) {
+                rejected.incrementAndGet();
+                frame.fail(new SendFailedException("Outbound queue to " + node + " is full"));
+                return;
+            }
+            startWriter();
+        }
+
+        private void startWriter() {
+            if (writing.compareAndSet(false, true)) {
+                writer = ThreadMode.start(this::drain, "outbound-" + node + "-");
+            }
+        }
+
+        private void drain() {
+            while (!closed) {
+                Frame frame;
+                try {
+                    frame = queue.pollFirst(WRITER_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    frame = null;
+                }
+                if (frame == null) {
+                    writing.set(false);
+                    // a message queued just before we let go still needs a writer
+                    if (closed || queue.isEmpty() || !writing.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                write(frame);
+            }
+            writing.set(false);
+        }
+
+        private void write(Frame frame) {
+            try {
+                if (frame.file != null) {
+                    connectionPool.sendFile(node, frame.frame, frame.file);
+                } else {
+                    connectionPool.sendFrame(node, frame.frame);
+                }
+                OutboundQueues.this.sent.incrementAndGet();
+                sent.incrementAndGet();
+                frame.complete();
+            } catch (IOException e) {
+                System.out.println("Failed to send message to node: " + node + "\nerror: " + e.getMessage());
+                lastError = "(" + e.getMessage() + ")";
+                failingUntil = System.currentTimeMillis() + retryMillis;
+                failed.incrementAndGet();
+                OutboundQueues.this.failed.incrementAndGet();
+                frame.fail(new SendFailedException("Failed to send message to node: " + node + ": " + e.getMessage()));
+                // everything behind it would wait on the same dead peer
+                failQueued(new SendFailedException(node + " is unreachable " + lastError));
+            }
+        }
+
+        void failQueued(SendFailedException error) {
+            Frame frame;
+            while ((frame = queue.pollFirst()) != null) {
+                failed.incrementAndGet();
+                OutboundQueues.this.failed.incrementAndGet();
+                frame.fail(error);
+            }
+        }
+    }
+}
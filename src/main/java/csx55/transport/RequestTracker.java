@@ -0,0 +1,90 @@
+package csx55.transport;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import csx55.wireformats.Event;
+
+/*
+Client side of the request/response layer.
+register() stamps an outgoing request with a fresh request ID and returns a future that is completed
+when a response carrying the same ID comes back (on any connection), or fails once the timeout passes.
+This lets a node keep any number of lookups and downloads in flight and hand each result to its own caller.
+ */
+public class RequestTracker {
+
+    // random start so IDs from different nodes are unlikely to collide, 0 is reserved for uncorrelated events
+    private final AtomicLong nextRequestID = new AtomicLong(ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE / 2));
+    private final ConcurrentHashMap<Long, CompletableFuture<Event>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public RequestTracker() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "request-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * Assigns the request a new request ID and returns the future for its response.
+     */
+    public CompletableFuture<Event> register(Event request, long timeoutMillis) {
+        long requestID = nextRequestID.getAndIncrement();
+        request.setRequestID(requestID);
+        CompletableFuture<Event> future = new CompletableFuture<>();
+        pending.put(requestID, future);
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (pending.remove(requestID, future)) {
+                timedOut.incrementAndGet();
+                future.completeExceptionally(new TimeoutException("No response to request " + requestID + " after " + timeoutMillis + " ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((response, error) -> timeout.cancel(false));
+        return future;
+    }
+
+    /*
+     * Completes the future waiting for this response.
+     * Returns false if nobody is waiting for it (uncorrelated, or it arrived after its timeout).
+     */
+    public boolean complete(Event response) {
+        long requestID = response.getRequestID();
+        if (requestID == 0) {
+            return false;
+        }
+        CompletableFuture<Event> future = pending.remove(requestID);
+        if (future == null) {
+            return false;
+        }
+        completed.incrementAndGet();
+        future.complete(response);
+        return true;
+    }
+
+    // fail a request early, e.g. when it could not be sent
+    public void fail(Event request, Throwable cause) {
+        CompletableFuture<Event> future = pending.remove(request.getRequestID());
+        if (future != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    public int getOutstanding() {
+        return pending.size();
+    }
+
+    public String getInfo() {
+        return "Requests\nOutstanding: " + pending.size() + "\nCompleted: " + completed.get() + "\nTimed out: " + timedOut.get() + "\n";
+    }
+}
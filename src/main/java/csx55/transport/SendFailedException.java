@@ -0,0 +1,26 @@
+package csx55.transport;
+
+import java.io.IOException;
+
+/*
+A message that never made it onto the wire: its destination couldn't be reached, its queue was full or the
+node is shutting down. Lets a caller tell "the peer is gone, route around it" apart from a peer that is just slow.
+ */
+public class SendFailedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public SendFailedException(String message) {
+        super(message);
+    }
+
+    // true if error, or the failure wrapped in it by a dependent CompletableFuture stage, is a SendFailedException
+    public static boolean isSendFailure(Throwable error) {
+        while (error != null) {
+            if (error instanceof SendFailedException) {
+                return true;
+            }
+            error = error.getCause();
+        }
+        return false;
+    }
+}
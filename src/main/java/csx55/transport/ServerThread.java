@@ -0,0 +1,18 @@
+package csx55.transport;
+
+/*
+A ServerThread listens for incoming connections and hands every message it receives to its node.
+TCPServerThread does this with one blocking thread per connection, NIOServerThread with a few selector threads.
+ */
+public interface ServerThread extends Runnable {
+
+    /*
+     * returns the port number the server is listening on
+     */
+    int getPortNumber();
+
+    /*
+     * stops accepting connections and closes the server socket
+     */
+    void shutdown();
+}
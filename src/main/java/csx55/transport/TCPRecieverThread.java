@@ -4,21 +4,29 @@ import java.net.Socket;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 import csx55.dfs.Node;
 import csx55.wireformats.Event;
 import csx55.wireformats.EventFactory;
+import csx55.wireformats.FileTransfer;
 
 public class TCPRecieverThread implements Runnable {
 
     private Socket socket;      // socket to receive messages from
     private DataInputStream din;  // input stream to receive messages from
-    private Node recieverNode;        // reciever node
+    private EventDispatcher dispatcher;  // hands events to the reciever node off this thread
+    private final BufferPool bufferPool = BufferPool.getInstance(); // receive buffers shared by all connections
+    private final EventFactory eventFactory = EventFactory.getInstance();
+    private final ReadableByteChannel bodySource; // where file bodies are read from
 
-    public TCPRecieverThread(Socket socket, Node node) throws IOException {
+    public TCPRecieverThread(Socket socket, EventDispatcher dispatcher) throws IOException {
         this.socket = socket;  // set socket to communicate with
         din = new DataInputStream(socket.getInputStream()); // set input stream to communicate with
-        this.recieverNode = node;
+        this.dispatcher = dispatcher;
+        // read file bodies from the socket's channel when it has one, otherwise through the (unbuffered) input stream
+        this.bodySource = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(din);
     }
 
     public void run() {
@@ -26,31 +34,68 @@ public class TCPRecieverThread implements Runnable {
         int dataLength = -1; // length of data to receive
             byte[] data = null; // Initialize data to null
 
-        while (socket != null) {
-            try {
-                dataLength = din.readInt(); // read length of data to receive
-                data = new byte[dataLength]; // create byte array to store data to receive
-                /* Parameters of readFully() method:
-                b - the buffer into which the data is read.
-                off - the start offset of the data.
-                len - the number of bytes to read.
-                */
-                din.readFully(data, 0, dataLength); // read data to receive
-                EventFactory eventFactory = new EventFactory();
-                Event event = eventFactory.createEvent(data); // create event from data
-                recieverNode.onEvent(event, socket);  // I am adding the socket as a param so I can send messages back
+        try {
+            while (socket != null) {
+                try {
+                    dataLength = din.readInt(); // read length of data to receive
+                    data = bufferPool.acquire(dataLength); // pooled byte array, may be longer than the data to receive
+                    Event event;
+                    try {
+                        /* Parameters of readFully() method:
+                        b - the buffer into which the data is read.
+                        off - the start offset of the data.
+                        len - the number of bytes to read.
+                        */
+                        din.readFully(data, 0, dataLength); // read data to receive
+                        event = eventFactory.createEvent(data, dataLength); // decode the frame straight out of the pooled buffer
+                    } finally {
+                        bufferPool.release(data); // the event has copied out everything it needs
+                    }
+                    if (event instanceof FileTransfer && ((FileTransfer) event).hasBody()) {
+                        // the file contents follow the header frame, stream them to disk before handling the event
+                        FileStreamer.receiveBody(bodySource, (FileTransfer) event, dispatcher.getNode().getIncomingDirectory());
+                    }
+                    // I am adding the socket as a param so I can send messages back
+                    if (event != null && !dispatcher.dispatch(event, socket)) {
+                        // the control lane is full, stop reading from this connection until it has room
+                        dispatcher.awaitRoom(event.getType());
+                    }
 
-            } catch (SocketException se) {
-                // System.out.println("Socket exception in TCPRecieverThread: " + se.getMessage());
-                break;
-            }
-            catch (IOException ioe) {
-                // System.out.println("IOException in TCPRecieverThread: " + ioe.getMessage());
-                // System.out.println("Data length: " + dataLength);
-                // System.out.println("Data array length: " + data.length);
-                // ioe.printStackTrace();
-                break;
+                } catch (BufferPool.FrameTooLargeException fe) {
+                    // we can't skip hundreds of MB safely, so drop the connection
+                    System.out.println("Closing connection from " + socket.getRemoteSocketAddress() + ": " + fe.getMessage());
+                    try {
+                        socket.close();
+                    } catch (IOException ioe) {
+                        System.out.println("Failed to close socket: " + ioe.getMessage());
+                    }
+                    break;
+                } catch (SocketException se) {
+                    // System.out.println("Socket exception in TCPRecieverThread: " + se.getMessage());
+                    break;
+                }
+                catch (IOException ioe) {
+                    // System.out.println("IOException in TCPRecieverThread: " + ioe.getMessage());
+                    // System.out.println("Data length: " + dataLength);
+                    // System.out.println("Data array length: " + data.length);
+                    // ioe.printStackTrace();
+                    break;
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (RuntimeException re) {
+                    // whatever went wrong with this connection, the dispatcher still has to hear that it is gone
+                    System.out.println("Closing connection from " + socket.getRemoteSocketAddress() + ": " + re);
+                    try {
+                        socket.close();
+                    } catch (IOException ioe) {
+                        System.out.println("Failed to close socket: " + ioe.getMessage());
+                    }
+                    break;
+                }
             }
+        } finally {
+            dispatcher.connectionClosed(socket); // however the loop ended, drop the connection's entry
         }
     }
 
@@ -59,7 +104,7 @@ public class TCPRecieverThread implements Runnable {
     }
 
     public Node getNode() {
-        return recieverNode;
+        return dispatcher.getNode();
     }
 
     public void closeSocket() throws IOException {
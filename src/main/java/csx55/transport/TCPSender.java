@@ -1,10 +1,18 @@
 package csx55.transport;
 
 import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
 import csx55.dfs.Node;
+import csx55.wireformats.Event;
 
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 
 /* 
@@ -14,20 +22,137 @@ public class TCPSender {
     
     private Socket socket; // socket to send messages to
     private DataOutputStream dout; // output stream to send messages to
+    private SocketChannel channel; // set when the socket was opened from a channel (pooled or accepted by the NIOServerThread)
+    private final ReentrantLock sendLock = new ReentrantLock(); // a lock instead of synchronized so virtual threads don't pin while writing
     private Node senderNode; // node that will send messages 
+    private final BufferPool bufferPool = BufferPool.getInstance(); // frames are encoded into pooled buffers
 
     // constructor for TCPSender
     public TCPSender(Socket socket) throws IOException {
         this.socket = socket;  // set socket to communicate with
         dout = new DataOutputStream(socket.getOutputStream()); // set output stream to communicate with
+        channel = socket.getChannel();
     }
 
-    // send message to socket (This is syncronized to prevent multiple threads from sending messages at the same time.)
-    public synchronized void sendData(byte[] dataToSend) throws IOException {
+    // send message to socket (This is locked to prevent multiple threads from sending messages at the same time.)
+    public void sendData(byte[] dataToSend) throws IOException {
         int dataLength = dataToSend.length; // get length of data to send
-        dout.writeInt(dataLength); // write length of data to send
-        dout.write(dataToSend, 0, dataLength); // write data to send
-        dout.flush(); // flush the output stream
+        sendLock.lock();
+        try {
+            if (channel != null && !channel.isBlocking()) {
+                // non-blocking channels can't be written through the stream, so write the frame to the channel directly
+                ByteBuffer[] frame = { ByteBuffer.allocate(4).putInt(0, dataLength), ByteBuffer.wrap(dataToSend) };
+                while (frame[1].hasRemaining()) {
+                    if (channel.write(frame) == 0) {
+                        Thread.yield(); // socket send buffer is full, wait for it to drain
+                    }
+                }
+                return;
+            }
+            dout.writeInt(dataLength); // write length of data to send
+            dout.write(dataToSend, 0, dataLength); // write data to send
+            dout.flush(); // flush the output stream
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /*
+     * Encode the event straight into a pooled buffer, behind room for the length prefix, and write that buffer
+     * as the frame. No byte[] is built per message.
+     */
+    public void sendEvent(Event event) throws IOException {
+        ByteBuffer frame = encodeFrame(event, bufferPool);
+        try {
+            sendFrame(frame);
+        } finally {
+            bufferPool.release(frame.array());
+        }
+    }
+
+    /*
+     * Encodes the event as a complete frame (length prefix and payload) in a buffer taken from the pool.
+     * If the event doesn't fit its size hint it is encoded again into a buffer twice as big.
+     * The caller hands frame.array() back to the pool once the frame has been written.
+     */
+    public static ByteBuffer encodeFrame(Event event, BufferPool pool) throws IOException {
+        int capacity = event.getEncodedLengthHint() + 4;
+        while (true) {
+            byte[] frame = pool.acquire(capacity);
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            buffer.position(4);
+            try {
+                event.encode(buffer);
+            } catch (BufferOverflowException e) {
+                pool.release(frame);
+                capacity = frame.length * 2;
+                continue;
+            } catch (IOException e) {
+                pool.release(frame);
+                throw e;
+            }
+            buffer.putInt(0, buffer.position() - 4); // length prefix
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    // write a frame that already carries its length prefix
+    public void sendFrame(ByteBuffer frame) throws IOException {
+        sendLock.lock();
+        try {
+            if (channel != null) {
+                while (frame.hasRemaining()) {
+                    if (channel.write(frame) == 0) {
+                        Thread.yield(); // socket send buffer is full, wait for it to drain
+                    }
+                }
+                return;
+            }
+            dout.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            dout.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /*
+     * Send a header frame followed by the raw contents of the file.
+     * The body goes from the file to the socket with transferTo, so it is never copied into the heap.
+     */
+    public void sendFile(byte[] header, File file) throws IOException {
+        sendLock.lock();
+        try {
+            sendData(header);
+            WritableByteChannel target = channel != null ? channel : Channels.newChannel(dout);
+            FileStreamer.sendBody(file, target);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // same as sendFile(byte[], File) with a header frame that was already encoded (see encodeFrame)
+    public void sendFile(ByteBuffer header, File file) throws IOException {
+        sendLock.lock();
+        try {
+            sendFrame(header);
+            WritableByteChannel target = channel != null ? channel : Channels.newChannel(dout);
+            FileStreamer.sendBody(file, target);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // same as sendFile(byte[], File) with the header encoded into a pooled buffer
+    public void sendFile(Event header, File file) throws IOException {
+        sendLock.lock();
+        try {
+            sendEvent(header);
+            WritableByteChannel target = channel != null ? channel : Channels.newChannel(dout);
+            FileStreamer.sendBody(file, target);
+        } finally {
+            sendLock.unlock();
+        }
     }
 
     // Do i want these?
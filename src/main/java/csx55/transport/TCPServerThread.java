@@ -6,8 +6,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import csx55.dfs.Node;
-
 /* 
 The TCPServerThread class will be a Runnable to allow it to be executed in a separate thread.
 It will have a ServerSocket member to listen for incoming connections.
@@ -15,16 +13,16 @@ The constructor will initialize the ServerSocket on a given port.
 */
 
 
-public class TCPServerThread implements Runnable {
+public class TCPServerThread implements ServerThread {
 
     private ServerSocket serverSocket;  // server socket to listen for incoming connections
     private List<TCPRecieverThread> receiverThreads;  // list of threads to handle incoming messages
-    private Node node; // node that will handle incoming messages
+    private EventDispatcher dispatcher; // hands incoming messages to the node
 
-    public TCPServerThread(int port, Node node) throws IOException {
+    public TCPServerThread(int port, EventDispatcher dispatcher) throws IOException {
         serverSocket = new ServerSocket(port);
         receiverThreads = new ArrayList<>();
-        this.node = node;
+        this.dispatcher = dispatcher;
     }
 
     public int getPortNumber() {
@@ -38,9 +36,9 @@ public class TCPServerThread implements Runnable {
         try {
             while (!serverSocket.isClosed()) {
                 Socket clientSocket = serverSocket.accept(); // Accept incoming connection
-                TCPRecieverThread receiverThread = new TCPRecieverThread(clientSocket, node);
+                TCPRecieverThread receiverThread = new TCPRecieverThread(clientSocket, dispatcher);
                 receiverThreads.add(receiverThread);
-                new Thread(receiverThread).start(); // Start a new thread for each connection
+                ThreadMode.start(receiverThread, "receiver-"); // Start a new (platform or virtual) thread for each connection
             }
         } catch (IOException e) {
             System.out.println("TCPServerThread IOException: " + e.getMessage());
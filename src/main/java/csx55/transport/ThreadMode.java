@@ -0,0 +1,65 @@
+package csx55.transport;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Decides which kind of thread runs the receivers and the event handlers, selected at startup with
+-Dcsx55.threads=platform|virtual. In virtual mode every receiver and handler runs on a virtual thread,
+so a handler that sleeps or blocks on a socket parks cheaply instead of holding an OS thread.
+Virtual threads are looked up reflectively so the code still builds and runs on JDKs without them
+(we fall back to platform threads with a warning there).
+ */
+public class ThreadMode {
+
+    public static final String THREADS_PROPERTY = "csx55.threads";
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private static final AtomicInteger platformThreadCount = new AtomicInteger();
+    private static volatile Boolean virtualThreads; // resolved on first use
+
+    public static boolean useVirtualThreads() {
+        if (virtualThreads == null) {
+            synchronized (ThreadMode.class) {
+                if (virtualThreads == null) {
+                    String mode = System.getProperty(THREADS_PROPERTY, PLATFORM).toLowerCase();
+                    boolean wantVirtual = mode.equals(VIRTUAL);
+                    if (wantVirtual && virtualThreadFactory("probe-") == null) {
+                        System.out.println("Virtual threads are not available on this JVM (needs JDK 21+), using platform threads");
+                        wantVirtual = false;
+                    }
+                    virtualThreads = wantVirtual;
+                }
+            }
+        }
+        return virtualThreads;
+    }
+
+    // thread factory for the selected mode, thread names start with namePrefix
+    public static ThreadFactory threadFactory(String namePrefix) {
+        if (useVirtualThreads()) {
+            return virtualThreadFactory(namePrefix);
+        }
+        return runnable -> new Thread(runnable, namePrefix + platformThreadCount.getAndIncrement());
+    }
+
+    // start the runnable on a new thread of the selected kind
+    public static Thread start(Runnable runnable, String namePrefix) {
+        Thread thread = threadFactory(namePrefix).newThread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    // Thread.ofVirtual().name(namePrefix, 0).factory(), or null when the JVM has no virtual threads
+    private static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
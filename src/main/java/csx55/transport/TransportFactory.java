@@ -0,0 +1,35 @@
+package csx55.transport;
+
+import java.io.IOException;
+
+/*
+Creates the server side transport selected at startup with -Dcsx55.transport=blocking|nio
+so the thread-per-connection and selector based servers can be compared against each other.
+ */
+public class TransportFactory {
+
+    public static final String TRANSPORT_PROPERTY = "csx55.transport";
+    public static final String BLOCKING = "blocking";
+    public static final String NIO = "nio";
+
+    public static final String EVENT_LOOPS_PROPERTY = "csx55.nio.eventLoops";
+
+    public static String getTransportMode() {
+        return System.getProperty(TRANSPORT_PROPERTY, BLOCKING).toLowerCase();
+    }
+
+    public static ServerThread createServerThread(int port, EventDispatcher dispatcher) throws IOException {
+        String mode = getTransportMode();
+        switch (mode) {
+            case NIO:
+                int eventLoops = Integer.getInteger(EVENT_LOOPS_PROPERTY, NIOServerThread.DEFAULT_EVENT_LOOPS);
+                System.out.println("Using the NIO transport (" + eventLoops + " event loops)");
+                return new NIOServerThread(port, dispatcher, eventLoops);
+            case BLOCKING:
+                return new TCPServerThread(port, dispatcher);
+            default:
+                System.out.println("Unknown transport '" + mode + "', falling back to the blocking transport");
+                return new TCPServerThread(port, dispatcher);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+Common header written at the start of every message: <int messageType><long requestID>.
+The request ID lets a response be matched to the request that caused it (0 means uncorrelated),
+so a node can have many requests outstanding at once. A response copies the ID of its request.
+Messages only encode and decode their own fields (encodeBody/decodeBody), the header is handled here.
+ */
+public abstract class BaseEvent implements Event {
+
+    protected long requestID = 0;
+
+    public long getRequestID() {
+        return requestID;
+    }
+
+    public void setRequestID(long requestID) {
+        this.requestID = requestID;
+    }
+
+    /*
+     * Writes the header and the message's fields at the buffer's position.
+     * Throws a BufferOverflowException if the buffer is too small, callers retry with a bigger one.
+     */
+    public final void encode(ByteBuffer buffer) throws IOException {
+        buffer.putInt(getType());
+        buffer.putLong(requestID);
+        encodeBody(buffer);
+    }
+
+    // reads the header and the message's fields from the buffer's position
+    public final void decode(ByteBuffer buffer) throws IOException {
+        try {
+            int messageType = buffer.getInt();
+            if (messageType != getType()) {
+                throw new IOException("Expected message type " + getType() + " but got " + messageType);
+            }
+            requestID = buffer.getLong();
+            decodeBody(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Message of type " + getType() + " is truncated");
+        }
+    }
+
+    protected abstract void encodeBody(ByteBuffer buffer) throws IOException;
+
+    protected abstract void decodeBody(ByteBuffer buffer) throws IOException;
+
+    // the message as a new array, for callers that don't encode into a buffer of their own
+    public byte[] getBytes() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedLengthHint());
+        while (true) {
+            try {
+                encode(buffer);
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    public void setBytes(byte[] marshalledBytes) throws IOException {
+        decode(ByteBuffer.wrap(marshalledBytes));
+    }
+}
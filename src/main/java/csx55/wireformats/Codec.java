@@ -0,0 +1,130 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Field encoders shared by every message's encodeBody/decodeBody.
+They read and write a ByteBuffer directly and produce exactly the bytes the old DataOutputStream code did
+(big endian ints and longs, strings as <int length><bytes>, booleans as one byte), so nodes running either
+version can still talk to each other. ASCII strings such as host:port are copied char by char, which keeps
+the common control messages free of intermediate arrays.
+ */
+public final class Codec {
+
+    private Codec() {
+    }
+
+    // <int length><bytes>, same as writeInt(value.getBytes().length) followed by write(value.getBytes())
+    public static void putString(ByteBuffer buffer, String value) {
+        if (isAscii(value)) {
+            buffer.putInt(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                buffer.put((byte) value.charAt(i));
+            }
+            return;
+        }
+        byte[] bytes = value.getBytes();
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        checkLength(buffer, length);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes);
+        }
+        return value;
+    }
+
+    // <unsigned short length><modified UTF-8>, the format of DataOutputStream.writeUTF
+    public static void putUTF(ByteBuffer buffer, String value) throws IOException {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+        }
+        if (length > 0xFFFF) {
+            throw new IOException("String too long for writeUTF: " + length + " bytes");
+        }
+        buffer.putShort((short) length);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public static String getUTF(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        checkLength(buffer, length);
+        StringBuilder value = new StringBuilder(length);
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int b = buffer.get() & 0xFF;
+            if (b < 0x80) {
+                value.append((char) b);
+            } else if ((b & 0xE0) == 0xC0) {
+                value.append((char) (((b & 0x1F) << 6) | (buffer.get() & 0x3F)));
+            } else if ((b & 0xF0) == 0xE0) {
+                value.append((char) (((b & 0x0F) << 12) | ((buffer.get() & 0x3F) << 6) | (buffer.get() & 0x3F)));
+            } else {
+                throw new IOException("Malformed modified UTF-8 string");
+            }
+        }
+        return value.toString();
+    }
+
+    public static void putBoolean(ByteBuffer buffer, boolean value) {
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    public static boolean getBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    // <int length><bytes> for raw data
+    public static void putBytes(ByteBuffer buffer, byte[] data, int offset, int length) {
+        buffer.putInt(length);
+        buffer.put(data, offset, length);
+    }
+
+    public static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        checkLength(buffer, length);
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
+    // a corrupt length must not make us allocate a huge array
+    private static void checkLength(ByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Field length " + length + " is outside the " + buffer.remaining() + " bytes left in the message");
+        }
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
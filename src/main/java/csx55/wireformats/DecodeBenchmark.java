@@ -0,0 +1,123 @@
+package csx55.wireformats;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Measures the decode cost per message type, comparing the two ways EventFactory has turned a frame into an event:
+before: read the type through a ByteArrayInputStream/BufferedInputStream/DataInputStream chain, then switch to the
+        message's byte[] constructor, which parses the frame again from byte 0
+after:  EventFactory.createEvent, which peeks the type and hands the buffer to the registered decoder (one pass)
+Both sides share the same field decoding, so the difference is what the factory itself costs per message.
+ */
+public class DecodeBenchmark {
+
+    private static long sink; // keeps the JIT from dropping the decodes
+
+    // run with: java csx55.wireformats.DecodeBenchmark [iterations per type]
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        List<Event> samples = samples();
+
+        // warm up both paths so the JIT has compiled them before we time anything
+        for (Event sample : samples) {
+            byte[] frame = sample.getBytes();
+            run(frame, iterations / 4, true);
+            run(frame, iterations / 4, false);
+        }
+
+        System.out.println(String.format("%-24s %12s %12s %8s", "message", "before ns", "after ns", "speedup"));
+        for (Event sample : samples) {
+            byte[] frame = sample.getBytes();
+            double before = run(frame, iterations, false);
+            double after = run(frame, iterations, true);
+            System.out.println(String.format("%-24s %12.1f %12.1f %7.2fx", sample.getClass().getSimpleName(), before, after, before / after));
+        }
+        System.out.println("(" + iterations + " decodes per message type, checksum " + sink + ")");
+    }
+
+    // average nanoseconds per decode
+    private static double run(byte[] frame, int iterations, boolean table) throws IOException {
+        EventFactory factory = EventFactory.getInstance();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Event event = table ? factory.createEvent(frame, frame.length) : streamCreateEvent(frame);
+            sink += event.getRequestID();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    // how EventFactory.createEvent used to work
+    private static Event streamCreateEvent(byte[] message) throws IOException {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(message)));
+        int eventType = din.readInt();
+        switch (eventType) {
+            case Protocol.REGISTER_REQUEST: return new RegisterRequest(message);
+            case Protocol.REGISTER_RESPONSE: return new RegisterResponse(message);
+            case Protocol.DEREGISTER_REQUEST: return new DeregisterRequest(message);
+            case Protocol.DEREGISTER_RESPONSE: return new DeregisterResponse(message);
+            case Protocol.FIND_SUCCESSOR_REQUEST: return new FindSuccessorRequest(message);
+            case Protocol.FIND_SUCCESSOR_RESPONSE: return new FindSuccessorResponse(message);
+            case Protocol.JOIN_REQUEST: return new JoinRequest(message);
+            case Protocol.JOIN_RESPONSE: return new JoinResponse(message);
+            case Protocol.NOTIFY_PREDECESSOR: return new NotifyPredecessor(message);
+            case Protocol.STABILIZE: return new Stabilize(message);
+            case Protocol.STABILIZE_RESPONSE: return new StabilizeResponse(message);
+            case Protocol.PEER_EXIT: return new PeerExit(message);
+            case Protocol.DOWNLOAD_REQUEST: return new DownloadRequest(message);
+            case Protocol.DOWNLOAD_RESPONSE: return new DownloadResponse(message);
+            case Protocol.MIGRATION: return new Migration(message);
+            case Protocol.MIGRATION_RESPONSE: return new MigrationResponse(message);
+            case Protocol.FILE_TRANSFER_BEGIN: return new FileTransferBegin(message);
+            case Protocol.FILE_CHUNK: return new FileChunk(message);
+            case Protocol.FILE_CHUNK_ACK: return new FileChunkAck(message);
+            case Protocol.FILE_TRANSFER_END: return new FileTransferEnd(message);
+            case Protocol.HEARTBEAT: return new Heartbeat(message);
+            case Protocol.HEARTBEAT_RESPONSE: return new HeartbeatResponse(message);
+            case Protocol.MEMBERSHIP_UPDATE: return new MembershipUpdate(message);
+            default: throw new IllegalArgumentException("Invalid event type: " + eventType);
+        }
+    }
+
+    // one message of every type, with realistic field sizes
+    private static List<Event> samples() throws IOException {
+        File file = File.createTempFile("benchmark", ".txt");
+        file.deleteOnExit();
+        PeerRef self = PeerRef.fromNode(0x9e3779b97f4a7c15L, "129.82.44.246:49355");
+        PeerRef other = PeerRef.fromNode(0x6a09e667f3bcc908L, "129.82.44.247:40000");
+        List<Event> samples = new ArrayList<>();
+        samples.add(new RegisterRequest(12345, "129.82.44.246", 49355));
+        samples.add(new RegisterResponse(Protocol.SUCCESS, "129.82.44.247:40000", "Registration request successful.",
+                other, List.of(other, self), List.of(other, self)));
+        samples.add(new DeregisterRequest(12345, "129.82.44.246", 49355));
+        samples.add(new DeregisterResponse(Protocol.SUCCESS));
+        samples.add(new FindSuccessorRequest(self));
+        samples.add(new FindSuccessorResponse(true, other));
+        samples.add(new JoinRequest(self));
+        samples.add(new JoinResponse(other, List.of(self, other)));
+        samples.add(new NotifyPredecessor(self, List.of(other)));
+        samples.add(new Stabilize(self));
+        samples.add(new StabilizeResponse(other, List.of(other, self)));
+        samples.add(new PeerExit(other));
+        samples.add(new DownloadRequest("report.pdf", 0x243f6a8885a308d3L, self));
+        samples.add(new DownloadResponse(file, "report.pdf"));
+        samples.add(new Migration(file, 0x243f6a8885a308d3L, "129.82.44.246:49355", false));
+        samples.add(new MigrationResponse("report.pdf", true));
+        samples.add(new FileTransferBegin(1L, FileTransferBegin.UPLOAD, "dataset.bin", 42, 1L << 30, 512 * 1024, "129.82.44.246:49355"));
+        samples.add(new FileChunk(1L, 7, new byte[4096], 4096));
+        samples.add(new FileChunkAck(1L, 7));
+        samples.add(new FileTransferEnd(1L, 2048, 0xCAFEBABEL));
+        samples.add(new Heartbeat("129.82.44.246", 49355, 8));
+        samples.add(new HeartbeatResponse(Protocol.FAILURE, "Lease expired, register again"));
+        samples.add(new MembershipUpdate(List.of("129.82.44.247:40000", "129.82.44.248:40000")));
+        for (Event sample : samples) {
+            sample.setRequestID(0x1234567890L);
+        }
+        return samples;
+    }
+}
@@ -1,16 +1,10 @@
 package csx55.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class DeregisterResponse implements Event {
+public class DeregisterResponse extends BaseEvent {
     
-    private int messageType = Protocol.DEREGISTER_RESPONSE;
     private byte successStatus;
     private String successStatusString;
 
@@ -22,6 +16,10 @@ public class DeregisterResponse implements Event {
         }
     }
 
+    public DeregisterResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
     public DeregisterResponse(byte successStatus) {
         this.successStatus = successStatus;
         if (successStatus == Protocol.SUCCESS) {
@@ -44,50 +42,17 @@ public class DeregisterResponse implements Event {
         return successStatus;
     }
 
-    public byte[] getBytes() throws IOException {
-        // creating a byte array to store the marshalled bytes
-        byte[] marshalledBytes = null;
-        // creating a byte array output stream
-        // the buffer capacity is initially 32 bytes, though its size increases if necessary.
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        // wrapping the output stream in a data output stream in order to use the write methods to write data
-        // creates a new data output stream to write data to the specified underlying output stream. 
-        // The counter 'written' is set to zero.
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        // Writing to the output stream using the write methods
-        dout.writeInt(messageType);
-        dout.writeByte(successStatus);
-    
-        // this tells the output stream to flush its buffer
-        dout.flush();
-        // now we grab the byte array from the output stream, convert it to a byte array, and return it
-        marshalledBytes = byteArrayOutputStream.toByteArray();
-        // closing the output stream
-        byteArrayOutputStream.close();
-        // closing the data output stream
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.put(successStatus);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        // creating a byte array input stream to read the message from the byte array
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        // wrapping the byte array input stream in a data input stream in order to use the read methods to read data
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-        // reading the metadata from the input stream using the read methods
-        messageType = din.readInt();
-        // reads the success status from the input stream
-        successStatus = din.readByte();
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        successStatus = buffer.get();
         if (successStatus == Protocol.SUCCESS) {
             successStatusString = "SUCCESS";
         } else {
             successStatusString = "FAILURE";
         }
-        // close the byte array input stream and the data input stream
-        baInputStream.close();
-        din.close(); 
     }
     
 }
@@ -1,21 +1,25 @@
 package csx55.wireformats;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
-public class DownloadRequest implements Event{
+public class DownloadRequest extends BaseEvent {
 
-    private int messageType = Protocol.DOWNLOAD_REQUEST;
     private String fileName;
-    private int fileIdentifier;
+    private long fileIdentifier;
     // list of hops taken to find the file
-    ArrayList<String> hops = new ArrayList<String>();
+    ArrayList<PeerRef> hops = new ArrayList<PeerRef>();
 
     public DownloadRequest(byte[] message) throws IOException {
         setBytes(message);
     }
 
-    public DownloadRequest(String fileName, int fileIdentifier, String hop) {
+    public DownloadRequest(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public DownloadRequest(String fileName, long fileIdentifier, PeerRef hop) {
         this.fileName = fileName;
         this.fileIdentifier = fileIdentifier;
         hops.add(hop); // peer that sent the request
@@ -29,62 +33,34 @@ public class DownloadRequest implements Event{
         return fileName;
     }
 
-    public int getFileIdentifier() {
+    public long getFileIdentifier() {
         return fileIdentifier;
     }
 
-    public ArrayList<String> getHops() {
+    public ArrayList<PeerRef> getHops() {
         return hops;
     }
 
     public String getInfo() {
-        return "Download Request for file: " + fileName + "\nFile Identifier: " + fileIdentifier + "\n"
+        return "Download Request for file: " + fileName + "\nFile Identifier: " + Long.toUnsignedString(fileIdentifier) + "\n"
                 + "Hops taken during search so far: " + hops.toString();
     }
     
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-        byte[] fileNameBytes = fileName.getBytes();
-        dout.writeInt(fileNameBytes.length);
-        dout.write(fileNameBytes);
-        dout.writeInt(fileIdentifier);
-        dout.writeInt(hops.size());
-        for (String hop : hops) {
-            byte[] hopBytes = hop.getBytes();
-            dout.writeInt(hopBytes.length);
-            dout.write(hopBytes);
+    protected void encodeBody(ByteBuffer buffer) throws IOException {
+        Codec.putString(buffer, fileName);
+        buffer.putLong(fileIdentifier);
+        buffer.putInt(hops.size());
+        for (PeerRef hop : hops) {
+            PeerRef.encode(buffer, hop);
         }
-
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-        messageType = din.readInt();
-        int fileNameLength = din.readInt();
-        byte[] fileNameBytes = new byte[fileNameLength];
-        din.readFully(fileNameBytes);
-        fileName = new String(fileNameBytes);
-        fileIdentifier = din.readInt();
-        int hopsSize = din.readInt();
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        fileName = Codec.getString(buffer);
+        fileIdentifier = buffer.getLong();
+        int hopsSize = buffer.getInt();
         for (int i = 0; i < hopsSize; i++) {
-            int hopLength = din.readInt();
-            byte[] hopBytes = new byte[hopLength];
-            din.readFully(hopBytes);
-            hops.add(new String(hopBytes));
+            hops.add(PeerRef.decode(buffer));
         }
-
-        baInputStream.close();
-        din.close();
     }
 }
@@ -1,30 +1,45 @@
 package csx55.wireformats;
 
-import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.nio.file.Paths;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class DownloadResponse implements Event {
+/*
+The file contents are not part of this message's bytes: the header frame carries the content length
+and the body is streamed after it (see FileTransfer).
+A FAILURE response answers a request for a file the responsible node doesn't have, it carries no body.
+ */
+public class DownloadResponse extends BaseEvent implements FileTransfer {
 
 
-    private int messageType = Protocol.DOWNLOAD_RESPONSE;
     private File file;
     private String fileName;
+    private byte status = Protocol.SUCCESS;
+    private long contentLength;
     
     public DownloadResponse(byte[] message) throws IOException {
         setBytes(message);
     }
 
+    public DownloadResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
     public DownloadResponse(File file) {
+        this(file, file.getName());
+    }
+
+    // for a received file that is stored under a different name than the one it is known by
+    public DownloadResponse(File file, String fileName) {
         this.file = file;
-        this.fileName = file.getName();
+        this.fileName = fileName;
+        this.contentLength = file.length();
+    }
+
+    // an answer without a file, Protocol.FAILURE when the responding node doesn't store it
+    public DownloadResponse(String fileName, byte status) {
+        this.fileName = fileName;
+        this.status = status;
     }
 
     public int getType() {
@@ -35,58 +50,43 @@ public class DownloadResponse implements Event {
         return file;
     }
 
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public boolean hasBody() {
+        return status == Protocol.SUCCESS;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
     public String getFileName() {
         return fileName;
     }
 
     public String getInfo() {
+        if (status != Protocol.SUCCESS) {
+            return "Download FAILURE for file: " + fileName + " (not found)\n";
+        }
         return "Download Delivery for file: " + fileName + "\n";
     }
     
-    public byte[] getBytes() throws IOException {
-    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-    dout.writeInt(messageType);
-
-    // Write the file name
-    dout.writeInt(fileName.length());
-    dout.writeBytes(fileName);
-
-    // Write the file content
-    byte[] fileContent = Files.readAllBytes(file.toPath());
-    dout.writeInt(fileContent.length);
-    dout.write(fileContent);
-
-    dout.flush();
-    byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-    byteArrayOutputStream.close();
-    dout.close();
-
-    return marshalledBytes;
-}
-
-public void setBytes(byte[] marshalledBytes) throws IOException {
-    ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-    DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-    messageType = din.readInt();
-
-    // Read the file name
-    int fileNameLength = din.readInt();
-    byte[] fileNameBytes = new byte[fileNameLength];
-    din.readFully(fileNameBytes);
-    fileName = new String(fileNameBytes);
-
-    // Read the file content
-    int fileContentLength = din.readInt();
-    byte[] fileContent = new byte[fileContentLength];
-    din.readFully(fileContent);
-    Files.write(Paths.get(fileName), fileContent);
-    file = new File(fileName);
+    protected void encodeBody(ByteBuffer buffer) {
+        Codec.putString(buffer, fileName);
+        buffer.put(status);
+        buffer.putLong(contentLength); // the contents follow the frame, see FileStreamer
+    }
 
-    baInputStream.close();
-    din.close();
-}
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        fileName = Codec.getString(buffer);
+        status = buffer.get();
+        contentLength = buffer.getLong();
+    }
     
 }
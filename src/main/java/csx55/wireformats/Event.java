@@ -1,6 +1,7 @@
 package csx55.wireformats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface Event {
     /*
@@ -13,4 +14,25 @@ public interface Event {
     byte[] getBytes() throws IOException;  // get the bytes of the event
 
     void setBytes(byte[] bytes) throws IOException;  // set the bytes of the event
+
+    /*
+     * returns the ID that matches a response to its request, 0 if the event is not part of a request/response pair
+     */
+    long getRequestID();
+
+    void setRequestID(long requestID);  // responses copy the request ID of the request they answer
+
+    /*
+     * writes the event at the buffer's position, throws a BufferOverflowException if it doesn't fit
+     */
+    void encode(ByteBuffer buffer) throws IOException;
+
+    void decode(ByteBuffer buffer) throws IOException;  // read the event from the buffer's position
+
+    /*
+     * buffer size that usually fits the encoded event, so senders rarely have to retry with a bigger buffer
+     */
+    default int getEncodedLengthHint() {
+        return 256;
+    }
 }
\ No newline at end of file
@@ -1,71 +1,89 @@
 package csx55.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+/*
+Turns received frames into events.
+Every message type registers a decoder (its ByteBuffer constructor) in a table indexed by its Protocol code.
+createEvent peeks at the type without consuming it and the decoder then reads the whole message, header
+included, in one pass straight out of the receive buffer, with no stream wrapped around it.
+ */
 public class EventFactory {
 
-    private static EventFactory instance;  // Singleton instance
-    
+    private static final EventFactory instance = new EventFactory();  // Singleton instance, shared by every receiver
+
+    // builds an event from the message at the buffer's position
+    @FunctionalInterface
+    public interface Decoder {
+        Event decode(ByteBuffer buffer) throws IOException;
+    }
+
+    private Decoder[] decoders = new Decoder[0]; // indexed by message type
+
     public static EventFactory getInstance() {
-        if (instance == null) {
-            instance = new EventFactory();
-        }
         return instance;
     }
 
-    public Event createEvent(byte[] message) {
+    private EventFactory() {
+        register(Protocol.REGISTER_REQUEST, RegisterRequest::new);
+        register(Protocol.REGISTER_RESPONSE, RegisterResponse::new);
+        register(Protocol.DEREGISTER_REQUEST, DeregisterRequest::new);
+        register(Protocol.DEREGISTER_RESPONSE, DeregisterResponse::new);
+        register(Protocol.FIND_SUCCESSOR_REQUEST, FindSuccessorRequest::new);
+        register(Protocol.FIND_SUCCESSOR_RESPONSE, FindSuccessorResponse::new);
+        register(Protocol.JOIN_REQUEST, JoinRequest::new);
+        register(Protocol.JOIN_RESPONSE, JoinResponse::new);
+        register(Protocol.NOTIFY_PREDECESSOR, NotifyPredecessor::new);
+        register(Protocol.STABILIZE, Stabilize::new);
+        register(Protocol.STABILIZE_RESPONSE, StabilizeResponse::new);
+        register(Protocol.PEER_EXIT, PeerExit::new);
+        register(Protocol.DOWNLOAD_REQUEST, DownloadRequest::new);
+        register(Protocol.DOWNLOAD_RESPONSE, DownloadResponse::new);
+        register(Protocol.MIGRATION, Migration::new);
+        register(Protocol.MIGRATION_RESPONSE, MigrationResponse::new);
+        register(Protocol.FILE_TRANSFER_BEGIN, FileTransferBegin::new);
+        register(Protocol.FILE_CHUNK, FileChunk::new);
+        register(Protocol.FILE_CHUNK_ACK, FileChunkAck::new);
+        register(Protocol.FILE_TRANSFER_END, FileTransferEnd::new);
+        register(Protocol.HEARTBEAT, Heartbeat::new);
+        register(Protocol.HEARTBEAT_RESPONSE, HeartbeatResponse::new);
+        register(Protocol.MEMBERSHIP_UPDATE, MembershipUpdate::new);
+    }
 
-        try{
-            // get the event type by reading first int in the message
-            // creating a byte array input stream to read the message from the byte array
-            ByteArrayInputStream baInputStream = new ByteArrayInputStream(message);
-            DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-            // reading the metadata from the input stream using the read methods
-            int eventType = din.readInt();
+    private void register(int eventType, Decoder decoder) {
+        if (eventType >= decoders.length) {
+            Decoder[] grown = new Decoder[eventType + 1];
+            System.arraycopy(decoders, 0, grown, 0, decoders.length);
+            decoders = grown;
+        }
+        decoders[eventType] = decoder;
+    }
+
+    public Event createEvent(byte[] message) {
+        return createEvent(ByteBuffer.wrap(message));
+    }
 
-            switch (eventType) {
+    // the first length bytes of a (possibly longer, pooled) receive buffer
+    public Event createEvent(byte[] data, int length) {
+        return createEvent(ByteBuffer.wrap(data, 0, length));
+    }
 
-                // all these returns are Events
-                case Protocol.REGISTER_REQUEST:
-                    return new RegisterRequest(message);
-                case Protocol.REGISTER_RESPONSE:
-                    return new RegisterResponse(message);
-                case Protocol.DEREGISTER_REQUEST:
-                    return new DeregisterRequest(message);
-                case Protocol.DEREGISTER_RESPONSE:
-                    return new DeregisterResponse(message);
-                case Protocol.FIND_SUCCESSOR_REQUEST:
-                    return new FindSuccessorRequest(message);
-                case Protocol.FIND_SUCCESSOR_RESPONSE:
-                    return new FindSuccessorResponse(message);
-                case Protocol.JOIN_REQUEST:
-                    return new JoinRequest(message);
-                case Protocol.JOIN_RESPONSE:
-                    return new JoinResponse(message);
-                case Protocol.NOTIFY_PREDECESSOR:
-                    return new NotifyPredecessor(message);
-                case Protocol.STABILIZE:
-                    return new Stabilize(message);
-                case Protocol.STABILIZE_RESPONSE:
-                    return new StabilizeResponse(message);
-                case Protocol.PEER_EXIT:
-                    return new PeerExit(message);
-                case Protocol.DOWNLOAD_REQUEST:
-                    return new DownloadRequest(message);
-                case Protocol.DOWNLOAD_RESPONSE:
-                    return new DownloadResponse(message);
-                case Protocol.MIGRATION:
-                    return new Migration(message);
-                case Protocol.MIGRATION_RESPONSE:
-                    return new MigrationResponse(message);
-                default:
-                    throw new IllegalArgumentException("Invalid event type: " + eventType);
+    /*
+     * Decodes the message between the buffer's position and limit, returns null if it can't be decoded.
+     */
+    public Event createEvent(ByteBuffer buffer) {
+        try {
+            if (buffer.remaining() < 4) {
+                throw new IOException("Message too short to hold a type: " + buffer.remaining() + " bytes");
             }
-        } catch (IOException e) {
-            // Handle the exception
+            int eventType = buffer.getInt(buffer.position()); // peek, the decoder reads the header itself
+            if (eventType < 0 || eventType >= decoders.length || decoders[eventType] == null) {
+                throw new IOException("Invalid event type: " + eventType);
+            }
+            return decoders[eventType].decode(buffer);
+        } catch (IOException | RuntimeException e) {
+            // Handle the exception, a truncated or corrupt frame (BufferUnderflowException, ...) is skipped the same way
             System.err.println("Error creating event: " + e);
             return null;
         }
@@ -0,0 +1,74 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+One chunk of a chunked transfer. Chunk N holds the file bytes starting at N * chunkSize,
+so chunks can be written in whatever order they arrive.
+ */
+public class FileChunk extends BaseEvent {
+
+    private long transferID;
+    private int sequence;
+    private byte[] data;
+    private int length;
+
+    public FileChunk(byte[] message) throws IOException {
+        setBytes(message);
+    }
+
+    public FileChunk(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    // only the first length bytes of data belong to the chunk, so the sender can reuse its read buffer
+    public FileChunk(long transferID, int sequence, byte[] data, int length) {
+        this.transferID = transferID;
+        this.sequence = sequence;
+        this.data = data;
+        this.length = length;
+    }
+
+    public int getType() {
+        return Protocol.FILE_CHUNK;
+    }
+
+    public long getTransferID() {
+        return transferID;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // the chunk data plus a small header, so the sender picks a big enough pooled buffer on the first try
+    public int getEncodedLengthHint() {
+        return length + 64;
+    }
+
+    public String getInfo() {
+        return "File Chunk " + sequence + " of transfer " + transferID + " (" + length + " bytes)\n";
+    }
+
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.putLong(transferID);
+        buffer.putInt(sequence);
+        Codec.putBytes(buffer, data, 0, length);
+    }
+
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        transferID = buffer.getLong();
+        sequence = buffer.getInt();
+        data = Codec.getBytes(buffer);
+        length = data.length;
+    }
+}
@@ -0,0 +1,55 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Acknowledges one chunk of a chunked transfer (or the FileTransferBegin, with sequence BEGIN_SEQUENCE).
+Every ack opens a slot in the sender's window for the next chunk.
+ */
+public class FileChunkAck extends BaseEvent {
+
+    public static final int BEGIN_SEQUENCE = -1;
+
+    private long transferID;
+    private int sequence;
+
+    public FileChunkAck(byte[] message) throws IOException {
+        setBytes(message);
+    }
+
+    public FileChunkAck(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public FileChunkAck(long transferID, int sequence) {
+        this.transferID = transferID;
+        this.sequence = sequence;
+    }
+
+    public int getType() {
+        return Protocol.FILE_CHUNK_ACK;
+    }
+
+    public long getTransferID() {
+        return transferID;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public String getInfo() {
+        return "File Chunk Ack " + sequence + " of transfer " + transferID + "\n";
+    }
+
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.putLong(transferID);
+        buffer.putInt(sequence);
+    }
+
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        transferID = buffer.getLong();
+        sequence = buffer.getInt();
+    }
+}
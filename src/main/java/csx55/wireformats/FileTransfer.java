@@ -0,0 +1,25 @@
+package csx55.wireformats;
+
+import java.io.File;
+
+/*
+A message whose file contents travel after it on the connection instead of inside it.
+getBytes() only returns the header frame (which includes the content length); the sender then streams
+the file straight from disk to the socket, and the receiver streams the next getContentLength() bytes
+into a file and hands it to the message with setFile() before the message is handled.
+ */
+public interface FileTransfer extends Event {
+
+    String getFileName();
+
+    long getContentLength();  // number of body bytes that follow the header frame
+
+    File getFile();  // file to send, or the received file once the body has been read
+
+    void setFile(File file);
+
+    // false for a message that has no file after all (a failed DownloadResponse), nothing follows its frame then
+    default boolean hasBody() {
+        return true;
+    }
+}
@@ -0,0 +1,102 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+First message of a chunked transfer. Announces the file, its size and how it will be split into chunks.
+The receiver answers with a FileChunkAck for sequence BEGIN_SEQUENCE once it is ready for chunks.
+ */
+public class FileTransferBegin extends BaseEvent {
+
+    public static final byte UPLOAD = 1;   // receiver stores the file it is responsible for
+    public static final byte DOWNLOAD = 2; // receiver asked for the file with a DownloadRequest
+
+    private long transferID;
+    private byte mode;
+    private String fileName;
+    private long fileIdentifier;
+    private long fileSize;
+    private int chunkSize;
+    private String originatingPeer; // hostname:port that acks are sent back to
+
+    public FileTransferBegin(byte[] message) throws IOException {
+        setBytes(message);
+    }
+
+    public FileTransferBegin(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public FileTransferBegin(long transferID, byte mode, String fileName, long fileIdentifier, long fileSize, int chunkSize, String originatingPeer) {
+        this.transferID = transferID;
+        this.mode = mode;
+        this.fileName = fileName;
+        this.fileIdentifier = fileIdentifier;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.originatingPeer = originatingPeer;
+    }
+
+    public int getType() {
+        return Protocol.FILE_TRANSFER_BEGIN;
+    }
+
+    public long getTransferID() {
+        return transferID;
+    }
+
+    public byte getMode() {
+        return mode;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileIdentifier() {
+        return fileIdentifier;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    // number of chunks the file is split into
+    public int getChunkCount() {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    public String getOriginatingPeer() {
+        return originatingPeer;
+    }
+
+    public String getInfo() {
+        return "File Transfer Begin: " + fileName + " (" + fileSize + " bytes in " + getChunkCount() + " chunks of " + chunkSize
+                + ")\nTransfer ID: " + transferID + "\nFrom: " + originatingPeer + "\n";
+    }
+
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.putLong(transferID);
+        buffer.put(mode);
+        Codec.putString(buffer, fileName);
+        buffer.putLong(fileIdentifier);
+        buffer.putLong(fileSize);
+        buffer.putInt(chunkSize);
+        Codec.putString(buffer, originatingPeer);
+    }
+
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        transferID = buffer.getLong();
+        mode = buffer.get();
+        fileName = Codec.getString(buffer);
+        fileIdentifier = buffer.getLong();
+        fileSize = buffer.getLong();
+        chunkSize = buffer.getInt();
+        originatingPeer = Codec.getString(buffer);
+    }
+}
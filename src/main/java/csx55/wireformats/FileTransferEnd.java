@@ -0,0 +1,61 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Last message of a chunked transfer, sent once every chunk has been acknowledged.
+Carries the CRC32 of the whole file so the receiver can check what it wrote before keeping it.
+ */
+public class FileTransferEnd extends BaseEvent {
+
+    private long transferID;
+    private int chunkCount;
+    private long checksum;
+
+    public FileTransferEnd(byte[] message) throws IOException {
+        setBytes(message);
+    }
+
+    public FileTransferEnd(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public FileTransferEnd(long transferID, int chunkCount, long checksum) {
+        this.transferID = transferID;
+        this.chunkCount = chunkCount;
+        this.checksum = checksum;
+    }
+
+    public int getType() {
+        return Protocol.FILE_TRANSFER_END;
+    }
+
+    public long getTransferID() {
+        return transferID;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public String getInfo() {
+        return "File Transfer End: transfer " + transferID + " (" + chunkCount + " chunks, CRC32 " + Long.toHexString(checksum) + ")\n";
+    }
+
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.putLong(transferID);
+        buffer.putInt(chunkCount);
+        buffer.putLong(checksum);
+    }
+
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        transferID = buffer.getLong();
+        chunkCount = buffer.getInt();
+        checksum = buffer.getLong();
+    }
+}
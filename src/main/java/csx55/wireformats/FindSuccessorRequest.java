@@ -1,82 +1,82 @@
 package csx55.wireformats;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class FindSuccessorRequest implements Event{
+public class FindSuccessorRequest extends BaseEvent {
 
-    private String nodeRequestingSuccessor;
-    private int messageType = Protocol.FIND_SUCCESSOR_REQUEST;
-    private String ipAddress;
-    private int portNumber;
+    // how the lookup proceeds past the peer that receives the request
+    public static final byte RECURSIVE = 0; // the peer relays the request to its closest preceding finger
+    public static final byte ITERATIVE = 1; // the peer names its closest preceding fingers and the requester asks them itself
 
+    private PeerRef requester; // the node that started the lookup, the answer goes straight back to it
+    private long key; // the ID whose successor is wanted
+    private int hopCount; // peers the request has been sent to so far
+    private byte mode = RECURSIVE;
 
     public FindSuccessorRequest(byte[] message) throws IOException {
         setBytes(message);
     }
 
-    public FindSuccessorRequest(String nodeRequestingSuccessor) {
-        this.nodeRequestingSuccessor = nodeRequestingSuccessor;
-        this.ipAddress = nodeRequestingSuccessor.split(":")[0];
-        this.portNumber = Integer.parseInt(nodeRequestingSuccessor.split(":")[1]);
+    public FindSuccessorRequest(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    // a joining node looking for its own successor
+    public FindSuccessorRequest(PeerRef requester) {
+        this(requester, requester.getPeerID());
+    }
+
+    public FindSuccessorRequest(PeerRef requester, long key) {
+        this(requester, key, RECURSIVE);
+    }
+
+    public FindSuccessorRequest(PeerRef requester, long key, byte mode) {
+        this.requester = requester;
+        this.key = key;
+        this.hopCount = 1;
+        this.mode = mode;
     }
 
     public int getType() {
         return Protocol.FIND_SUCCESSOR_REQUEST;
     }
 
-    public int getPortNumber() {
-        return portNumber;
+    public String getInfo() {
+        return "FIND_SUCCESSOR_REQUEST\nNode to find successor: " + requester + "\nKey: " + Long.toUnsignedString(key) + "\nHops so far: " + hopCount + "\nMode: " + (mode == ITERATIVE ? "iterative" : "recursive") + "\n";
     }
 
-    public String getIpAddress() {
-        return ipAddress;
+    public PeerRef getRequester() {
+        return requester;
     }
 
-    public String getInfo() {
-        return "FIND_SUCCESSOR_REQUEST\nNode to find successor: " + nodeRequestingSuccessor + "\n";
+    public long getKey() {
+        return key;
+    }
+
+    public int getHopCount() {
+        return hopCount;
+    }
+
+    public void setHopCount(int hopCount) {
+        this.hopCount = hopCount;
     }
 
-    public String getNode() {
-        return nodeRequestingSuccessor;
+    public byte getMode() {
+        return mode;
     }
 
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-        byte[] ipBytes = ipAddress.getBytes();
-        dout.writeInt(ipBytes.length);
-        dout.write(ipBytes);
-        dout.writeInt(portNumber);
-        byte[] nodeToFindSuccessorBytes = nodeRequestingSuccessor.getBytes();
-        dout.writeInt(nodeToFindSuccessorBytes.length);
-        dout.write(nodeToFindSuccessorBytes);
-
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeBody(ByteBuffer buffer) throws IOException {
+        PeerRef.encode(buffer, requester);
+        buffer.putLong(key);
+        buffer.putInt(hopCount);
+        buffer.put(mode);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-        messageType = din.readInt();
-        int ipLength = din.readInt();
-        byte[] ipBytes = new byte[ipLength];
-        din.readFully(ipBytes);
-        ipAddress = new String(ipBytes);
-        portNumber = din.readInt();
-        int nodeToFindSuccessorLength = din.readInt();
-        byte[] nodeToFindSuccessorBytes = new byte[nodeToFindSuccessorLength];
-        din.readFully(nodeToFindSuccessorBytes);
-        nodeRequestingSuccessor = new String(nodeToFindSuccessorBytes);
-
-        baInputStream.close();
-        din.close();
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        requester = PeerRef.decode(buffer);
+        key = buffer.getLong();
+        hopCount = buffer.getInt();
+        mode = buffer.get();
     }
 }
@@ -1,18 +1,17 @@
 package csx55.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 
-public class FindSuccessorResponse implements Event {
-    private int messageType = Protocol.FIND_SUCCESSOR_RESPONSE;
+public class FindSuccessorResponse extends BaseEvent {
     private byte successStatus;
     private String successStatusString;
-    private String successorNode;
+    private PeerRef successor;
+    private long key; // the ID that was looked up
+    private int hopCount; // peers the lookup went through before it was answered
+    private List<PeerRef> candidates = Collections.emptyList(); // further next hops after successor, closest to the key first
 
     public FindSuccessorResponse(byte[] message) {
         try {
@@ -22,11 +21,15 @@ public class FindSuccessorResponse implements Event {
         }
     }
 
+    public FindSuccessorResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
 
     // and the NodeToReachOutTo is the node that the sender should reach out to
     // if successStatus is SUCCESS then it is the successor node
     // if successStatus is FAILURE then it is the closest preceding node
-    public FindSuccessorResponse(Boolean successStatus, String successorNode) {
+    public FindSuccessorResponse(Boolean successStatus, PeerRef successor) {
         if (successStatus) {
             this.successStatus = Protocol.SUCCESS;
             this.successStatusString = "SUCCESS";
@@ -34,20 +37,46 @@ public class FindSuccessorResponse implements Event {
             this.successStatus = Protocol.FAILURE;
             this.successStatusString = "FAILURE";
         }
-        this.successorNode = successorNode;
+        this.successor = successor;
+    }
+
+    public FindSuccessorResponse(Boolean successStatus, PeerRef successor, long key, int hopCount) {
+        this(successStatus, successor);
+        this.key = key;
+        this.hopCount = hopCount;
+    }
+
+    // a step of an iterative lookup: FAILURE with the closest preceding node to ask next, and a few more to ask in parallel
+    public FindSuccessorResponse(Boolean successStatus, PeerRef successor, long key, int hopCount, List<PeerRef> candidates) {
+        this(successStatus, successor, key, hopCount);
+        this.candidates = candidates;
     }
 
     public int getType() {
         return Protocol.FIND_SUCCESSOR_RESPONSE;
     }
 
-    public String getSuccessorNode() {
-        return successorNode;
+    public PeerRef getSuccessor() {
+        return successor;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public int getHopCount() {
+        return hopCount;
+    }
+
+    public List<PeerRef> getCandidates() {
+        return candidates;
     }
 
     public String getInfo() {
         if (successStatus == Protocol.SUCCESS) {
-            return "Find Successor Response: Successor Node is " + successorNode;
+            return "Find Successor Response: Successor Node of " + Long.toUnsignedString(key) + " is " + successor + " (" + hopCount + " hops)";
+        } else if (successor != null) {
+            return "Find Successor Response: Successor Node of " + Long.toUnsignedString(key) + " is past " + successor + " (" + hopCount + " hops)";
         } else {
             return "Failed for some reason";
         }
@@ -61,53 +90,24 @@ public class FindSuccessorResponse implements Event {
         return successStatusString;
     }
 
-    public byte[] getBytes() throws IOException {
-        // creating a byte array to store the marshalled bytes
-        byte[] marshalledBytes = null;
-        // creating a byte array output stream
-        // the buffer capacity is initially 32 bytes, though its size increases if necessary.
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        // wrapping the output stream in a data output stream in order to use the write methods to write data
-        // creates a new data output stream to write data to the specified underlying output stream. 
-        // The counter 'written' is set to zero.
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        // Writing to the output stream using the write methods
-        dout.writeInt(messageType);
-        dout.writeByte(successStatus);
-        dout.writeUTF(successorNode);
-    
-        // this tells the output stream to flush its buffer
-        dout.flush();
-        // now we grab the byte array from the output stream, convert it to a byte array, and return it
-        marshalledBytes = byteArrayOutputStream.toByteArray();
-        // closing the output stream
-        byteArrayOutputStream.close();
-        // closing the data output stream
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeBody(ByteBuffer buffer) throws IOException {
+        buffer.put(successStatus);
+        PeerRef.encode(buffer, successor);
+        buffer.putLong(key);
+        buffer.putInt(hopCount);
+        PeerRef.encodeList(buffer, candidates);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        // creating a byte array input stream to read the message from the byte array
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        // wrapping the byte array input stream in a data input stream in order to use the read methods to read data
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-        // reading the metadata from the input stream using the read methods
-        messageType = din.readInt();
-        // reads the success status from the input stream
-        successStatus = din.readByte();
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        successStatus = buffer.get();
         if (successStatus == Protocol.SUCCESS) {
             successStatusString = "SUCCESS";
         } else {
             successStatusString = "FAILURE";
         }
-        // reads the NodeToReachOutTo from the input stream
-        successorNode = din.readUTF();
-
-        // close the byte array input stream and the data input stream
-        baInputStream.close();
-        din.close(); 
+        successor = PeerRef.decode(buffer);
+        key = buffer.getLong();
+        hopCount = buffer.getInt();
+        candidates = PeerRef.decodeList(buffer);
     }
 }
@@ -0,0 +1,67 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Sent by a peer to the discovery every csx55.heartbeat ms to renew the lease on its registration.
+One heartbeat renews all of the peer's ring positions at once. It also says how many of them have joined, so the
+discovery can tell a peer whose positions it has dropped (it expired the lease while the peer was unreachable) to
+register them again.
+ */
+public class Heartbeat extends BaseEvent {
+
+    private String ipAddress;
+    private int portNumber;
+    private int positions; // virtual nodes of the peer that are on the ring
+
+    public Heartbeat(byte[] message) {
+        try {
+            setBytes(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Heartbeat(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public Heartbeat(String ipAddress, int portNumber, int positions) {
+        this.ipAddress = ipAddress;
+        this.portNumber = portNumber;
+        this.positions = positions;
+    }
+
+    public String getInfo() {
+        return "HEARTBEAT\nIP address (String): " + ipAddress + "\nPort number (int): " + portNumber + "\nPositions: " + positions + "\n";
+    }
+
+    public int getType() {
+        return Protocol.HEARTBEAT;
+    }
+
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    public int getPortNumber() {
+        return portNumber;
+    }
+
+    public int getPositions() {
+        return positions;
+    }
+
+    protected void encodeBody(ByteBuffer buffer) {
+        Codec.putString(buffer, ipAddress);
+        buffer.putInt(portNumber);
+        buffer.putInt(positions);
+    }
+
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        ipAddress = Codec.getString(buffer);
+        portNumber = buffer.getInt();
+        positions = buffer.getInt();
+    }
+}
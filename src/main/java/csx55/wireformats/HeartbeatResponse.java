@@ -0,0 +1,54 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+The discovery only answers a heartbeat it can't renew: FAILURE means the peer's lease (or some of its positions)
+is gone and the peer has to register its virtual nodes again.
+ */
+public class HeartbeatResponse extends BaseEvent {
+
+    private byte successStatus;
+    private String additionalInfo;
+
+    public HeartbeatResponse(byte[] message) {
+        try {
+            setBytes(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public HeartbeatResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public HeartbeatResponse(byte successStatus, String additionalInfo) {
+        this.successStatus = successStatus;
+        this.additionalInfo = additionalInfo;
+    }
+
+    public String getInfo() {
+        return "HEARTBEAT_RESPONSE\nStatus Code (byte): " + (successStatus == Protocol.SUCCESS ? "SUCCESS" : "FAILURE")
+                + "\nAdditional Info (String): " + additionalInfo + "\n";
+    }
+
+    public int getType() {
+        return Protocol.HEARTBEAT_RESPONSE;
+    }
+
+    public byte getSuccessStatus() {
+        return successStatus;
+    }
+
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.put(successStatus);
+        Codec.putString(buffer, additionalInfo);
+    }
+
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        successStatus = buffer.get();
+        additionalInfo = Codec.getString(buffer);
+    }
+}
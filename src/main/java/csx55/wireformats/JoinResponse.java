@@ -1,24 +1,19 @@
 package csx55.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 
-public class JoinResponse implements Event {
+public class JoinResponse extends RingEvent {
     
 
-    private int messageType = Protocol.JOIN_RESPONSE;
-    private String predecessor;
+    private PeerRef predecessor;
+    private List<PeerRef> successors; // the responder's successor list, so the joiner can fail over before its first stabilize
 
-    public JoinResponse(String predecessor) {
+    public JoinResponse(PeerRef predecessor, List<PeerRef> successors) {
         this.predecessor = predecessor;
+        this.successors = successors;
     }
 
     public JoinResponse(byte[] message) {
@@ -29,65 +24,35 @@ public class JoinResponse implements Event {
         }
     }
 
+    public JoinResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
     public String getInfo() {
         return "JoinResponse\nStatus Code (byte): " 
-                + "\nPredecessor: " + predecessor + "\n";
+                + "\nPredecessor: " + predecessor + "\nSuccessors: " + successors + "\n";
     }
 
     public int getType() {
         return Protocol.JOIN_RESPONSE;
     }
 
-    public String getPredecessor() {
+    public PeerRef getPredecessor() {
         return predecessor;
     }
 
-    public byte[] getBytes() throws IOException {
-        // creating a byte array to store the marshalled bytes
-        byte[] marshalledBytes = null;
-        // creating a byte array output stream
-        // the buffer capacity is initially 32 bytes, though its size increases if necessary.
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        // wrapping the output stream in a data output stream in order to use the write methods to write data
-        // creates a new data output stream to write data to the specified underlying output stream. 
-        // The counter 'written' is set to zero.
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        // Writing to the output stream using the write methods
-        dout.writeInt(messageType);
-        byte[] predecessorBytes = predecessor.getBytes();
-        dout.writeInt(predecessorBytes.length);
-        dout.write(predecessorBytes);
-
-        // this tells the output stream to flush its buffer
-        dout.flush();
-        // now we grab the byte array from the output stream, convert it to a byte array, and return it
-        marshalledBytes = byteArrayOutputStream.toByteArray();
-        // closing the output stream
-        byteArrayOutputStream.close();
-        // closing the data output stream
-        dout.close();
-
-        return marshalledBytes;
+    public List<PeerRef> getSuccessors() {
+        return successors;
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        // creating a byte array input stream to read the message from the byte array
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        // wrapping the byte array input stream in a data input stream in order to use the read methods to read data
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-        // reading the metadata from the input stream using the read methods
-        messageType = din.readInt();
-        // reads the predecessor from the input stream
-        int predecessorLength = din.readInt();
+    protected void encodeFields(ByteBuffer buffer) throws IOException {
+        PeerRef.encode(buffer, predecessor);
+        PeerRef.encodeList(buffer, successors);
+    }
 
-        byte[] predecessorBytes = new byte[predecessorLength];
-        din.readFully(predecessorBytes);
-        predecessor = new String(predecessorBytes);
-    
-        // close the byte array input stream and the data input stream
-        baInputStream.close();
-        din.close(); 
+    protected void decodeFields(ByteBuffer buffer) throws IOException {
+        predecessor = PeerRef.decode(buffer);
+        successors = PeerRef.decodeList(buffer);
     }
     
 }
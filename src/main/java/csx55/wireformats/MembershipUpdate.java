@@ -0,0 +1,68 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Pushed by the discovery to every live peer when peers leave the membership, by deregistering or because their
+lease ran out. It lists the hostname:port of each departed peer, all the departures of one lease check in one message,
+so the receivers can drop them from their routing state without waiting for a stabilize to time out.
+ */
+public class MembershipUpdate extends BaseEvent {
+
+    private static final int MAX_DEPARTED = 65536;
+
+    private List<String> departed;
+
+    public MembershipUpdate(byte[] message) {
+        try {
+            setBytes(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public MembershipUpdate(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public MembershipUpdate(List<String> departed) {
+        this.departed = departed;
+    }
+
+    public String getInfo() {
+        return "MEMBERSHIP_UPDATE\nDeparted: " + departed + "\n";
+    }
+
+    public int getType() {
+        return Protocol.MEMBERSHIP_UPDATE;
+    }
+
+    public List<String> getDeparted() {
+        return departed;
+    }
+
+    public int getEncodedLengthHint() {
+        return 32 + departed.size() * 28;
+    }
+
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.putInt(departed.size());
+        for (String node : departed) {
+            Codec.putString(buffer, node);
+        }
+    }
+
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > MAX_DEPARTED) {
+            throw new IOException("Invalid departed peer count: " + count);
+        }
+        departed = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            departed.add(Codec.getString(buffer));
+        }
+    }
+}
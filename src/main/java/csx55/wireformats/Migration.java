@@ -1,16 +1,19 @@
 package csx55.wireformats;
 
-import java.io.*;
 import java.io.File;
-import java.nio.file.Paths;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class Migration implements Event{
+/*
+The file contents are not part of this message's bytes: the header frame carries the content length
+and the body is streamed after it (see FileTransfer).
+ */
+public class Migration extends BaseEvent implements FileTransfer {
 
-    private int messageType = Protocol.MIGRATION;
     private String fileName;
     private File file;
-    private int fileIdentifier;
+    private long contentLength;
+    private long fileIdentifier;
     private String originatingPeer;
     private Boolean force; // force migration, peer is leaving
 
@@ -18,9 +21,14 @@ public class Migration implements Event{
         setBytes(message);
     }
 
-    public Migration(File file, int fileIdentifier, String originatingPeer, Boolean force) {
+    public Migration(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public Migration(File file, long fileIdentifier, String originatingPeer, Boolean force) {
         this.file = file;
         this.fileName = file.getName();
+        this.contentLength = file.length();
         this.fileIdentifier = fileIdentifier;
         this.originatingPeer = originatingPeer;
         this.force = force;
@@ -38,7 +46,15 @@ public class Migration implements Event{
         return file;
     }
 
-    public int getFileIdentifier() {
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public long getFileIdentifier() {
         return fileIdentifier;
     }
 
@@ -57,53 +73,19 @@ public class Migration implements Event{
         return "Migrating file: " + fileName + " from " + originatingPeer + "\n";
     }
     
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-        byte[] fileNameBytes = fileName.getBytes();
-        dout.writeInt(fileNameBytes.length);
-        dout.write(fileNameBytes);
-        byte[] fileContent = Files.readAllBytes(file.toPath());
-        dout.writeInt(fileContent.length);
-        dout.write(fileContent);
-        dout.writeInt(fileIdentifier);
-        byte[] originatingPeerBytes = originatingPeer.getBytes();
-        dout.writeInt(originatingPeerBytes.length);
-        dout.write(originatingPeerBytes);
-        dout.writeBoolean(force);
-        
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeBody(ByteBuffer buffer) {
+        Codec.putString(buffer, fileName);
+        buffer.putLong(contentLength); // the contents follow the frame, see FileStreamer
+        buffer.putLong(fileIdentifier);
+        Codec.putString(buffer, originatingPeer);
+        Codec.putBoolean(buffer, force);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-    
-        messageType = din.readInt();
-        int fileNameLength = din.readInt();
-        byte[] fileNameBytes = new byte[fileNameLength];
-        din.readFully(fileNameBytes);
-        fileName = new String(fileNameBytes);
-        int fileContentLength = din.readInt();
-        byte[] fileContent = new byte[fileContentLength];
-        din.readFully(fileContent);
-        Files.write(Paths.get(fileName), fileContent);
-        file = new File(fileName); 
-        fileIdentifier = din.readInt();
-        int originatingPeerLength = din.readInt();
-        byte[] originatingPeerBytes = new byte[originatingPeerLength];
-        din.readFully(originatingPeerBytes);
-        originatingPeer = new String(originatingPeerBytes);
-        force = din.readBoolean();
-    
-        baInputStream.close();
-        din.close();
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        fileName = Codec.getString(buffer);
+        contentLength = buffer.getLong();
+        fileIdentifier = buffer.getLong();
+        originatingPeer = Codec.getString(buffer);
+        force = Codec.getBoolean(buffer);
     }
 }
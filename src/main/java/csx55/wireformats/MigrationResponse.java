@@ -1,17 +1,11 @@
 package csx55.wireformats;
 
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.DataInputStream;
+import java.nio.ByteBuffer;
 
-public class MigrationResponse implements Event {
+public class MigrationResponse extends BaseEvent {
 
 
-    private int messageType = Protocol.MIGRATION_RESPONSE;
     private String fileName;
     private boolean success = true;
     
@@ -19,6 +13,10 @@ public class MigrationResponse implements Event {
         setBytes(message);
     }
 
+    public MigrationResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
     public MigrationResponse(String fileName, boolean success) {
         this.fileName = fileName;
         this.success = success;
@@ -40,44 +38,14 @@ public class MigrationResponse implements Event {
         return "Migration " + success + " for file: " + fileName + "\n";
     }
     
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-
-        // Write the file name
-        dout.writeInt(fileName.length());
-        dout.writeBytes(fileName);
-
-        // Write the success status
-        dout.writeBoolean(success);
-
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeBody(ByteBuffer buffer) {
+        Codec.putString(buffer, fileName);
+        Codec.putBoolean(buffer, success);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-        messageType = din.readInt();
-
-        // Read the file name
-        int fileNameLength = din.readInt();
-        byte[] fileNameBytes = new byte[fileNameLength];
-        din.readFully(fileNameBytes);
-        fileName = new String(fileNameBytes);
-
-        // Read the success status
-        success = din.readBoolean();
-
-        baInputStream.close();
-        din.close();
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        fileName = Codec.getString(buffer);
+        success = Codec.getBoolean(buffer);
     }
     
 }
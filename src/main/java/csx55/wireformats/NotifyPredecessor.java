@@ -1,70 +1,52 @@
 package csx55.wireformats;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
-public class NotifyPredecessor implements Event {
+public class NotifyPredecessor extends RingEvent {
 
-    private int messageType = Protocol.NOTIFY_PREDECESSOR;
-    private String node;
-    private int peerID;
+    private PeerRef peer; // the new successor of the receiver
+    private List<PeerRef> successors; // peer's successor list, the receiver's list is peer followed by it
 
     public NotifyPredecessor(byte[] message) throws IOException {
         setBytes(message);
     }
 
-    public NotifyPredecessor(int peerID, String node) {
-        this.peerID = peerID;
-        this.node = node;
+    public NotifyPredecessor(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public NotifyPredecessor(PeerRef peer, List<PeerRef> successors) {
+        this.peer = peer;
+        this.successors = successors;
     }
 
     public int getType() {
         return Protocol.NOTIFY_PREDECESSOR;
     }
 
-    public String getNode() {
-        return node;
+    public PeerRef getPeer() {
+        return peer;
     }
 
-    public int getPeerID() {
-        return peerID;
+    public List<PeerRef> getSuccessors() {
+        return successors;
     }
 
 
     public String getInfo() {
-        return "Notify_Predecessor Type (int): " + Protocol.NOTIFY_PREDECESSOR + "\nPeerID(int): " + peerID + "\nNode (String): " + node + "\n";
+        return "Notify_Predecessor Type (int): " + Protocol.NOTIFY_PREDECESSOR + "\nPeerID: " + Long.toUnsignedString(peer.getPeerID()) + "\nNode: " + peer.getHostPort() + "\nSuccessors: " + successors + "\n";
 
     }
     
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-        byte[] nodeBytes = node.getBytes();
-        dout.writeInt(nodeBytes.length);
-        dout.write(nodeBytes);
-        dout.writeInt(peerID);
-        
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeFields(ByteBuffer buffer) throws IOException {
+        PeerRef.encode(buffer, peer);
+        PeerRef.encodeList(buffer, successors);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-        messageType = din.readInt();
-        int nodeLength = din.readInt();
-        byte[] nodeBytes = new byte[nodeLength];
-        din.readFully(nodeBytes);
-        node = new String(nodeBytes);
-        peerID = din.readInt();
-
-        baInputStream.close();
-        din.close();
+    protected void decodeFields(ByteBuffer buffer) throws IOException {
+        peer = PeerRef.decode(buffer);
+        successors = PeerRef.decodeList(buffer);
     }
 }
\ No newline at end of file
@@ -1,17 +1,21 @@
 package csx55.wireformats;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class PeerExit implements Event {
+public class PeerExit extends RingEvent {
 
-    private int messageType = Protocol.PEER_EXIT;
-    private String predecessor;
+    private PeerRef predecessor;
 
     public PeerExit(byte[] message) throws IOException {
         setBytes(message);
     }
 
-    public PeerExit(String predecessor) {
+    public PeerExit(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public PeerExit(PeerRef predecessor) {
         this.predecessor = predecessor;
     }
 
@@ -19,7 +23,7 @@ public class PeerExit implements Event {
         return Protocol.PEER_EXIT;
     }
 
-    public String getPredecessor() {
+    public PeerRef getPredecessor() {
         return predecessor;
     }
 
@@ -28,34 +32,11 @@ public class PeerExit implements Event {
 
     }
     
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-        byte[] predecessorBytes = predecessor.getBytes();
-        dout.writeInt(predecessorBytes.length);
-        dout.write(predecessorBytes);
-
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeFields(ByteBuffer buffer) throws IOException {
+        PeerRef.encode(buffer, predecessor);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-        messageType = din.readInt();
-        int predecessorLength = din.readInt();
-        byte[] predecessorBytes = new byte[predecessorLength];
-        din.readFully(predecessorBytes);
-        predecessor = new String(predecessorBytes);
-
-        baInputStream.close();
-        din.close();
+    protected void decodeFields(ByteBuffer buffer) throws IOException {
+        predecessor = PeerRef.decode(buffer);
     }
 }
\ No newline at end of file
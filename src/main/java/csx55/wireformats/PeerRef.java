@@ -0,0 +1,135 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Immutable reference to a peer in the ring: its peerID plus its resolved socket address.
+This replaces the "<peerID> <ip-address>:<port>" strings that used to be passed around and split again
+before every send. On the wire a PeerRef has a fixed binary layout:
+<long peerID><byte address length (0 = no peer, 4 = IPv4, 16 = IPv6)><address bytes><unsigned short port>
+toString() still gives the old "<peerID> <ip-address>:<port>" form for printing, with the 64 bit peerID unsigned.
+ */
+public final class PeerRef {
+
+    private static final int MAX_LIST_LENGTH = 64; // one per finger at most, successor lists and lookup candidates are far shorter
+
+    private final long peerID;
+    private final InetSocketAddress address;
+    private final String hostPort; // hostname:port, the key the ConnectionPool uses
+
+    public PeerRef(long peerID, InetSocketAddress address) {
+        this.peerID = peerID;
+        this.address = address;
+        String host = address.isUnresolved() ? address.getHostString() : address.getAddress().getHostAddress();
+        this.hostPort = host + ":" + address.getPort();
+    }
+
+    // the peer listening on hostname:port, peerID is the node's hash of hostname:port
+    public static PeerRef fromNode(long peerID, String node) {
+        int separator = node.lastIndexOf(':');
+        String host = node.substring(0, separator);
+        int port = Integer.parseInt(node.substring(separator + 1));
+        return new PeerRef(peerID, new InetSocketAddress(host, port));
+    }
+
+    public long getPeerID() {
+        return peerID;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public String getHost() {
+        return hostPort.substring(0, hostPort.lastIndexOf(':'));
+    }
+
+    public int getPort() {
+        return address.getPort();
+    }
+
+    public String getHostPort() {
+        return hostPort;
+    }
+
+    // writes the peer, or an empty reference for null
+    public static void encode(ByteBuffer buffer, PeerRef peer) throws IOException {
+        if (peer == null) {
+            buffer.putLong(0);
+            buffer.put((byte) 0);
+            return;
+        }
+        if (peer.address.isUnresolved()) {
+            throw new IOException("Can't encode unresolved peer address " + peer.hostPort);
+        }
+        byte[] addressBytes = peer.address.getAddress().getAddress();
+        buffer.putLong(peer.peerID);
+        buffer.put((byte) addressBytes.length);
+        buffer.put(addressBytes);
+        buffer.putShort((short) peer.address.getPort());
+    }
+
+    // reads a peer written by encode, null for an empty reference
+    public static PeerRef decode(ByteBuffer buffer) throws IOException {
+        long peerID = buffer.getLong();
+        int addressLength = buffer.get();
+        if (addressLength == 0) {
+            return null;
+        }
+        if (addressLength != 4 && addressLength != 16) {
+            throw new IOException("Invalid peer address length: " + addressLength);
+        }
+        byte[] addressBytes = new byte[addressLength];
+        buffer.get(addressBytes);
+        int port = buffer.getShort() & 0xFFFF;
+        // getByAddress never does a DNS lookup
+        return new PeerRef(peerID, new InetSocketAddress(InetAddress.getByAddress(addressBytes), port));
+    }
+
+    // a list of peers: <int count><peer>...
+    public static void encodeList(ByteBuffer buffer, List<PeerRef> peers) throws IOException {
+        buffer.putInt(peers.size());
+        for (PeerRef peer : peers) {
+            encode(buffer, peer);
+        }
+    }
+
+    public static List<PeerRef> decodeList(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > MAX_LIST_LENGTH) {
+            throw new IOException("Invalid peer list length: " + count);
+        }
+        List<PeerRef> peers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            peers.add(decode(buffer));
+        }
+        return peers;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof PeerRef)) {
+            return false;
+        }
+        PeerRef peer = (PeerRef) other;
+        return peerID == peer.peerID && hostPort.equals(peer.hostPort);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(peerID) + hostPort.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(peerID) + " " + hostPort;
+    }
+}
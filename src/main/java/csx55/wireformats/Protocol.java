@@ -20,4 +20,27 @@ public class Protocol {
     public static final int DOWNLOAD_RESPONSE = 16;
     public static final int MIGRATION = 17;
     public static final int MIGRATION_RESPONSE = 18;
+    public static final int FILE_TRANSFER_BEGIN = 19;
+    public static final int FILE_CHUNK = 20;
+    public static final int FILE_CHUNK_ACK = 21;
+    public static final int FILE_TRANSFER_END = 22;
+    public static final int HEARTBEAT = 23;
+    public static final int HEARTBEAT_RESPONSE = 24;
+    public static final int MEMBERSHIP_UPDATE = 25;
+
+    // message types that answer a request and carry that request's ID
+    public static boolean isResponse(int messageType) {
+        switch (messageType) {
+            case REGISTER_RESPONSE:
+            case DEREGISTER_RESPONSE:
+            case FIND_SUCCESSOR_RESPONSE:
+            case JOIN_RESPONSE:
+            case STABILIZE_RESPONSE:
+            case DOWNLOAD_RESPONSE:
+            case MIGRATION_RESPONSE:
+                return true;
+            default:
+                return false;
+        }
+    }
 }
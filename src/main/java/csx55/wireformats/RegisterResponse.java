@@ -1,20 +1,24 @@
 package csx55.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
-public class RegisterResponse implements Event {
+/*
+Discovery's answer to a RegisterRequest. Besides a random peer to join through it carries the discovery's view of
+the ring around the new ID: the registered position right before it, the ones right after it (the first is its
+successor) and the successor of every finger start, so the new virtual node can take its place and fill its finger
+table without a lookup. The lists are empty for the first position on the ring.
+ */
+public class RegisterResponse extends BaseEvent {
 
-    private int messageType = Protocol.REGISTER_RESPONSE;
     private byte successStatus;
     private String randPeer;
     private String additionalInfo;
     private String successStatusString;
+    private PeerRef predecessor;
+    private List<PeerRef> successors = List.of();
+    private List<PeerRef> fingers = List.of(); // distinct successors of id + 2^i, in ring order from id
 
     public RegisterResponse(byte[] message) {
         try {
@@ -24,6 +28,10 @@ public class RegisterResponse implements Event {
         }
     }
 
+    public RegisterResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
     public RegisterResponse(byte successStatus, String randPeer, String additionalInfo) {
         this.successStatus = successStatus;
         if (successStatus == Protocol.SUCCESS) {
@@ -35,9 +43,17 @@ public class RegisterResponse implements Event {
         this.additionalInfo = additionalInfo;
     }
 
+    public RegisterResponse(byte successStatus, String randPeer, String additionalInfo, PeerRef predecessor, List<PeerRef> successors, List<PeerRef> fingers) {
+        this(successStatus, randPeer, additionalInfo);
+        this.predecessor = predecessor;
+        this.successors = successors;
+        this.fingers = fingers;
+    }
+
     public String getInfo() {
         return "REGISTER_RESPONSE\nStatus Code (byte): " 
-                + successStatusString + "\nRandom Peer: " + randPeer + "\nAdditional Info (String): " + additionalInfo + "\n";
+                + successStatusString + "\nRandom Peer: " + randPeer + "\nAdditional Info (String): " + additionalInfo
+                + "\nPredecessor: " + predecessor + "\nSuccessors: " + successors + "\nFingers: " + fingers.size() + "\n";
     }
 
     public int getType() {
@@ -52,71 +68,48 @@ public class RegisterResponse implements Event {
         return randPeer;
     }
 
-    public byte[] getBytes() throws IOException {
-        // creating a byte array to store the marshalled bytes
-        byte[] marshalledBytes = null;
-        // creating a byte array output stream
-        // the buffer capacity is initially 32 bytes, though its size increases if necessary.
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        // wrapping the output stream in a data output stream in order to use the write methods to write data
-        // creates a new data output stream to write data to the specified underlying output stream. 
-        // The counter 'written' is set to zero.
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        // Writing to the output stream using the write methods
-        dout.writeInt(messageType);
-        dout.writeByte(successStatus);
-        byte[] randPeerBytes = randPeer.getBytes();
-        dout.writeInt(randPeerBytes.length);
-        dout.writeBytes(randPeer);
-        byte[] additionalInfoBytes = additionalInfo.getBytes();
-        dout.writeInt(additionalInfoBytes.length);
-        dout.writeBytes(additionalInfo);
-    
-        // this tells the output stream to flush its buffer
-        dout.flush();
-        // now we grab the byte array from the output stream, convert it to a byte array, and return it
-        marshalledBytes = byteArrayOutputStream.toByteArray();
-        // closing the output stream
-        byteArrayOutputStream.close();
-        // closing the data output stream
-        dout.close();
-
-        return marshalledBytes;
+    // true if the discovery placed the new ID, false if it is the first position on the ring
+    public boolean hasRingSnapshot() {
+        return !successors.isEmpty();
+    }
+
+    public PeerRef getPredecessor() {
+        return predecessor;
+    }
+
+    public PeerRef getSuccessor() {
+        return successors.isEmpty() ? null : successors.get(0);
+    }
+
+    public List<PeerRef> getSuccessors() {
+        return successors;
+    }
+
+    public List<PeerRef> getFingers() {
+        return fingers;
+    }
+
+    protected void encodeBody(ByteBuffer buffer) throws IOException {
+        buffer.put(successStatus);
+        Codec.putString(buffer, randPeer);
+        Codec.putString(buffer, additionalInfo);
+        PeerRef.encode(buffer, predecessor);
+        PeerRef.encodeList(buffer, successors);
+        PeerRef.encodeList(buffer, fingers);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        // creating a byte array input stream to read the message from the byte array
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        // wrapping the byte array input stream in a data input stream in order to use the read methods to read data
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-        // reading the metadata from the input stream using the read methods
-        messageType = din.readInt();
-        // reads the success status from the input stream
-        successStatus = din.readByte();
+    protected void decodeBody(ByteBuffer buffer) throws IOException {
+        successStatus = buffer.get();
         if (successStatus == Protocol.SUCCESS) {
             successStatusString = "SUCCESS";
         } else {
             successStatusString = "FAILURE";
         }
-        // reads the peerID from the input stream
-        int randPeerBytesLength = din.readInt();
-        byte[] randPeerBytes = new byte[randPeerBytesLength];
-        din.readFully(randPeerBytes);
-        randPeer = new String(randPeerBytes);
-
-        // reads the length of the identifier from the input stream in order to know how many bytes to read
-        int additionalInfoBytesLength = din.readInt();
-        // create a byte array to store the identifier equal to the length of the identifier
-        byte[] additionalInfoBytes = new byte[additionalInfoBytesLength];
-        // We need to use the readFully() method to read the entire identifier otherwise bad things happen
-        // the data read is stored in the byte array identifierBytes
-        din.readFully(additionalInfoBytes);
-        // convert the byte array to a string and store it in the ipAddress variable
-        additionalInfo = new String(additionalInfoBytes);
-        // close the byte array input stream and the data input stream
-        baInputStream.close();
-        din.close(); 
+        randPeer = Codec.getString(buffer);
+        additionalInfo = Codec.getString(buffer);
+        predecessor = PeerRef.decode(buffer);
+        successors = PeerRef.decodeList(buffer);
+        fingers = PeerRef.decodeList(buffer);
     }
     
 }
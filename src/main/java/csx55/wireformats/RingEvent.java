@@ -0,0 +1,38 @@
+package csx55.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+A ring maintenance message meant for one position on the ring.
+A peer can sit on the ring at several virtual IDs that all share its address, so the address alone doesn't
+say which of them a join, notify or stabilize message is about. Every ring message therefore starts its body
+with the peerID of the virtual node it is addressed to: <long target><message fields>.
+Peer.sendToNode fills the target in from the PeerRef the message is sent to.
+ */
+public abstract class RingEvent extends BaseEvent {
+
+    private long target;
+
+    public long getTarget() {
+        return target;
+    }
+
+    public void setTarget(long target) {
+        this.target = target;
+    }
+
+    protected final void encodeBody(ByteBuffer buffer) throws IOException {
+        buffer.putLong(target);
+        encodeFields(buffer);
+    }
+
+    protected final void decodeBody(ByteBuffer buffer) throws IOException {
+        target = buffer.getLong();
+        decodeFields(buffer);
+    }
+
+    protected abstract void encodeFields(ByteBuffer buffer) throws IOException;
+
+    protected abstract void decodeFields(ByteBuffer buffer) throws IOException;
+}
@@ -1,73 +1,41 @@
 package csx55.wireformats;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class Stabilize implements Event {
+public class Stabilize extends RingEvent {
 
-    private int messageType = Protocol.STABILIZE;
-    private String node;
-    private String nodeID_nodeHostPort;
+    private PeerRef sender; // the node that thinks the receiver is its successor
 
     public Stabilize(byte[] message) throws IOException {
         setBytes(message);
     }
 
-    public Stabilize(String sendingNode) {
-        this.node = sendingNode;
-        this.nodeID_nodeHostPort = sendingNode.hashCode() + " " + sendingNode;
+    public Stabilize(ByteBuffer buffer) throws IOException {
+        decode(buffer);
     }
 
-    public int getType() {
-        return Protocol.STABILIZE;
+    public Stabilize(PeerRef sender) {
+        this.sender = sender;
     }
 
-    public String getNode() {
-        return node;
+    public int getType() {
+        return Protocol.STABILIZE;
     }
 
-    public String getNodeID_nodeHostPort() {
-        return nodeID_nodeHostPort;
+    public PeerRef getSender() {
+        return sender;
     }
 
     public String getInfo() {
-        return "Stabilize message:\nFrom Node: " + getNodeID_nodeHostPort() + "\n";
+        return "Stabilize message:\nFrom Node: " + sender + "\n";
     }
     
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-        byte[] nodeBytes = node.getBytes();
-        dout.writeInt(nodeBytes.length);
-        dout.write(nodeBytes);
-        byte[] nodeID_nodeHostPortBytes = nodeID_nodeHostPort.getBytes();
-        dout.writeInt(nodeID_nodeHostPortBytes.length);
-        dout.write(nodeID_nodeHostPortBytes);
-
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeFields(ByteBuffer buffer) throws IOException {
+        PeerRef.encode(buffer, sender);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-        messageType = din.readInt();
-        int nodeLength = din.readInt();
-        byte[] nodeBytes = new byte[nodeLength];
-        din.readFully(nodeBytes);
-        node = new String(nodeBytes);
-        int nodeID_nodeHostPortLength = din.readInt();
-        byte[] nodeID_nodeHostPortBytes = new byte[nodeID_nodeHostPortLength];
-        din.readFully(nodeID_nodeHostPortBytes);
-        nodeID_nodeHostPort = new String(nodeID_nodeHostPortBytes);
-
-        baInputStream.close();
-        din.close();
+    protected void decodeFields(ByteBuffer buffer) throws IOException {
+        sender = PeerRef.decode(buffer);
     }
 }
\ No newline at end of file
@@ -1,61 +1,51 @@
 package csx55.wireformats;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
-public class StabilizeResponse implements Event {
+public class StabilizeResponse extends RingEvent {
 
-    private int messageType = Protocol.STABILIZE_RESPONSE;
-    private String predecessor;
+    private PeerRef predecessor;
+    private List<PeerRef> successors; // the responder's successor list, the sender keeps it for failover
 
     public StabilizeResponse(byte[] message) throws IOException {
         setBytes(message);
     }
 
-    public StabilizeResponse(String predecessor) {
+    public StabilizeResponse(ByteBuffer buffer) throws IOException {
+        decode(buffer);
+    }
+
+    public StabilizeResponse(PeerRef predecessor, List<PeerRef> successors) {
         this.predecessor = predecessor;
+        this.successors = successors;
     }
 
     public int getType() {
         return Protocol.STABILIZE_RESPONSE;
     }
 
-    public String getPredecessor() {
+    public PeerRef getPredecessor() {
         return predecessor;
     }
 
+    public List<PeerRef> getSuccessors() {
+        return successors;
+    }
+
     public String getInfo() {
-        return "Stabilize Response: " + Protocol.STABILIZE + "\nMy Predecessor is: " + predecessor + "\n";
+        return "Stabilize Response: " + Protocol.STABILIZE + "\nMy Predecessor is: " + predecessor + "\nMy Successors are: " + successors + "\n";
 
     }
     
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(byteArrayOutputStream));
-
-        dout.writeInt(messageType);
-        byte[] predecessorBytes = predecessor.getBytes();
-        dout.writeInt(predecessorBytes.length);
-        dout.write(predecessorBytes);
-
-        dout.flush();
-        byte[] marshalledBytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
-        dout.close();
-
-        return marshalledBytes;
+    protected void encodeFields(ByteBuffer buffer) throws IOException {
+        PeerRef.encode(buffer, predecessor);
+        PeerRef.encodeList(buffer, successors);
     }
 
-    public void setBytes(byte[] marshalledBytes) throws IOException {
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(marshalledBytes);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(baInputStream));
-
-        messageType = din.readInt();
-        int predecessorLength = din.readInt();
-        byte[] predecessorBytes = new byte[predecessorLength];
-        din.readFully(predecessorBytes);
-        predecessor = new String(predecessorBytes);
-
-        baInputStream.close();
-        din.close();
+    protected void decodeFields(ByteBuffer buffer) throws IOException {
+        predecessor = PeerRef.decode(buffer);
+        successors = PeerRef.decodeList(buffer);
     }
 }
\ No newline at end of file